@@ -0,0 +1,345 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for the A1 endpoints.
+ *
+ * Requests are issued on a fixed schedule regardless of how fast the server answers, and every
+ * latency is measured from the request's intended start time rather than the moment it was
+ * actually sent, so a stalled server shows up in the percentiles instead of silently lowering
+ * the offered load (no coordinated omission).
+ *
+ * Run with: mvn test-compile exec:java -Ploadgen -Dload.rate=1000 -Dload.duration=30
+ *
+ * Properties (all optional):
+ *   load.host       server base url (http://localhost:8080)
+ *   load.rate       target requests per second (1000)
+ *   load.duration   measured seconds (30)
+ *   load.warmup     seconds sent before measuring (5)
+ *   load.mix        weighted route mix (getActor:70,computeBaconPath:20,addRelationship:10)
+ *   load.actors     synthetic actors to seed (1000)
+ *   load.movies     synthetic movies to seed (300)
+ *   load.seed       random seed, keep fixed to compare runs (42)
+ *   load.timeout    per request timeout in seconds (10)
+ *   load.skipSeed   true to reuse a graph seeded by a previous run (false)
+ *   load.out        report file (target/load-report.json)
+ */
+public class LoadGenerator {
+
+    static final String BACON_ID = "nm0000102";
+    static final String API = "/api/v1/";
+
+    private final String host;
+    private final int rate;
+    private final int duration;
+    private final int warmup;
+    private final int actors;
+    private final int movies;
+    private final long seed;
+    private final Duration timeout;
+    private final String[] mixRoutes;
+    private final int[] mixWeights;
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Map<String, RouteStats> stats = new LinkedHashMap<>();
+    private final AtomicLong nextRelationship = new AtomicLong();
+    private final AtomicLong lateStarts = new AtomicLong();
+
+    /**
+     * Constructs the LoadGenerator from system properties.
+     */
+    public LoadGenerator() {
+        this.host = System.getProperty("load.host", "http://localhost:" + App.port);
+        this.rate = Integer.getInteger("load.rate", 1000);
+        this.duration = Integer.getInteger("load.duration", 30);
+        this.warmup = Integer.getInteger("load.warmup", 5);
+        this.actors = Integer.getInteger("load.actors", 1000);
+        this.movies = Integer.getInteger("load.movies", 300);
+        this.seed = Long.getLong("load.seed", 42L);
+        this.timeout = Duration.ofSeconds(Integer.getInteger("load.timeout", 10));
+
+        String[] mix = System.getProperty("load.mix",
+                "getActor:70,computeBaconPath:20,addRelationship:10").split(",");
+        this.mixRoutes = new String[mix.length];
+        this.mixWeights = new int[mix.length];
+        int cumulative = 0;
+        for (int i = 0; i < mix.length; i++) {
+            String[] pair = mix[i].trim().split(":");
+            cumulative += pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            mixRoutes[i] = pair[0].trim();
+            mixWeights[i] = cumulative;
+            stats.put(mixRoutes[i], new RouteStats());
+        }
+
+        this.executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        this.client = HttpClient.newBuilder()
+                .executor(executor)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            if (!Boolean.getBoolean("load.skipSeed")) {
+                generator.seedGraph();
+            }
+            generator.run();
+            generator.report(System.out);
+            generator.writeReport(Path.of(System.getProperty("load.out", "target/load-report.json")));
+        } finally {
+            generator.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads a synthetic graph through the API. Every actor acts in a few random movies and
+     * Kevin Bacon acts in a slice of them, so computeBaconPath has paths of varying length.
+     * The last quarter of the movies is left unlinked and reserved for addRelationship.
+     */
+    void seedGraph() throws InterruptedException {
+        SplittableRandom random = new SplittableRandom(seed);
+        Semaphore inFlight = new Semaphore(32);
+        List<CompletableFuture<Integer>> pending = new ArrayList<>();
+
+        pending.add(seedCall(inFlight, "addActor", actorBody(BACON_ID, "Kevin Bacon")));
+        for (int i = 0; i < actors; i++) {
+            pending.add(seedCall(inFlight, "addActor", actorBody(actorId(i), "Actor " + i)));
+        }
+        for (int i = 0; i < movies; i++) {
+            pending.add(seedCall(inFlight, "addMovie", movieBody(movieId(i), "Movie " + i)));
+        }
+        awaitAll(pending);
+
+        int linked = linkedMovies();
+        for (int i = 0; i < linked; i += 10) {
+            pending.add(seedCall(inFlight, "addRelationship", relationshipBody(BACON_ID, movieId(i))));
+        }
+        for (int i = 0; i < actors; i++) {
+            int roles = 1 + random.nextInt(3);
+            for (int j = 0; j < roles; j++) {
+                pending.add(seedCall(inFlight, "addRelationship",
+                        relationshipBody(actorId(i), movieId(random.nextInt(linked)))));
+            }
+        }
+        awaitAll(pending);
+        System.out.printf("Seeded %d actors and %d movies\n", actors + 1, movies);
+    }
+
+    /**
+     * Issues requests at the target rate for the warmup and measured windows, then waits for
+     * the stragglers. Only requests scheduled after the warmup are recorded.
+     */
+    void run() throws InterruptedException {
+        SplittableRandom random = new SplittableRandom(seed + 1);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long total = (long) rate * (warmup + duration);
+        long measureFrom = (long) rate * warmup;
+        AtomicLong outstanding = new AtomicLong();
+
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long intended = start + i * intervalNanos;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -intervalNanos) {
+                lateStarts.incrementAndGet();
+            }
+
+            String route = pickRoute(random);
+            HttpRequest request = buildRequest(route, random);
+            RouteStats routeStats = i >= measureFrom ? stats.get(route) : null;
+            outstanding.incrementAndGet();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        if (routeStats != null) {
+                            routeStats.record(intended, response == null ? -1 : response.statusCode());
+                        }
+                        outstanding.decrementAndGet();
+                    });
+        }
+
+        long giveUp = System.nanoTime() + timeout.toNanos() * 2;
+        while (outstanding.get() > 0 && System.nanoTime() < giveUp) {
+            Thread.sleep(10);
+        }
+        if (outstanding.get() > 0) {
+            System.out.printf("%d requests did not finish before the report was written\n", outstanding.get());
+        }
+    }
+
+    /**
+     * Prints a per route summary.
+     * @param out The stream to print to.
+     */
+    void report(PrintStream out) {
+        out.printf("Target %d req/s for %ds (late starts: %d)\n", rate, duration, lateStarts.get());
+        out.printf("%-18s %9s %9s %8s %9s %9s %9s %9s %9s\n",
+                "route", "count", "req/s", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Map.Entry<String, RouteStats> entry : stats.entrySet()) {
+            RouteStats s = entry.getValue();
+            LatencyHistogram h = s.latency;
+            out.printf("%-18s %9d %9.1f %8d %9.2f %9.2f %9.2f %9.2f %9.2f\n",
+                    entry.getKey(), h.count(), (double) h.count() / duration, s.errors.get(),
+                    h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+                    h.percentile(99.9) / 1000.0, h.max() / 1000.0);
+        }
+    }
+
+    /**
+     * Writes the summary as JSON so runs can be diffed against each other.
+     * @param file The report file.
+     */
+    void writeReport(Path file) throws IOException, JSONException {
+        JSONObject report = new JSONObject();
+        report.put("targetRate", rate);
+        report.put("duration", duration);
+        report.put("seed", seed);
+        report.put("lateStarts", lateStarts.get());
+        JSONObject routes = new JSONObject();
+        for (Map.Entry<String, RouteStats> entry : stats.entrySet()) {
+            RouteStats s = entry.getValue();
+            LatencyHistogram h = s.latency;
+            JSONObject route = new JSONObject();
+            route.put("count", h.count());
+            route.put("throughput", (double) h.count() / duration);
+            route.put("errors", s.errors.get());
+            route.put("meanUs", h.mean());
+            route.put("p50Us", h.percentile(50));
+            route.put("p90Us", h.percentile(90));
+            route.put("p99Us", h.percentile(99));
+            route.put("p999Us", h.percentile(99.9));
+            route.put("maxUs", h.max());
+            routes.put(entry.getKey(), route);
+        }
+        report.put("routes", routes);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Files.writeString(file, report.toString(2), StandardCharsets.UTF_8);
+        System.out.printf("Report written to %s\n", file);
+    }
+
+    private String pickRoute(SplittableRandom random) {
+        int roll = random.nextInt(mixWeights[mixWeights.length - 1]);
+        for (int i = 0; i < mixWeights.length; i++) {
+            if (roll < mixWeights[i]) {
+                return mixRoutes[i];
+            }
+        }
+        return mixRoutes[mixRoutes.length - 1];
+    }
+
+    private HttpRequest buildRequest(String route, SplittableRandom random) {
+        switch (route) {
+            case "getActor":
+            case "computeBaconNumber":
+            case "computeBaconPath":
+                return request("GET", route, "{\"actorId\":\"" + actorId(random.nextInt(actors)) + "\"}");
+            case "hasRelationship":
+                return request("GET", route, relationshipBody(actorId(random.nextInt(actors)),
+                        movieId(random.nextInt(movies))));
+            case "addRelationship":
+                // walk the unlinked movies so every write is a new relationship
+                long n = nextRelationship.getAndIncrement();
+                int reserved = Math.max(1, movies - linkedMovies());
+                return request("PUT", route, relationshipBody(actorId((int) (n % actors)),
+                        movieId(linkedMovies() + (int) ((n / actors) % reserved))));
+            default:
+                throw new IllegalArgumentException("Unknown route in load.mix: " + route);
+        }
+    }
+
+    private HttpRequest request(String method, String route, String body) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(host + API + route))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .method(method, HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private CompletableFuture<Integer> seedCall(Semaphore inFlight, String route, String body)
+            throws InterruptedException {
+        inFlight.acquire();
+        return client.sendAsync(request("PUT", route, body), HttpResponse.BodyHandlers.discarding())
+                .handle((response, error) -> {
+                    inFlight.release();
+                    return response == null ? -1 : response.statusCode();
+                });
+    }
+
+    private void awaitAll(List<CompletableFuture<Integer>> pending) {
+        long failed = pending.stream().map(CompletableFuture::join).filter(code -> code < 0 || code >= 500).count();
+        if (failed > 0) {
+            System.out.printf("%d seed requests failed\n", failed);
+        }
+        pending.clear();
+    }
+
+    private int linkedMovies() {
+        return Math.max(1, movies - movies / 4);
+    }
+
+    private static String actorId(int i) {
+        return "lga" + i;
+    }
+
+    private static String movieId(int i) {
+        return "lgm" + i;
+    }
+
+    private static String actorBody(String actorId, String name) {
+        return "{\"actorId\":\"" + actorId + "\",\"name\":\"" + name + "\"}";
+    }
+
+    private static String movieBody(String movieId, String name) {
+        return "{\"movieId\":\"" + movieId + "\",\"name\":\"" + name + "\"}";
+    }
+
+    private static String relationshipBody(String actorId, String movieId) {
+        return "{\"actorId\":\"" + actorId + "\",\"movieId\":\"" + movieId + "\"}";
+    }
+
+    /**
+     * Latencies and error count for a single route.
+     */
+    static class RouteStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+
+        void record(long intendedStartNanos, int status) {
+            latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStartNanos));
+            if (status < 200 || status >= 300) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ca.utoronto.utm.mcs;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A route the gateway answers itself by combining the responses of several backend calls.
+ */
+public interface Aggregate {
+   /**
+    * @param match the matched route and its path parameters
+    * @param headers headers of the client request
+    * @param remainingNanos time the client request has left
+    * @param dispatcher sends each backend call through the routing table
+    * @return the combined response
+    */
+   BufferedResponse fetch(Router.Match<Route> match, Map<String, List<String>> headers, long remainingNanos,
+                          Batch.Dispatcher dispatcher) throws IOException, InterruptedException;
+}
@@ -1,5 +1,6 @@
 package ca.utoronto.utm.mcs;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 
@@ -11,9 +12,26 @@ public class App {
 
    public static void main(String[] args) throws IOException {
 
+      GatewayConfig config = GatewayConfig.load();
+      Upstream.init(config);
+      Compression.init(config);
+      GatewayConfig.watch(config.getLong("config.reloadIntervalMs", 5000), Upstream::reload);
+
+      AccessLog accessLog = AccessLog.fromEnv("apigateway");
+      Metrics.gauge("accesslog.dropped", accessLog::dropped);
+      Filter logged = accessLog.filter();
+
       HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", PORT), 0);
+      ServerExecutor executor = new ServerExecutor("gateway", config.get("server.executor", "virtual"),
+              config.getInt("server.threads", 256), config.getInt("server.queue", 1000));
+      server.setExecutor(executor);
+      Metrics.gauge("server.inFlight", executor::inFlight);
+      Metrics.gauge("server.queued", executor::queued);
+      Metrics.gauge("server.rejected", executor::rejected);
       HttpContext context = server.createContext("/");
-      context.setHandler(new ReqHandler());
+      context.setHandler(new ReqHandler(config));
+      context.getFilters().add(logged);
+      server.createContext("/metrics", new Metrics());
 
       server.start();
       System.out.printf("Server started on port %d...\n", PORT);
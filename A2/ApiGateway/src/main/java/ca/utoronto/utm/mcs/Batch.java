@@ -0,0 +1,234 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the sub-requests of a POST /batch concurrently and combines their responses, so a client
+ * can fetch e.g. a profile, a location and a trip history in one round trip.
+ *
+ * Each item is {"id": ..., "method": "GET", "path": "/user/1", "headers": {...}, "body": {...}};
+ * only path is required. At most batch.maxConcurrency items of one batch run at a time, and the
+ * whole batch shares one deadline of batch.timeoutMs, or the batch request's own deadline if that
+ * is sooner: items that have not finished by then are cancelled and reported as 504. The result lists every item in order with its own status:
+ * {"status": "OK", "responses": [{"id": ..., "status": 200, "body": ...}]}
+ *
+ * Exported metrics: batch.requests, batch.items, batch.timeouts, batch.latency
+ */
+public class Batch {
+   private final int maxRequests;
+   private final int maxConcurrency;
+   private final long timeoutNanos;
+   private final ExecutorService executor;
+
+   private final LongAdder batches = Metrics.counter("batch.requests");
+   private final LongAdder items = Metrics.counter("batch.items");
+   private final LongAdder timeouts = Metrics.counter("batch.timeouts");
+   private final LatencyHistogram latency = Metrics.histogram("batch.latency");
+
+   /**
+    * Sends one item to its backend, through the same routing, limits and caching as a normal
+    * request.
+    */
+   public interface Dispatcher {
+      BufferedResponse dispatch(String method, String path, String query, Map<String, List<String>> headers,
+                                byte[] body, Duration timeout) throws IOException, InterruptedException;
+   }
+
+   /**
+    * @param config gateway settings, read from batch.*
+    */
+   public Batch(GatewayConfig config) {
+      this.maxRequests = config.getInt("batch.maxRequests", 20);
+      this.maxConcurrency = config.getInt("batch.maxConcurrency", 4);
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("batch.timeoutMs", 5000));
+      AtomicInteger count = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(config.getInt("batch.threads", 32), runnable -> {
+         Thread thread = new Thread(runnable, "batch-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   public int getMaxRequests() {
+      return maxRequests;
+   }
+
+   /**
+    * Runs every item and waits for them, or for the batch deadline.
+    * @param requests the items
+    * @param headers headers of the batch request, passed on to every item
+    * @param remainingNanos time the batch request has left
+    * @param dispatcher sends an item to its backend
+    * @return the combined response
+    */
+   public JSONObject execute(JSONArray requests, Map<String, List<String>> headers, long remainingNanos,
+                             Dispatcher dispatcher) throws JSONException, InterruptedException {
+      long start = System.nanoTime();
+      long deadline = start + Math.min(timeoutNanos, remainingNanos);
+      int n = requests.length();
+      batches.increment();
+      items.add(n);
+
+      Map<String, List<String>> shared = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      shared.putAll(headers);
+      // items carry their own bodies, and the gateway has to be able to read every response
+      shared.remove("Content-Type");
+      shared.remove("Accept-Encoding");
+      shared.remove(Deadline.HEADER);
+
+      AtomicReferenceArray<JSONObject> results = new AtomicReferenceArray<>(n);
+      AtomicInteger next = new AtomicInteger();
+      CountDownLatch done = new CountDownLatch(n);
+      List<Future<?>> workers = new ArrayList<>();
+      for (int w = 0; w < Math.min(maxConcurrency, n); w++) {
+         workers.add(executor.submit(() -> {
+            int i;
+            while (!Thread.currentThread().isInterrupted() && (i = next.getAndIncrement()) < n) {
+               results.set(i, run(requests.opt(i), i, shared, deadline, dispatcher));
+               done.countDown();
+            }
+         }));
+      }
+
+      boolean finished = done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      if (!finished) {
+         for (Future<?> worker : workers) {
+            worker.cancel(true);
+         }
+      }
+
+      JSONArray responses = new JSONArray();
+      for (int i = 0; i < n; i++) {
+         JSONObject result = results.get(i);
+         if (result == null) {
+            timeouts.increment();
+            result = result(idOf(requests.opt(i), i), 504, "GATEWAY TIMEOUT");
+         }
+         responses.put(result);
+      }
+      latency.recordSince(start);
+      JSONObject res = new JSONObject();
+      res.put("status", "OK");
+      res.put("responses", responses);
+      return res;
+   }
+
+   private JSONObject run(Object request, int index, Map<String, List<String>> shared, long deadline,
+                          Dispatcher dispatcher) {
+      Object id = idOf(request, index);
+      try {
+         if (!(request instanceof JSONObject) || !((JSONObject) request).has("path")) {
+            return result(id, 400, "BAD REQUEST");
+         }
+         JSONObject item = (JSONObject) request;
+         String method = item.optString("method", "GET").toUpperCase();
+         String target = item.getString("path");
+         int q = target.indexOf('?');
+         String path = q < 0 ? target : target.substring(0, q);
+         String query = q < 0 ? null : target.substring(q + 1);
+
+         Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+         headers.putAll(shared);
+         JSONObject itemHeaders = item.optJSONObject("headers");
+         if (itemHeaders != null) {
+            Iterator<?> keys = itemHeaders.keys();
+            while (keys.hasNext()) {
+               String key = keys.next().toString();
+               // the verified user comes from the batch request's own token
+               if (!key.equalsIgnoreCase(Proxy.USER_HEADER)) {
+                  headers.put(key, List.of(itemHeaders.getString(key)));
+               }
+            }
+         }
+         byte[] body = new byte[0];
+         Object itemBody = item.opt("body");
+         if (itemBody != null) {
+            body = itemBody.toString().getBytes(StandardCharsets.UTF_8);
+            headers.putIfAbsent("Content-Type", List.of("application/json"));
+         }
+
+         long remaining = deadline - System.nanoTime();
+         if (remaining <= 0) {
+            return result(id, 504, "GATEWAY TIMEOUT");
+         }
+         BufferedResponse res = dispatcher.dispatch(method, path, query, headers, body, Duration.ofNanos(remaining));
+         JSONObject result = new JSONObject();
+         result.put("id", id);
+         result.put("status", res.getStatus());
+         Object parsed = parse(res.getBody());
+         if (parsed != null) {
+            result.put("body", parsed);
+         }
+         return result;
+      } catch (UpstreamException e) {
+         return result(id, e.getStatus(), e.getStatus() == 504 ? "GATEWAY TIMEOUT" : "SERVICE UNAVAILABLE");
+      } catch (IOException e) {
+         return result(id, 502, "BAD GATEWAY");
+      } catch (InterruptedException e) {
+         // cancelled at the deadline, the batch reports it as a timeout
+         Thread.currentThread().interrupt();
+         return null;
+      } catch (JSONException | RuntimeException e) {
+         return result(id, 400, "BAD REQUEST");
+      }
+   }
+
+   private static Object idOf(Object request, int index) {
+      if (request instanceof JSONObject && ((JSONObject) request).has("id")) {
+         return ((JSONObject) request).opt("id");
+      }
+      return index;
+   }
+
+   private static JSONObject result(Object id, int status, String statusText) {
+      try {
+         JSONObject result = new JSONObject();
+         result.put("id", id);
+         result.put("status", status);
+         result.put("body", new JSONObject().put("status", statusText));
+         return result;
+      } catch (JSONException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Embeds a JSON body as JSON, anything else as a string.
+    */
+   private static Object parse(byte[] body) {
+      if (body.length == 0) {
+         return null;
+      }
+      String text = new String(body, StandardCharsets.UTF_8).trim();
+      try {
+         if (text.startsWith("{")) {
+            return new JSONObject(text);
+         }
+         if (text.startsWith("[")) {
+            return new JSONArray(text);
+         }
+      } catch (JSONException e) {
+         // not JSON after all
+      }
+      return text;
+   }
+}
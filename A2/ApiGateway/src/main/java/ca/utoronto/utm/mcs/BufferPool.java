@@ -0,0 +1,66 @@
+package ca.utoronto.utm.mcs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of fixed size byte buffers used to copy bodies between streams
+ * without allocating a new buffer for every request.
+ */
+public class BufferPool {
+   public static final BufferPool shared = new BufferPool(16 * 1024, 256);
+
+   private final int bufferSize;
+   private final ArrayBlockingQueue<byte[]> buffers;
+
+   /**
+    * @param bufferSize size of each buffer in bytes
+    * @param capacity maximum number of idle buffers kept around
+    */
+   public BufferPool(int bufferSize, int capacity) {
+      this.bufferSize = bufferSize;
+      this.buffers = new ArrayBlockingQueue<>(capacity);
+   }
+
+   /**
+    * Takes a buffer from the pool, allocating one if the pool is empty.
+    * @return buffer of bufferSize bytes
+    */
+   public byte[] acquire() {
+      byte[] buffer = buffers.poll();
+      return buffer != null ? buffer : new byte[bufferSize];
+   }
+
+   /**
+    * Returns a buffer to the pool. Buffers beyond the capacity are dropped.
+    * @param buffer buffer previously taken from acquire()
+    */
+   public void release(byte[] buffer) {
+      if (buffer.length == bufferSize) {
+         buffers.offer(buffer);
+      }
+   }
+
+   /**
+    * Copies everything from in to out using a pooled buffer. Neither stream is closed.
+    * @param in stream to read from
+    * @param out stream to write to
+    * @return number of bytes copied
+    */
+   public long transfer(InputStream in, OutputStream out) throws IOException {
+      byte[] buffer = acquire();
+      long total = 0;
+      try {
+         int read;
+         while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+         }
+      } finally {
+         release(buffer);
+      }
+      return total;
+   }
+}
@@ -0,0 +1,97 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A backend response read fully into memory, for routes where the gateway needs to keep or
+ * share the body (caching, fan-out) instead of streaming it straight through.
+ */
+public class BufferedResponse {
+   private final int status;
+   private final Map<String, List<String>> headers;
+   private final byte[] body;
+   // compressed bodies, kept so a cached response is only compressed once per encoding
+   private volatile byte[] gzipped;
+   private volatile byte[] deflated;
+
+   /**
+    * @param status backend status code
+    * @param headers backend headers, hop-by-hop headers already removed
+    * @param body full body
+    */
+   public BufferedResponse(int status, Map<String, List<String>> headers, byte[] body) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+   }
+
+   public int getStatus() {
+      return status;
+   }
+
+   public Map<String, List<String>> getHeaders() {
+      return headers;
+   }
+
+   public byte[] getBody() {
+      return body;
+   }
+
+   /**
+    * Rough memory footprint, used to bound caches.
+    * @return size in bytes
+    */
+   public int size() {
+      int size = body.length + 64;
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         size += header.getKey().length() * 2;
+         for (String value : header.getValue()) {
+            size += value.length() * 2;
+         }
+      }
+      return size;
+   }
+
+   /**
+    * Writes the response to the client, compressed if the client accepts it.
+    * @param exchange the client exchange
+    */
+   public void writeTo(HttpExchange exchange) throws IOException {
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         exchange.getResponseHeaders().put(header.getKey(), new ArrayList<>(header.getValue()));
+      }
+      boolean noBody = body.length == 0 || exchange.getRequestMethod().equals("HEAD");
+      byte[] out = body;
+      String encoding = noBody ? null : Compression.shared.negotiate(exchange, status, headers, body.length);
+      if (encoding != null) {
+         out = encoded(encoding);
+         exchange.getResponseHeaders().set("Content-Encoding", encoding);
+         exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+      }
+      exchange.sendResponseHeaders(status, noBody ? -1 : out.length);
+      try (OutputStream stream = exchange.getResponseBody()) {
+         if (!noBody) {
+            stream.write(out);
+         }
+      }
+   }
+
+   private byte[] encoded(String encoding) throws IOException {
+      if (encoding.equals("gzip")) {
+         if (gzipped == null) {
+            gzipped = Compression.shared.compress(body, encoding);
+         }
+         return gzipped;
+      }
+      if (deflated == null) {
+         deflated = Compression.shared.compress(body, encoding);
+      }
+      return deflated;
+   }
+}
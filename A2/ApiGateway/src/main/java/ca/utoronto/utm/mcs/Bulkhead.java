@@ -0,0 +1,79 @@
+package ca.utoronto.utm.mcs;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the number of concurrent calls to one backend, and how many requests may queue for a
+ * slot, so a slow backend can only tie up its own share of the gateway's threads. Requests
+ * beyond the queue limit, or that wait longer than maxWaitMs, are refused straight away.
+ */
+public class Bulkhead {
+   private final String name;
+   private final int maxConcurrent;
+   private final int maxWaiting;
+   private final long maxWaitMs;
+   private final Semaphore permits;
+   private final AtomicInteger waiting = new AtomicInteger();
+
+   /**
+    * @param name backend name, used in error messages
+    * @param maxConcurrent calls allowed at once
+    * @param maxWaiting requests allowed to queue for a free slot
+    * @param maxWaitMs longest a request may queue
+    */
+   public Bulkhead(String name, int maxConcurrent, int maxWaiting, long maxWaitMs) {
+      this.name = name;
+      this.maxConcurrent = maxConcurrent;
+      this.maxWaiting = maxWaiting;
+      this.maxWaitMs = maxWaitMs;
+      this.permits = new Semaphore(maxConcurrent, true);
+   }
+
+   /**
+    * Takes a slot, queueing briefly if none is free. Every successful call must be paired
+    * with release().
+    * @throws UpstreamException 503 if the queue is full or no slot frees up in time
+    */
+   public void acquire() throws InterruptedException, UpstreamException {
+      if (permits.tryAcquire()) {
+         return;
+      }
+      if (waiting.incrementAndGet() > maxWaiting) {
+         waiting.decrementAndGet();
+         throw new UpstreamException(503, name + " bulkhead is full");
+      }
+      try {
+         if (!permits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)) {
+            throw new UpstreamException(503, name + " has no free connections");
+         }
+      } finally {
+         waiting.decrementAndGet();
+      }
+   }
+
+   /**
+    * Takes a slot only if one is free right now.
+    * @return true if a slot was taken, in which case release() must follow
+    */
+   public boolean tryAcquire() {
+      return permits.tryAcquire();
+   }
+
+   public void release() {
+      permits.release();
+   }
+
+   public int getMaxConcurrent() {
+      return maxConcurrent;
+   }
+
+   public int inUse() {
+      return maxConcurrent - permits.availablePermits();
+   }
+
+   public int waiting() {
+      return waiting.get();
+   }
+}
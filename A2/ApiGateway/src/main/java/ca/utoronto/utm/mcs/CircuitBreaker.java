@@ -0,0 +1,189 @@
+package ca.utoronto.utm.mcs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breaker for one backend.
+ *
+ * While CLOSED every call goes through and its outcome is counted in a rolling window of
+ * one second buckets. Once the window holds at least minimumCalls and either the failure rate
+ * or the slow call rate crosses its threshold the breaker OPENs and calls fail fast for
+ * openMs. After that it goes HALF_OPEN and lets halfOpenProbes calls through: if they all
+ * succeed it closes again, if any fails it reopens.
+ *
+ * Exported metrics, prefixed with breaker.name.:
+ *   state (0 closed, 1 open, 2 half open), opened, rejected, failureRate, slowRate
+ */
+public class CircuitBreaker {
+   enum State { CLOSED, OPEN, HALF_OPEN }
+
+   private final int failureRateThreshold;
+   private final int slowRateThreshold;
+   private final long slowCallNanos;
+   private final int minimumCalls;
+   private final long openNanos;
+   private final int halfOpenProbes;
+
+   private final long[] bucketIds;
+   private final int[] calls;
+   private final int[] failures;
+   private final int[] slowCalls;
+
+   private State state = State.CLOSED;
+   private long openedAt;
+   private int probesInFlight;
+   private int probeSuccesses;
+
+   private final LongAdder opened;
+   private final LongAdder rejected;
+
+   /**
+    * Creates the breaker for a backend from its upstream.name.breaker.* settings.
+    * @param name backend name
+    * @param config gateway settings
+    */
+   public CircuitBreaker(String name, GatewayConfig config) {
+      this.failureRateThreshold = config.upstreamInt(name, "breaker.failureRate", 50);
+      this.slowRateThreshold = config.upstreamInt(name, "breaker.slowCallRate", 80);
+      this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(config.upstreamInt(name, "breaker.slowCallMs", 3000));
+      this.minimumCalls = config.upstreamInt(name, "breaker.minimumCalls", 20);
+      this.openNanos = TimeUnit.MILLISECONDS.toNanos(config.upstreamInt(name, "breaker.openMs", 5000));
+      this.halfOpenProbes = config.upstreamInt(name, "breaker.halfOpenProbes", 3);
+
+      int window = config.upstreamInt(name, "breaker.windowSeconds", 10);
+      this.bucketIds = new long[window];
+      this.calls = new int[window];
+      this.failures = new int[window];
+      this.slowCalls = new int[window];
+
+      String prefix = "breaker." + name + ".";
+      this.opened = Metrics.counter(prefix + "opened");
+      this.rejected = Metrics.counter(prefix + "rejected");
+      Metrics.gauge(prefix + "state", () -> getState().ordinal());
+      Metrics.gauge(prefix + "failureRate", () -> rate(failures));
+      Metrics.gauge(prefix + "slowRate", () -> rate(slowCalls));
+   }
+
+   /**
+    * Asks to make a call. Every true result must be followed by exactly one onResult or
+    * onIgnored.
+    * @return false if the breaker is open and the call should fail fast
+    */
+   public synchronized boolean tryAcquire() {
+      if (state == State.OPEN) {
+         if (System.nanoTime() - openedAt < openNanos) {
+            rejected.increment();
+            return false;
+         }
+         state = State.HALF_OPEN;
+         probesInFlight = 0;
+         probeSuccesses = 0;
+      }
+      if (state == State.HALF_OPEN) {
+         if (probesInFlight >= halfOpenProbes) {
+            rejected.increment();
+            return false;
+         }
+         probesInFlight++;
+      }
+      return true;
+   }
+
+   /**
+    * Records the outcome of a call allowed by tryAcquire.
+    * @param failed whether the call failed (no response, timeout or 5xx)
+    * @param latencyNanos how long the call took
+    */
+   public synchronized void onResult(boolean failed, long latencyNanos) {
+      boolean slow = latencyNanos > slowCallNanos;
+      if (state == State.HALF_OPEN) {
+         probesInFlight = Math.max(0, probesInFlight - 1);
+         if (failed || slow) {
+            open();
+         } else if (++probeSuccesses >= halfOpenProbes) {
+            close();
+         }
+         return;
+      }
+      if (state == State.OPEN) {
+         return;
+      }
+
+      int i = bucket(System.nanoTime());
+      calls[i]++;
+      failures[i] += failed ? 1 : 0;
+      slowCalls[i] += slow ? 1 : 0;
+      long total = sum(calls);
+      if (total >= minimumCalls && (sum(failures) * 100 >= failureRateThreshold * total
+              || sum(slowCalls) * 100 >= slowRateThreshold * total)) {
+         open();
+      }
+   }
+
+   /**
+    * Gives back a permit from tryAcquire for a call that was never made.
+    */
+   public synchronized void onIgnored() {
+      if (state == State.HALF_OPEN) {
+         probesInFlight = Math.max(0, probesInFlight - 1);
+      }
+   }
+
+   public synchronized State getState() {
+      if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+         return State.HALF_OPEN;
+      }
+      return state;
+   }
+
+   private void open() {
+      state = State.OPEN;
+      openedAt = System.nanoTime();
+      opened.increment();
+   }
+
+   private void close() {
+      state = State.CLOSED;
+      for (int i = 0; i < bucketIds.length; i++) {
+         bucketIds[i] = 0;
+         calls[i] = 0;
+         failures[i] = 0;
+         slowCalls[i] = 0;
+      }
+   }
+
+   /**
+    * Returns the bucket for now, clearing it first if it last held an older second.
+    */
+   private int bucket(long now) {
+      long id = TimeUnit.NANOSECONDS.toSeconds(now);
+      int i = (int) Math.floorMod(id, (long) bucketIds.length);
+      if (bucketIds[i] != id) {
+         bucketIds[i] = id;
+         calls[i] = 0;
+         failures[i] = 0;
+         slowCalls[i] = 0;
+      }
+      return i;
+   }
+
+   /**
+    * Sums the buckets that still fall inside the window.
+    */
+   private long sum(int[] counts) {
+      long oldest = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime()) - bucketIds.length;
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+         if (bucketIds[i] > oldest) {
+            total += counts[i];
+         }
+      }
+      return total;
+   }
+
+   private synchronized long rate(int[] counts) {
+      long total = sum(calls);
+      return total == 0 ? 0 : sum(counts) * 100 / total;
+   }
+}
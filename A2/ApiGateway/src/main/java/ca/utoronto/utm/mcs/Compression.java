@@ -0,0 +1,271 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Response compression. Picks gzip or deflate from the client's Accept-Encoding and compresses
+ * text and JSON bodies above a size threshold. Bodies the backend already encoded are left
+ * alone. Deflater instances hold native memory and are costly to create, so they are pooled and
+ * reset between responses.
+ *
+ * Exported metrics: compression.responses, compression.bytesIn, compression.bytesOut
+ */
+public class Compression {
+   public static Compression shared = new Compression(true, 1024, Deflater.DEFAULT_COMPRESSION);
+
+   private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+   private final boolean enabled;
+   private final int minBytes;
+   private final int level;
+   private final ArrayBlockingQueue<Deflater> gzipDeflaters = new ArrayBlockingQueue<>(64);
+   private final ArrayBlockingQueue<Deflater> zlibDeflaters = new ArrayBlockingQueue<>(64);
+
+   private final LongAdder responses = Metrics.counter("compression.responses");
+   private final LongAdder bytesIn = Metrics.counter("compression.bytesIn");
+   private final LongAdder bytesOut = Metrics.counter("compression.bytesOut");
+
+   /**
+    * @param enabled whether to compress at all
+    * @param minBytes smallest body worth compressing
+    * @param level Deflater compression level
+    */
+   public Compression(boolean enabled, int minBytes, int level) {
+      this.enabled = enabled;
+      this.minBytes = minBytes;
+      this.level = level;
+   }
+
+   /**
+    * Replaces the shared instance with one built from compression.* settings.
+    * @param config gateway settings
+    */
+   public static void init(GatewayConfig config) {
+      shared = new Compression(config.getBoolean("compression.enabled", true),
+              config.getInt("compression.minBytes", 1024),
+              config.getInt("compression.level", Deflater.DEFAULT_COMPRESSION));
+   }
+
+   /**
+    * Decides how to encode a response.
+    * @param exchange the client exchange
+    * @param status response status
+    * @param headers response headers
+    * @param length body length, -1 if unknown
+    * @return "gzip" or "deflate", or null to send the body as it is
+    */
+   public String negotiate(HttpExchange exchange, int status, Map<String, List<String>> headers, long length) {
+      if (!enabled || status == 204 || status == 304 || exchange.getRequestMethod().equals("HEAD")
+              || (length >= 0 && length < minBytes) || first(headers, "Content-Encoding") != null
+              || !compressible(first(headers, "Content-Type"))) {
+         return null;
+      }
+      return accepted(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+   }
+
+   /**
+    * Wraps out so that everything written to it is compressed. Closing the returned stream
+    * finishes the encoding, returns the Deflater to the pool and closes out.
+    * @param out stream to write the encoded body to
+    * @param encoding "gzip" or "deflate"
+    * @return the compressing stream
+    */
+   public OutputStream wrap(OutputStream out, String encoding) throws IOException {
+      return new CompressingStream(out, encoding.equals("gzip"));
+   }
+
+   /**
+    * Compresses a whole body.
+    * @param body the body
+    * @param encoding "gzip" or "deflate"
+    * @return the encoded body
+    */
+   public byte[] compress(byte[] body, String encoding) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+      try (OutputStream stream = wrap(out, encoding)) {
+         stream.write(body);
+      }
+      return out.toByteArray();
+   }
+
+   /**
+    * Picks the encoding from an Accept-Encoding header, preferring gzip. Codings with q=0 are
+    * refused, and * only stands for the codings the header does not name.
+    */
+   static String accepted(String acceptEncoding) {
+      if (acceptEncoding == null) {
+         return null;
+      }
+      // q of each coding, -1 while it is not named
+      double gzip = -1;
+      double deflate = -1;
+      double any = -1;
+      for (String part : acceptEncoding.split(",")) {
+         String[] fields = part.trim().split(";");
+         String coding = fields[0].trim().toLowerCase();
+         double q = 1;
+         for (int i = 1; i < fields.length; i++) {
+            String param = fields[i].trim();
+            if (param.startsWith("q=")) {
+               try {
+                  q = Double.parseDouble(param.substring(2));
+               } catch (NumberFormatException e) {
+                  q = 0;
+               }
+            }
+         }
+         if (coding.equals("gzip") || coding.equals("x-gzip")) {
+            gzip = Math.max(gzip, q);
+         } else if (coding.equals("deflate")) {
+            deflate = Math.max(deflate, q);
+         } else if (coding.equals("*")) {
+            any = Math.max(any, q);
+         }
+      }
+      if ((gzip < 0 ? any : gzip) > 0) {
+         return "gzip";
+      }
+      return (deflate < 0 ? any : deflate) > 0 ? "deflate" : null;
+   }
+
+   private static boolean compressible(String contentType) {
+      if (contentType == null) {
+         return true;
+      }
+      String type = contentType.toLowerCase();
+      return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+              || type.contains("javascript");
+   }
+
+   private static String first(Map<String, List<String>> headers, String name) {
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+            return header.getValue().get(0);
+         }
+      }
+      return null;
+   }
+
+   private Deflater borrow(boolean gzip) {
+      Deflater deflater = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+      return deflater != null ? deflater : new Deflater(level, gzip);
+   }
+
+   private void giveBack(Deflater deflater, boolean gzip) {
+      deflater.reset();
+      if (!(gzip ? gzipDeflaters : zlibDeflaters).offer(deflater)) {
+         deflater.end();
+      }
+   }
+
+   /**
+    * Deflate stream over a pooled Deflater. For gzip the Deflater produces raw deflate data and
+    * the gzip header and trailer are written here.
+    */
+   private class CompressingStream extends OutputStream {
+      private final OutputStream out;
+      private final boolean gzip;
+      private final Deflater deflater;
+      private final CRC32 crc = new CRC32();
+      private final byte[] buffer = BufferPool.shared.acquire();
+      private final byte[] one = new byte[1];
+      private long written = 0;
+      private long size = 0;
+      private boolean closed = false;
+
+      CompressingStream(OutputStream out, boolean gzip) throws IOException {
+         this.out = out;
+         this.gzip = gzip;
+         this.deflater = borrow(gzip);
+         if (gzip) {
+            out.write(GZIP_HEADER);
+            written += GZIP_HEADER.length;
+         }
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         one[0] = (byte) b;
+         write(one, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return;
+         }
+         if (gzip) {
+            crc.update(b, off, len);
+         }
+         size += len;
+         deflater.setInput(b, off, len);
+         while (!deflater.needsInput()) {
+            drain(Deflater.NO_FLUSH);
+         }
+      }
+
+      @Override
+      public void flush() throws IOException {
+         if (!closed) {
+            drain(Deflater.SYNC_FLUSH);
+            out.flush();
+         }
+      }
+
+      @Override
+      public void close() throws IOException {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         try {
+            deflater.finish();
+            while (!deflater.finished()) {
+               drain(Deflater.NO_FLUSH);
+            }
+            if (gzip) {
+               byte[] trailer = new byte[8];
+               writeInt(trailer, 0, crc.getValue());
+               writeInt(trailer, 4, size);
+               out.write(trailer);
+               written += trailer.length;
+            }
+            responses.increment();
+            bytesIn.add(size);
+            bytesOut.add(written);
+         } finally {
+            giveBack(deflater, gzip);
+            BufferPool.shared.release(buffer);
+            out.close();
+         }
+      }
+
+      private void drain(int flush) throws IOException {
+         int n;
+         do {
+            n = deflater.deflate(buffer, 0, buffer.length, flush);
+            if (n > 0) {
+               out.write(buffer, 0, n);
+               written += n;
+            }
+         } while (n == buffer.length);
+      }
+
+      private void writeInt(byte[] b, int off, long value) {
+         b[off] = (byte) value;
+         b[off + 1] = (byte) (value >> 8);
+         b[off + 2] = (byte) (value >> 16);
+         b[off + 3] = (byte) (value >> 24);
+      }
+   }
+}
@@ -0,0 +1,249 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on concurrent calls to one backend, in the style of TCP Vegas. The limit follows
+ * the backend's measured response times: while calls take about as long as the fastest recently
+ * seen (the no-load RTT) there is no queue at the backend and the limit grows; once they take
+ * longer, the difference tells roughly how many calls are queued there and the limit shrinks.
+ * Timeouts and connection errors cut the limit straight away. The no-load RTT is re-measured every
+ * few hundred calls so the limit can recover after the backend's baseline changes.
+ *
+ * Calls over the limit wait briefly in one of two queues. Critical calls, such as in-progress trip
+ * updates, always get a free slot before ordinary ones and may wait longer; ordinary calls are
+ * shed with a 503 once their queue is full or their short wait is up.
+ *
+ * Exported metrics, prefixed with upstream.name.limit:
+ *   (the limit itself), .inFlight, .queued, .shed, .minRttUs
+ */
+public class ConcurrencyLimiter {
+   private static final String CRITICAL = ConcurrencyLimiter.class.getName() + ".critical";
+
+   private final String name;
+   private final int minLimit;
+   private final int maxLimit;
+   private final double smoothing;
+   private final long queueNanos;
+   private final long criticalQueueNanos;
+   private final int maxQueue;
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final ArrayDeque<Waiter> criticalWaiters = new ArrayDeque<>();
+   private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+   private double limit;
+   private int inFlight = 0;
+   private long minRtt = 0;
+   private long samples = 0;
+   private long probeAt;
+
+   private final LongAdder shed;
+
+   /**
+    * @param name backend name, used for metrics and error messages
+    * @param config gateway settings, read from upstream.name.limit.*
+    * @param maxLimit the highest the limit may grow, e.g. the backend's connection cap
+    */
+   public ConcurrencyLimiter(String name, GatewayConfig config, int maxLimit) {
+      this.name = name;
+      this.maxLimit = maxLimit;
+      this.minLimit = Math.min(maxLimit, config.upstreamInt(name, "limit.min", 4));
+      this.limit = Math.max(minLimit, Math.min(maxLimit, config.upstreamInt(name, "limit.initial", 20)));
+      this.smoothing = config.upstreamInt(name, "limit.smoothingPercent", 20) / 100.0;
+      this.queueNanos = TimeUnit.MILLISECONDS.toNanos(config.upstreamInt(name, "limit.queueMs", 50));
+      this.criticalQueueNanos = TimeUnit.MILLISECONDS.toNanos(config.upstreamInt(name, "limit.criticalQueueMs", 1000));
+      this.maxQueue = config.upstreamInt(name, "limit.maxQueue", 16);
+      this.probeAt = nextProbe();
+
+      String prefix = "upstream." + name + ".limit";
+      this.shed = Metrics.counter(prefix + ".shed");
+      Metrics.gauge(prefix, this::getLimit);
+      Metrics.gauge(prefix + ".inFlight", this::inFlight);
+      Metrics.gauge(prefix + ".queued", this::queued);
+      Metrics.gauge(prefix + ".minRttUs", () -> TimeUnit.NANOSECONDS.toMicros(minRtt));
+   }
+
+   /**
+    * Marks the exchange's backend calls as critical.
+    * @param exchange the client exchange
+    */
+   public static void markCritical(HttpExchange exchange) {
+      exchange.setAttribute(CRITICAL, Boolean.TRUE);
+   }
+
+   public static boolean isCritical(HttpExchange exchange) {
+      return exchange.getAttribute(CRITICAL) != null;
+   }
+
+   /**
+    * Takes a slot, waiting briefly if the backend is at its limit. Every successful call must be
+    * paired with release().
+    * @param critical whether the call goes ahead of ordinary calls
+    * @throws UpstreamException 503 if the call is shed
+    */
+   public void acquire(boolean critical) throws InterruptedException, UpstreamException {
+      lock.lock();
+      try {
+         if (inFlight < (int) limit && criticalWaiters.isEmpty() && (critical || waiters.isEmpty())) {
+            inFlight++;
+            return;
+         }
+         ArrayDeque<Waiter> queue = critical ? criticalWaiters : waiters;
+         if (!critical && queue.size() >= maxQueue) {
+            shed.increment();
+            throw new UpstreamException(503, name + " is overloaded");
+         }
+         Waiter waiter = new Waiter(lock.newCondition());
+         queue.addLast(waiter);
+         long nanos = critical ? criticalQueueNanos : queueNanos;
+         try {
+            while (!waiter.granted) {
+               if (nanos <= 0) {
+                  queue.remove(waiter);
+                  shed.increment();
+                  throw new UpstreamException(503, name + " is overloaded");
+               }
+               nanos = waiter.ready.awaitNanos(nanos);
+            }
+         } catch (InterruptedException e) {
+            if (waiter.granted) {
+               inFlight--;
+               grant();
+            } else {
+               queue.remove(waiter);
+            }
+            throw e;
+         }
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Takes a slot only if one is free right now and nobody is waiting.
+    * @return true if a slot was taken, in which case release() must follow
+    */
+   public boolean tryAcquire() {
+      lock.lock();
+      try {
+         if (inFlight < (int) limit && criticalWaiters.isEmpty() && waiters.isEmpty()) {
+            inFlight++;
+            return true;
+         }
+         return false;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public void release() {
+      lock.lock();
+      try {
+         inFlight--;
+         grant();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Adjusts the limit after a call. Calls that ended without saying anything about the
+    * backend, such as cancelled ones, should not be reported.
+    * @param rttNanos how long the call took
+    * @param dropped whether it timed out or could not reach the backend
+    */
+   public void onSample(long rttNanos, boolean dropped) {
+      lock.lock();
+      try {
+         if (++samples >= probeAt) {
+            // forget the no-load RTT so a backend that got slower for good is measured afresh
+            minRtt = 0;
+            probeAt = samples + nextProbe();
+         }
+         if (!dropped && (minRtt == 0 || rttNanos < minRtt)) {
+            minRtt = rttNanos;
+         }
+
+         double step = Math.max(1, Math.log10(limit));
+         double next = limit;
+         if (dropped) {
+            next = limit - step;
+         } else if (inFlight * 2 >= limit) {
+            // only a busy backend says anything about how much more it can take
+            double queued = limit * (1 - (double) minRtt / Math.max(rttNanos, 1));
+            if (queued <= step) {
+               next = limit + 3 * step;
+            } else if (queued < 3 * step) {
+               next = limit + step;
+            } else if (queued > 6 * step) {
+               next = limit - step;
+            }
+         }
+         next = Math.max(minLimit, Math.min(maxLimit, next));
+         limit = next < limit ? next : (1 - smoothing) * limit + smoothing * next;
+         grant();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public int getLimit() {
+      return (int) limit;
+   }
+
+   public int inFlight() {
+      lock.lock();
+      try {
+         return inFlight;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   public int queued() {
+      lock.lock();
+      try {
+         return criticalWaiters.size() + waiters.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Hands free slots to waiters, critical ones first. Must hold the lock.
+    */
+   private void grant() {
+      while (inFlight < (int) limit) {
+         Waiter next = criticalWaiters.poll();
+         if (next == null) {
+            next = waiters.poll();
+         }
+         if (next == null) {
+            return;
+         }
+         next.granted = true;
+         inFlight++;
+         next.ready.signal();
+      }
+   }
+
+   private long nextProbe() {
+      return 500 + ThreadLocalRandom.current().nextInt(500);
+   }
+
+   private static class Waiter {
+      final Condition ready;
+      boolean granted = false;
+
+      Waiter(Condition ready) {
+         this.ready = ready;
+      }
+   }
+}
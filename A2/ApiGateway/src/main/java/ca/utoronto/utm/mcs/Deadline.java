@@ -0,0 +1,65 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request deadline. The gateway gives every request request.timeoutMs, or less if the client
+ * asks for less in X-Request-Timeout-Ms, and every backend call made for the request is capped
+ * at the time left. The time left is sent on in the same header, so the backends can cap their
+ * own database calls and stop working on a request the gateway has already answered with 504.
+ */
+public class Deadline {
+   public static final String HEADER = "X-Request-Timeout-Ms";
+   private static final String ATTRIBUTE = Deadline.class.getName();
+
+   /**
+    * Sets the exchange's deadline.
+    * @param exchange the client exchange
+    * @param timeoutMs time allowed for the request if the client does not ask for less
+    */
+   public static void start(HttpExchange exchange, long timeoutMs) {
+      String header = exchange.getRequestHeaders().getFirst(HEADER);
+      if (header != null) {
+         try {
+            timeoutMs = Math.min(timeoutMs, Long.parseLong(header.trim()));
+         } catch (NumberFormatException e) {
+            // ignored, the default applies
+         }
+      }
+      exchange.setAttribute(ATTRIBUTE, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+   }
+
+   /**
+    * @return nanoseconds until the deadline, negative once it has passed, Long.MAX_VALUE if the
+    *         exchange has none
+    */
+   public static long remainingNanos(HttpExchange exchange) {
+      Object deadline = exchange.getAttribute(ATTRIBUTE);
+      return deadline == null ? Long.MAX_VALUE : (Long) deadline - System.nanoTime();
+   }
+
+   /**
+    * Caps a backend call's timeout at the time the request has left.
+    * @param timeout the call's own timeout
+    * @param remainingNanos time the request has left
+    * @param name backend name, for the error
+    * @return the shorter of the two
+    * @throws UpstreamException (504) if no time is left, so the call is not made at all
+    */
+   public static Duration cap(Duration timeout, long remainingNanos, String name) throws UpstreamException {
+      if (remainingNanos <= 0) {
+         throw new UpstreamException(504, "deadline passed before calling " + name);
+      }
+      return remainingNanos < timeout.toNanos() ? Duration.ofNanos(remainingNanos) : timeout;
+   }
+
+   /**
+    * @return the header value for a call with the given timeout, in whole milliseconds, at least 1
+    */
+   public static String headerValue(Duration timeout) {
+      return String.valueOf(Math.max(1, timeout.toMillis()));
+   }
+}
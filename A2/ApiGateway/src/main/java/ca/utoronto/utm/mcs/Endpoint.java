@@ -0,0 +1,72 @@
+package ca.utoronto.utm.mcs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One replica of a backend service. Tracks the calls currently outstanding against it for load
+ * balancing, and is ejected for a while after too many consecutive failures.
+ */
+public class Endpoint {
+   private final String url;
+   private final AtomicInteger outstanding = new AtomicInteger();
+   private final AtomicInteger consecutiveFailures = new AtomicInteger();
+   private volatile long ejectedUntil = 0;
+
+   /**
+    * @param url base url of the replica, e.g. http://locationmicroservice-2:8000
+    */
+   public Endpoint(String url) {
+      this.url = url;
+   }
+
+   public String getUrl() {
+      return url;
+   }
+
+   public int getOutstanding() {
+      return outstanding.get();
+   }
+
+   /**
+    * @param now current System.nanoTime()
+    * @return whether the replica may receive traffic
+    */
+   public boolean isAvailable(long now) {
+      return ejectedUntil - now <= 0;
+   }
+
+   /**
+    * Marks a call as started. Must be paired with end().
+    */
+   public void begin() {
+      outstanding.incrementAndGet();
+   }
+
+   public void end() {
+      outstanding.decrementAndGet();
+   }
+
+   public void onSuccess() {
+      consecutiveFailures.set(0);
+   }
+
+   /**
+    * Records a failed call, ejecting the replica once it has failed too many times in a row.
+    * @param maxFailures consecutive failures that trigger an ejection
+    * @param ejectNanos how long an ejection lasts
+    * @return true if this failure ejected the replica
+    */
+   public boolean onFailure(int maxFailures, long ejectNanos) {
+      if (consecutiveFailures.incrementAndGet() < maxFailures) {
+         return false;
+      }
+      consecutiveFailures.set(0);
+      ejectedUntil = System.nanoTime() + ejectNanos;
+      return true;
+   }
+
+   @Override
+   public String toString() {
+      return url;
+   }
+}
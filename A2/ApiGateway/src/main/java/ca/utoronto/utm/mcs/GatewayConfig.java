@@ -0,0 +1,126 @@
+package ca.utoronto.utm.mcs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gateway settings. Defaults come from gateway.properties on the classpath, then an
+ * optional file named by the GATEWAY_CONFIG environment variable, then environment
+ * variables, then system properties.
+ */
+public class GatewayConfig {
+   private final Properties properties;
+
+   public GatewayConfig(Properties properties) {
+      this.properties = properties;
+   }
+
+   /**
+    * Loads the bundled defaults and the file named by GATEWAY_CONFIG, if any.
+    * @return the loaded config
+    */
+   public static GatewayConfig load() throws IOException {
+      Properties properties = new Properties();
+      try (InputStream in = GatewayConfig.class.getResourceAsStream("/gateway.properties")) {
+         if (in != null) {
+            properties.load(in);
+         }
+      }
+      String file = System.getenv("GATEWAY_CONFIG");
+      if (file != null && !file.isEmpty()) {
+         try (Reader in = Files.newBufferedReader(Path.of(file))) {
+            properties.load(in);
+         }
+      }
+      return new GatewayConfig(properties);
+   }
+
+   /**
+    * Polls the file named by GATEWAY_CONFIG and hands the reloaded config to onChange whenever
+    * the file is modified. Does nothing if GATEWAY_CONFIG is not set. A file that fails to load
+    * is reported and skipped, so the last good config stays in use.
+    * @param intervalMs how often to check the file
+    * @param onChange called on a background thread with the new config
+    */
+   public static void watch(long intervalMs, Consumer<GatewayConfig> onChange) {
+      String file = System.getenv("GATEWAY_CONFIG");
+      if (file == null || file.isEmpty()) {
+         return;
+      }
+      Path path = Path.of(file);
+      ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "config-watcher");
+         thread.setDaemon(true);
+         return thread;
+      });
+      FileTime[] lastModified = {modifiedTime(path)};
+      timer.scheduleWithFixedDelay(() -> {
+         FileTime modified = modifiedTime(path);
+         if (modified == null || modified.equals(lastModified[0])) {
+            return;
+         }
+         lastModified[0] = modified;
+         try {
+            onChange.accept(load());
+            System.out.println("Reloaded " + path);
+         } catch (IOException | RuntimeException e) {
+            System.err.println("Could not reload " + path + ": " + e);
+         }
+      }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+   }
+
+   private static FileTime modifiedTime(Path path) {
+      try {
+         return Files.getLastModifiedTime(path);
+      } catch (IOException e) {
+         return null;
+      }
+   }
+
+   public String get(String key, String def) {
+      String value = System.getProperty(key);
+      if (value == null) {
+         value = System.getenv(key.toUpperCase().replace('.', '_'));
+      }
+      if (value == null) {
+         value = properties.getProperty(key);
+      }
+      return value == null ? def : value.trim();
+   }
+
+   public int getInt(String key, int def) {
+      return Integer.parseInt(get(key, String.valueOf(def)));
+   }
+
+   public long getLong(String key, long def) {
+      return Long.parseLong(get(key, String.valueOf(def)));
+   }
+
+   public boolean getBoolean(String key, boolean def) {
+      return Boolean.parseBoolean(get(key, String.valueOf(def)));
+   }
+
+   /**
+    * Looks up upstream.name.key, falling back to upstream.default.key.
+    * @param name backend name
+    * @param key setting name
+    * @param def value used when neither is set
+    * @return the setting
+    */
+   public String upstream(String name, String key, String def) {
+      return get("upstream." + name + "." + key, get("upstream.default." + key, def));
+   }
+
+   public int upstreamInt(String name, String key, int def) {
+      return Integer.parseInt(upstream(name, key, String.valueOf(def)));
+   }
+}
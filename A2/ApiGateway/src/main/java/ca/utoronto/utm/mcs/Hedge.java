@@ -0,0 +1,125 @@
+package ca.utoronto.utm.mcs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hedging policy for one idempotent GET route. If the backend has not answered by the route's
+ * recent p95 latency, Upstream.fetchHedged sends a second copy to another replica and uses
+ * whichever answers first.
+ *
+ * Latency is tracked in two histograms that swap every hedge.windowMs, so the delay follows the
+ * last full window rather than the whole uptime. Each request earns maxPercent/100 of a hedge,
+ * and a hedge spends a whole one, so at most maxPercent percent of requests are hedged over
+ * time, with a small burst allowance.
+ *
+ * Exported metrics, prefixed with hedge.name.:
+ *   requests, hedged, wins (the hedge answered first), delayUs, hedgeRate, winRate (percent)
+ */
+public class Hedge {
+   private static final long ONE = 100;
+
+   private final int percentile;
+   private final long minDelayNanos;
+   private final long minSamples;
+   private final long windowNanos;
+   private final int maxPercent;
+   private final long maxCredits;
+
+   private volatile LatencyHistogram current = new LatencyHistogram();
+   private volatile LatencyHistogram previous = new LatencyHistogram();
+   private volatile long windowStart = System.nanoTime();
+   private final AtomicLong credits = new AtomicLong();
+
+   private final LongAdder requests;
+   private final LongAdder hedged;
+   private final LongAdder wins;
+
+   /**
+    * @param name route name, used for metrics
+    * @param config gateway settings, read from hedge.*
+    */
+   public Hedge(String name, GatewayConfig config) {
+      this.percentile = config.getInt("hedge.percentile", 95);
+      this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("hedge.minDelayMs", 5));
+      this.minSamples = config.getLong("hedge.minSamples", 100);
+      this.windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("hedge.windowMs", 30000));
+      this.maxPercent = config.getInt("hedge.maxPercent", 10);
+      this.maxCredits = ONE * config.getInt("hedge.burst", 10);
+
+      String prefix = "hedge." + name + ".";
+      this.requests = Metrics.counter(prefix + "requests");
+      this.hedged = Metrics.counter(prefix + "hedged");
+      this.wins = Metrics.counter(prefix + "wins");
+      Metrics.gauge(prefix + "delayUs", () -> TimeUnit.NANOSECONDS.toMicros(delayNanos()));
+      Metrics.gauge(prefix + "hedgeRate", () -> percent(hedged.sum(), requests.sum()));
+      Metrics.gauge(prefix + "winRate", () -> percent(wins.sum(), hedged.sum()));
+   }
+
+   /**
+    * Counts a request and returns how long to wait before hedging it.
+    * @return delay in nanoseconds, or 0 if there is too little data to hedge yet
+    */
+   public long start() {
+      requests.increment();
+      credits.accumulateAndGet(maxPercent, (have, earned) -> Math.min(maxCredits, have + earned));
+      return delayNanos();
+   }
+
+   /**
+    * Takes a hedge from the budget.
+    * @return false if hedging now would exceed maxPercent
+    */
+   public boolean tryHedge() {
+      while (true) {
+         long have = credits.get();
+         if (have < ONE) {
+            return false;
+         }
+         if (credits.compareAndSet(have, have - ONE)) {
+            hedged.increment();
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Records the latency of a finished request.
+    * @param startNanos System.nanoTime() when the request started
+    * @param hedgeWon whether a hedge answered first
+    */
+   public void finish(long startNanos, boolean hedgeWon) {
+      rotate();
+      current.recordSince(startNanos);
+      if (hedgeWon) {
+         wins.increment();
+      }
+   }
+
+   long delayNanos() {
+      rotate();
+      LatencyHistogram histogram = previous.count() >= minSamples ? previous : current;
+      if (histogram.count() < minSamples) {
+         return 0;
+      }
+      return Math.max(minDelayNanos, TimeUnit.MICROSECONDS.toNanos(histogram.percentile(percentile)));
+   }
+
+   private void rotate() {
+      if (System.nanoTime() - windowStart < windowNanos) {
+         return;
+      }
+      synchronized (this) {
+         if (System.nanoTime() - windowStart >= windowNanos) {
+            previous = current;
+            current = new LatencyHistogram();
+            windowStart = System.nanoTime();
+         }
+      }
+   }
+
+   private static long percent(long part, long whole) {
+      return whole == 0 ? 0 : part * 100 / whole;
+   }
+}
@@ -0,0 +1,112 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe log-linear histogram of latencies in microseconds.
+ * Values below 128us are recorded exactly, larger values keep their top 7 bits,
+ * so every recorded value is accurate to within 1/64 (~1.6%).
+ */
+public class LatencyHistogram {
+   private static final int SUB_BITS = 7;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int HALF_COUNT = SUB_COUNT / 2;
+   private static final int MAX_SHIFT = 40;
+
+   private final AtomicLongArray counts = new AtomicLongArray(SUB_COUNT + MAX_SHIFT * HALF_COUNT);
+   private final AtomicLong total = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Records a single latency.
+    * @param micros latency in microseconds
+    */
+   public void record(long micros) {
+      long value = Math.max(0, micros);
+      counts.incrementAndGet(indexOf(value));
+      total.incrementAndGet();
+      sum.addAndGet(value);
+      max.accumulateAndGet(value, Math::max);
+   }
+
+   /**
+    * Records the time elapsed since a System.nanoTime() reading.
+    * @param startNanos start of the measured interval
+    */
+   public void recordSince(long startNanos) {
+      record((System.nanoTime() - startNanos) / 1000);
+   }
+
+   public long count() {
+      return total.get();
+   }
+
+   public long max() {
+      return max.get();
+   }
+
+   public double mean() {
+      long n = total.get();
+      return n == 0 ? 0 : (double) sum.get() / n;
+   }
+
+   /**
+    * Returns the value at the given percentile, rounded up to the top of its bucket.
+    * @param percentile percentile between 0 and 100
+    * @return latency in microseconds
+    */
+   public long percentile(double percentile) {
+      long n = total.get();
+      if (n == 0) {
+         return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+         seen += counts.get(i);
+         if (seen >= rank) {
+            return Math.min(highestValueAt(i), max.get());
+         }
+      }
+      return max.get();
+   }
+
+   /**
+    * Returns a summary of the histogram for the metrics endpoint.
+    * @return count, mean and percentiles in microseconds
+    */
+   public JSONObject toJSON() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("count", count());
+      json.put("meanUs", Math.round(mean()));
+      json.put("p50Us", percentile(50));
+      json.put("p90Us", percentile(90));
+      json.put("p99Us", percentile(99));
+      json.put("maxUs", max());
+      return json;
+   }
+
+   private static int indexOf(long value) {
+      if (value < SUB_COUNT) {
+         return (int) value;
+      }
+      int msb = 63 - Long.numberOfLeadingZeros(value);
+      int shift = Math.min(msb - (SUB_BITS - 1), MAX_SHIFT);
+      long mantissa = Math.min(value >>> shift, SUB_COUNT - 1);
+      return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (mantissa - HALF_COUNT);
+   }
+
+   private static long highestValueAt(int index) {
+      if (index < SUB_COUNT) {
+         return index;
+      }
+      int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+      long mantissa = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+      return ((mantissa + 1) << shift) - 1;
+   }
+}
@@ -0,0 +1,71 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide registry of counters, gauges and latency histograms, served as JSON
+ * from GET /metrics.
+ */
+public class Metrics implements HttpHandler {
+   private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+   private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+   private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+   public static LongAdder counter(String name) {
+      return counters.computeIfAbsent(name, k -> new LongAdder());
+   }
+
+   public static LatencyHistogram histogram(String name) {
+      return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+   }
+
+   /**
+    * Registers a gauge, replacing any gauge already registered under the name.
+    * @param name metric name
+    * @param value read every time the metrics are exported
+    */
+   public static void gauge(String name, LongSupplier value) {
+      gauges.put(name, value);
+   }
+
+   /**
+    * Returns every metric in a single JSON object keyed by metric name.
+    * @return the current values
+    */
+   public static JSONObject snapshot() throws JSONException {
+      JSONObject json = new JSONObject();
+      for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+         json.put(counter.getKey(), counter.getValue().sum());
+      }
+      for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+         json.put(gauge.getKey(), gauge.getValue().getAsLong());
+      }
+      for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+         json.put(histogram.getKey(), histogram.getValue().toJSON());
+      }
+      return json;
+   }
+
+   @Override
+   public void handle(HttpExchange exchange) throws IOException {
+      try {
+         if (exchange.getRequestMethod().equals("GET")) {
+            Utils.handleResponse(snapshot(), exchange, 200);
+         } else {
+            Utils.handleResponse(new JSONObject(), exchange, 405);
+         }
+      } catch (JSONException e) {
+         e.printStackTrace();
+         Utils.handleResponse(new JSONObject(), exchange, 500);
+      }
+   }
+}
@@ -0,0 +1,171 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Helpers for forwarding a client exchange to a backend without parsing it. The request body is
+ * streamed from the HttpExchange into the upstream request and the upstream body is
+ * streamed back through a pooled buffer, with headers copied as-is apart from the
+ * hop-by-hop ones. Routes that need to look at a body can still read it themselves
+ * with Utils.handleRequest before deciding where to send it.
+ */
+public class Proxy {
+   // headers that only describe a single hop, or that HttpClient manages itself
+   static final Set<String> HOP_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+           "transfer-encoding", "te", "trailer", "upgrade", "content-length", "host", "expect", "date",
+           "from", "via", "warning");
+   // uid of the caller's verified session token, set by the gateway only
+   public static final String USER_HEADER = "X-User-Id";
+   private static final String USER = Proxy.class.getName() + ".user";
+
+   /**
+    * Records the user a verified session token belongs to, so backend calls made for the
+    * exchange carry it in X-User-Id.
+    * @param exchange the client exchange
+    * @param uid the token's uid
+    */
+   public static void setUser(HttpExchange exchange, String uid) {
+      exchange.setAttribute(USER, uid);
+   }
+
+   /**
+    * The exchange's request headers as they are passed on to backends: any X-User-Id the client
+    * sent is dropped and replaced by the verified one, if there is one.
+    * @param exchange the client exchange
+    * @return a copy of the headers
+    */
+   public static Map<String, List<String>> requestHeaders(HttpExchange exchange) {
+      Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      headers.putAll(exchange.getRequestHeaders());
+      headers.remove(USER_HEADER);
+      Object uid = exchange.getAttribute(USER);
+      if (uid != null) {
+         headers.put(USER_HEADER, List.of((String) uid));
+      }
+      return headers;
+   }
+
+   /**
+    * Starts an upstream request carrying the exchange's method, headers and streamed body.
+    * @param exchange the client exchange
+    * @param url full upstream url including the query string
+    * @return request builder, ready to build
+    */
+   public static HttpRequest.Builder newRequest(HttpExchange exchange, String url) {
+      HttpRequest.Builder builder = HttpRequest.newBuilder().uri(URI.create(url));
+      copyRequestHeaders(exchange.getRequestHeaders(), builder);
+      Object uid = exchange.getAttribute(USER);
+      if (uid != null) {
+         builder.header(USER_HEADER, (String) uid);
+      }
+      return builder.method(exchange.getRequestMethod(), bodyOf(exchange));
+   }
+
+   /**
+    * Builds a publisher that streams the client's body, or no body when there is none.
+    * @param exchange the client exchange
+    * @return body publisher for the upstream request
+    */
+   static HttpRequest.BodyPublisher bodyOf(HttpExchange exchange) {
+      Headers headers = exchange.getRequestHeaders();
+      String length = headers.getFirst("Content-Length");
+      if (length != null) {
+         try {
+            long contentLength = Long.parseLong(length.trim());
+            if (contentLength == 0) {
+               return HttpRequest.BodyPublishers.noBody();
+            }
+            return HttpRequest.BodyPublishers.fromPublisher(
+                    HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody), contentLength);
+         } catch (NumberFormatException e) {
+            return HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody);
+         }
+      }
+      if (headers.containsKey("Transfer-Encoding")) {
+         return HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody);
+      }
+      return HttpRequest.BodyPublishers.noBody();
+   }
+
+   static void copyRequestHeaders(Headers from, HttpRequest.Builder to) {
+      for (Map.Entry<String, List<String>> header : from.entrySet()) {
+         if (HOP_HEADERS.contains(header.getKey().toLowerCase()) || header.getKey().equalsIgnoreCase(USER_HEADER)) {
+            continue;
+         }
+         for (String value : header.getValue()) {
+            to.header(header.getKey(), value);
+         }
+      }
+   }
+
+   static void copyResponseHeaders(HttpHeaders from, Headers to) {
+      to.putAll(responseHeaders(from));
+   }
+
+   /**
+    * Returns the backend's headers minus the hop-by-hop ones.
+    * @param from backend response headers
+    * @return headers to pass on to the client
+    */
+   static Map<String, List<String>> responseHeaders(HttpHeaders from) {
+      Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      for (Map.Entry<String, List<String>> header : from.map().entrySet()) {
+         String name = header.getKey();
+         if (name.startsWith(":") || HOP_HEADERS.contains(name.toLowerCase())) {
+            continue;
+         }
+         headers.put(name, new ArrayList<>(header.getValue()));
+      }
+      return headers;
+   }
+
+   /**
+    * Writes an upstream response to the client, streaming the body through a pooled buffer and
+    * compressing it if the client accepts it (see Compression).
+    * A failure while copying the body can only be reported by closing the exchange, so it is
+    * not rethrown.
+    * @param status upstream status code
+    * @param headers upstream headers
+    * @param body upstream body stream
+    * @param exchange the client exchange
+    */
+   static void relay(int status, HttpHeaders headers, InputStream body, HttpExchange exchange) throws IOException {
+      Map<String, List<String>> response = responseHeaders(headers);
+      long contentLength = headers.firstValueAsLong("Content-Length").orElse(-1);
+      boolean noBody = status == 204 || status == 304 || contentLength == 0
+              || exchange.getRequestMethod().equals("HEAD");
+      String encoding = noBody ? null : Compression.shared.negotiate(exchange, status, response, contentLength);
+      exchange.getResponseHeaders().putAll(response);
+      if (encoding != null) {
+         exchange.getResponseHeaders().set("Content-Encoding", encoding);
+         exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+         // the compressed length is not known up front, so the body goes out chunked
+         contentLength = 0;
+      }
+      // HttpServer uses -1 for an empty body and 0 for a chunked one
+      exchange.sendResponseHeaders(status, noBody ? -1 : Math.max(contentLength, 0));
+
+      try (InputStream in = body; OutputStream out = encoding == null ? exchange.getResponseBody()
+              : Compression.shared.wrap(exchange.getResponseBody(), encoding)) {
+         if (!noBody) {
+            BufferPool.shared.transfer(in, out);
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+         exchange.close();
+      }
+   }
+}
@@ -0,0 +1,104 @@
+package ca.utoronto.utm.mcs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket rate limits, one bucket per key (a client, or a client on a route).
+ *
+ * Each bucket is a single AtomicLong holding the time at which it will be full again (the
+ * "theoretical arrival time" form of a token bucket), so taking a token is one CAS and buckets
+ * need no locks. Buckets live in a ConcurrentHashMap. A full bucket behaves exactly like a
+ * missing one, so a background sweep drops buckets once they have refilled and sat idle.
+ *
+ * Exported metrics, prefixed with ratelimit.name.: allowed, throttled, buckets
+ */
+public class RateLimiter {
+   private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "ratelimit-sweeper");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+   private final long intervalNanos;
+   private final long burstNanos;
+   private final long idleNanos;
+   private final LongAdder allowed;
+   private final LongAdder throttled;
+
+   /**
+    * @param name limiter name, used for metrics
+    * @param perSecond tokens added per second
+    * @param burst bucket size, the most requests allowed at once
+    * @param idleMs how long a full bucket is kept before it is dropped
+    */
+   public RateLimiter(String name, double perSecond, int burst, long idleMs) {
+      this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+      this.burstNanos = intervalNanos * Math.max(1, burst);
+      this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+
+      String prefix = "ratelimit." + name + ".";
+      this.allowed = Metrics.counter(prefix + "allowed");
+      this.throttled = Metrics.counter(prefix + "throttled");
+      Metrics.gauge(prefix + "buckets", buckets::size);
+      sweeper.scheduleWithFixedDelay(this::sweep, idleMs, idleMs, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Builds the limiter configured under ratelimit.name.perSecond, .burst and
+    * ratelimit.idleMs.
+    * @param config gateway settings
+    * @param name limiter name
+    * @return the limiter, or null if perSecond is not set or not positive
+    */
+   public static RateLimiter fromConfig(GatewayConfig config, String name) {
+      double perSecond = Double.parseDouble(config.get("ratelimit." + name + ".perSecond", "0"));
+      if (perSecond <= 0) {
+         return null;
+      }
+      int burst = config.getInt("ratelimit." + name + ".burst", (int) Math.ceil(perSecond));
+      return new RateLimiter(name, perSecond, burst, config.getLong("ratelimit.idleMs", 60000));
+   }
+
+   /**
+    * Takes a token from key's bucket.
+    * @param key bucket key
+    * @return 0 if the request may go ahead, otherwise how many nanoseconds until it would
+    */
+   public long tryAcquire(String key) {
+      long now = System.nanoTime();
+      AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+      while (true) {
+         long fullAt = bucket.get();
+         // once its full time has passed a bucket is full, and stays full
+         long base = fullAt - now < 0 ? now : fullAt;
+         long next = base + intervalNanos;
+         long wait = next - now - burstNanos;
+         if (wait > 0) {
+            throttled.increment();
+            return wait;
+         }
+         if (bucket.compareAndSet(fullAt, next)) {
+            allowed.increment();
+            return 0;
+         }
+      }
+   }
+
+   /**
+    * Drops buckets that have been full for longer than the idle time.
+    */
+   void sweep() {
+      long now = System.nanoTime();
+      buckets.values().removeIf(bucket -> now - bucket.get() > idleNanos);
+   }
+
+   int size() {
+      return buckets.size();
+   }
+}
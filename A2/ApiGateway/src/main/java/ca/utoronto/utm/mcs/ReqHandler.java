@@ -2,121 +2,199 @@ package ca.utoronto.utm.mcs;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.http.HttpClient;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static ca.utoronto.utm.mcs.Utils.convert;
 
 public class ReqHandler implements HttpHandler {
-    public static String location = "http://locationmicroservice:8000";
-    public static String trip = "http://tripinfomicroservice:8000";
-    public static String user = "http://usermicroservice:8000";
+    private final Router<Route> router = new Router<>();
+    private final ResponseCache cache;
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final boolean coalescing;
+    private final RateLimiter clientLimiter;
+    private final String clientHeader;
+    private final Batch batch;
+    private final long requestTimeoutMs;
+    private final SessionToken tokens;
+
+    /**
+     * Builds the routing table. Upstream.init must have been called first.
+     * @param config gateway settings, used for cache sizes, TTLs, rate limits, the request deadline
+     *               and the session token secret
+     */
+    public ReqHandler(GatewayConfig config) {
+        cache = new ResponseCache(config.getInt("cache.maxEntries", 10000), config.getLong("cache.maxBytes", 64L << 20));
+        coalescing = config.getBoolean("coalesce.enabled", true);
+        clientLimiter = RateLimiter.fromConfig(config, "client");
+        clientHeader = config.get("ratelimit.clientHeader", "");
+        batch = new Batch(config);
+        requestTimeoutMs = config.getLong("request.timeoutMs", 10000);
+        String secret = config.get("token.secret", "");
+        tokens = secret.isEmpty() ? null : new SessionToken(secret.getBytes(StandardCharsets.UTF_8), 0);
+
+        // UserMicroservice
+        route("POST", "/user/register", Upstream.user);
+        route("POST", "/user/login", Upstream.user);
+        // many profiles at once: GET /user?ids=1,2,3, or POST /user {"ids": [...]} for long lists
+        route("GET", "/user", Upstream.user).coalesce();
+        route("POST", "/user", Upstream.user);
+        route("GET", "/user/{uid}", Upstream.user).cache(config.getLong("cache.user.ttlMs", 5000)).coalesce()
+                .hedge(hedge("user", config));
+        route("PATCH", "/user/{uid}", Upstream.user).invalidatesPath();
+        // coupon changes show up in a cached GET /user/{uid} once its cache.user.ttlMs runs out
+        route("GET", "/user/coupons", Upstream.user).coalesce();
+        route("GET", "/user/coupons/{uid}", Upstream.user);
+        route("POST", "/user/coupons/issue", Upstream.user);
+        route("POST", "/user/coupons/redeem", Upstream.user);
+        route("POST", "/user/rides", Upstream.user);
+        // LocationMicroservice
+        route("PUT", "/location/user", Upstream.location);
+        route("DELETE", "/location/user", Upstream.location);
+        route("GET", "/location/nearbyDriver/{uid}", Upstream.location).coalesce()
+                .rateLimit(RateLimiter.fromConfig(config, "nearbyDriver")).hedge(hedge("nearbyDriver", config));
+        route("PUT", "/location/road", Upstream.location);
+        route("POST", "/location/hasRoute", Upstream.location);
+        route("DELETE", "/location/route", Upstream.location);
+        route("GET", "/location/navigation/{driverUid}", Upstream.location).coalesce().hedge(hedge("navigation", config));
+        route("GET", "/location/{uid}", Upstream.location).cache(config.getLong("cache.location.ttlMs", 1000)).coalesce()
+                .hedge(hedge("location", config));
+        route("PATCH", "/location/{uid}", Upstream.location).invalidatesPath();
+        // TripInfoMicroservice
+        // fans out to the nearby driver query in Neo4j
+        route("POST", "/trip/request", Upstream.trip).rateLimit(RateLimiter.fromConfig(config, "tripRequest"));
+        // trips in progress go first when the trip service is at its concurrency limit
+        route("POST", "/trip/confirm", Upstream.trip).critical();
+        route("GET", "/trip/passenger/{uid}", Upstream.trip).cache(config.getLong("cache.tripPassenger.ttlMs", 5000)).coalesce()
+                .hedge(hedge("tripPassenger", config));
+        route("GET", "/trip/driver/{uid}", Upstream.trip).hedge(hedge("tripDriver", config));
+        route("GET", "/trip/driverTime/{id}", Upstream.trip).coalesce().hedge(hedge("driverTime", config));
+        route("GET", "/trip/{id}", Upstream.trip);
+        // trip, driver location, ETA and driver profile in one response
+        route("GET", "/trip/{id}/status", Upstream.trip).aggregate(new TripStatus(config));
+        // a trip update does not say which passenger it belongs to, so drop every trip history
+        route("PATCH", "/trip/{id}", Upstream.trip).invalidatesPrefix("/trip/passenger/").critical();
+    }
+
+    /**
+     * Checks the request's session token, if it has one, and records its uid for the backends.
+     * @return false if the token is malformed, forged or expired
+     */
+    private boolean authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (tokens == null || authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return true;
+        }
+        String uid = tokens.verify(authorization.substring(7).trim());
+        if (uid == null) {
+            return false;
+        }
+        Proxy.setUser(exchange, uid);
+        return true;
+    }
+
+    private Hedge hedge(String name, GatewayConfig config) {
+        return config.getBoolean("hedge.enabled", true) ? new Hedge(name, config) : null;
+    }
+
+    private Route route(String method, String pattern, Upstream upstream) {
+        Route route = new Route(method, pattern, upstream);
+        router.add(method, pattern, route);
+        return route;
+    }
 
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        String uri = exchange.getRequestURI().toString();
         JSONObject res = new JSONObject();
         try {
-            switch (uri) {
-                // UserMicroservice
-                case "/user/register":
-                    if (exchange.getRequestMethod().equals("POST")) {
-                        Utils.SendAndHandleRequestHttpClient(exchange, "POST", user + "/user/register", true);
-                    }
-                    break;
-                case "/user/login":
-                    if (exchange.getRequestMethod().equals("POST")) {
-                        Utils.SendAndHandleRequestHttpClient(exchange, "POST", user + "/user/login", true);
-                    }
-                    break;
-                case "/user/":
-                    if (exchange.getRequestMethod().equals("GET")) {
-                        Utils.SendAndHandleRequestHttpClient(exchange, "GET", user + "/user", false);
-                    }
-                    else if (exchange.getRequestMethod().equals("PATCH")) {
-                        Utils.SendAndHandleRequestHttpClient(exchange, "PATCH", user + "/user", true);
-                    }
-                    break;
-                // LocationMicroservice
-                case "/location/user":
-                    if (exchange.getRequestMethod().equals("PUT")) {
-                        Utils.SendAndHandleRequest(exchange, "PUT", location + exchange.getRequestURI(), true);
-                    }
-                    else if (exchange.getRequestMethod().equals("DELETE")) {
-                        Utils.SendAndHandleRequest(exchange, "DELETE", location + exchange.getRequestURI(), true);
-                    }
-                    break;
-                case "/location/nearbyDriver/":
-                    if (exchange.getRequestMethod().equals("GET")) {
-                        Utils.SendAndHandleRequest(exchange, "GET", location + exchange.getRequestURI() + "?" + exchange.getRequestURI().getQuery(), false);
-                    }
-                    break;
-                case "/location/road":
-                    if (exchange.getRequestMethod().equals("PUT")) {
-                        Utils.SendAndHandleRequest(exchange, "PUT", location + exchange.getRequestURI(), true);
-                    }
-                    break;
-                case "/location/hasRoute":
-                    if (exchange.getRequestMethod().equals("POST")) {
-                        Utils.SendAndHandleRequest(exchange, "POST", location + exchange.getRequestURI(), true);
-                    }
-                    break;
-                case "/location/route":
-                    if (exchange.getRequestMethod().equals("DELETE")) {
-                        Utils.SendAndHandleRequest(exchange, "DELETE", location + exchange.getRequestURI(), true);
-                    }
-                    break;
-                case "/location/navigation/":
-                    if (exchange.getRequestMethod().equals("GET")) {
-                        Utils.SendAndHandleRequest(exchange, "GET", location + exchange.getRequestURI() + "?" + exchange.getRequestURI().getQuery(), false);
-                    }
-                    break;
-                case "/location/":
-                    if (exchange.getRequestMethod().equals("GET")) {
-                        Utils.SendAndHandleRequest(exchange, "GET", location + exchange.getRequestURI(), false);
-                    }
-                    else if (exchange.getRequestMethod().equals("PATCH")) {
-                        Utils.SendAndHandleRequestHttpClient(exchange, "PATCH", location + exchange.getRequestURI(), true);
-                    }
-                    break;
-                // TripInfoMicroservice
-                case "/trip/request":
-                    if (exchange.getRequestMethod().equals("POST")) {
-                        Utils.SendAndHandleRequest(exchange, "POST", trip + exchange.getRequestURI(), true);
-                    }
-                    break;
-                case "/trip/confirm":
-                    if (exchange.getRequestMethod().equals("POST")) {
-                        Utils.SendAndHandleRequest(exchange, "POST", trip + exchange.getRequestURI(), true);
-                    }
-                    break;
-                case "/trip/passenger":
-                    if (exchange.getRequestMethod().equals("GET")) {
-                        Utils.SendAndHandleRequest(exchange, "GET", trip + exchange.getRequestURI(), false);
-                    }
-                    break;
-                case "/trip/driver":
-                    if (exchange.getRequestMethod().equals("GET")) {
-                        Utils.SendAndHandleRequest(exchange, "GET", trip + exchange.getRequestURI(), false);
-                    }
-                    break;
-                case "/trip/driverTime/":
-                    if (exchange.getRequestMethod().equals("GET")) {
-                        Utils.SendAndHandleRequest(exchange, "GET", trip + exchange.getRequestURI(), false);
-                    }
-                    break;
-                case "/trip/":
-                    if (exchange.getRequestMethod().equals("PATCH")) {
-                        Utils.SendAndHandleRequestHttpClient(exchange, "PATCH", trip + exchange.getRequestURI(), true);
-                    }
-                    break;
+            Deadline.start(exchange, requestTimeoutMs);
+            if (!authenticate(exchange)) {
+                res.put("status", "UNAUTHORIZED");
+                handleResponse(res, exchange, 401);
+                return;
+            }
+            if (exchange.getRequestURI().getRawPath().equals("/batch")) {
+                handleBatch(exchange);
+                return;
+            }
+            Router.Match<Route> match = router.match(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath());
+            if (match == null) {
+                res.put("status", "NOT FOUND");
+                handleResponse(res, exchange, 404);
+                return;
+            }
+            if (match.target() == null) {
+                exchange.getResponseHeaders().set("Allow", match.allowedMethods());
+                res.put("status", "METHOD NOT ALLOWED");
+                handleResponse(res, exchange, 405);
+                return;
+            }
+
+            Route route = match.target();
+            long waitNanos = throttle(exchange, route.getRateLimiter());
+            if (waitNanos > 0) {
+                tooManyRequests(exchange, waitNanos);
+                return;
+            }
+
+            if (route.isCritical()) {
+                ConcurrencyLimiter.markCritical(exchange);
+            }
+            if (route.getAggregate() != null) {
+                route.getAggregate().fetch(match, Proxy.requestHeaders(exchange), Deadline.remainingNanos(exchange),
+                        dispatcher(clientOf(exchange))).writeTo(exchange);
+                return;
+            }
+
+            // backends get the path and query exactly as the client sent them
+            String path = exchange.getRequestURI().getRawPath();
+            String query = exchange.getRequestURI().getRawQuery();
+            String pathAndQuery = path + (query == null ? "" : "?" + query);
+            if (route.getCacheTtlMs() > 0) {
+                serveCached(exchange, route, ResponseCache.key(path, query), pathAndQuery);
+            } else if (invalidates(route)) {
+                // buffered, so the cache is invalidated before the client sees the reply
+                invalidate(route, path);
+                BufferedResponse response;
+                try {
+                    response = route.getUpstream().fetch(exchange, pathAndQuery);
+                } finally {
+                    invalidate(route, path);
+                }
+                response.writeTo(exchange);
+            } else if (route.isCoalesce() || route.getHedge() != null) {
+                fetch(exchange, route, pathAndQuery).writeTo(exchange);
+            } else {
+                route.getUpstream().forward(exchange, pathAndQuery);
             }
+        } catch (UpstreamException e) {
+            // the gateway gave up on the backend before anything was sent to the client
+            try {
+                res.put("status", e.getStatus() == 504 ? "GATEWAY TIMEOUT" : "SERVICE UNAVAILABLE");
+            } catch (JSONException jsonException) {
+                jsonException.printStackTrace();
+            }
+            handleResponse(res, exchange, e.getStatus());
+        } catch (IOException e) {
+            // the backend could not be reached, nothing has been sent to the client yet
+            e.printStackTrace();
+            try {
+                res.put("status", "BAD GATEWAY");
+            } catch (JSONException jsonException) {
+                jsonException.printStackTrace();
+            }
+            handleResponse(res, exchange, 502);
         } catch (JSONException | InterruptedException e) {
             e.printStackTrace();
             try {
@@ -128,6 +206,205 @@ public class ReqHandler implements HttpHandler {
         }
     }
 
+    /**
+     * Applies the gateway wide and the route's per client rate limits.
+     * @param exchange the client exchange
+     * @param routeLimiter the matched route's limiter, may be null
+     * @return 0 if the request may go ahead, otherwise nanoseconds until it would be allowed
+     */
+    private long throttle(HttpExchange exchange, RateLimiter routeLimiter) {
+        if (clientLimiter == null && routeLimiter == null) {
+            return 0;
+        }
+        String client = clientOf(exchange);
+        long wait = clientLimiter == null ? 0 : clientLimiter.tryAcquire(client);
+        if (wait == 0 && routeLimiter != null) {
+            wait = routeLimiter.tryAcquire(client);
+        }
+        return wait;
+    }
+
+    /**
+     * Identifies the client for rate limiting: the ratelimit.clientHeader header if configured
+     * and present, otherwise the client's address.
+     */
+    private String clientOf(HttpExchange exchange) {
+        String client = clientHeader.isEmpty() ? null : exchange.getRequestHeaders().getFirst(clientHeader);
+        return client != null ? client : exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    private void tooManyRequests(HttpExchange exchange, long waitNanos) throws IOException, JSONException {
+        long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999));
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(seconds));
+        JSONObject res = new JSONObject();
+        res.put("status", "TOO MANY REQUESTS");
+        handleResponse(res, exchange, 429);
+    }
+
+    /**
+     * Handles POST /batch: a JSON array of sub-requests, or an object with a "requests" array.
+     * The batch counts once against the client's limit and each item against its route's.
+     * @param exchange the client exchange
+     */
+    private void handleBatch(HttpExchange exchange) throws IOException, JSONException, InterruptedException {
+        JSONObject res = new JSONObject();
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            res.put("status", "METHOD NOT ALLOWED");
+            handleResponse(res, exchange, 405);
+            return;
+        }
+        long waitNanos = throttle(exchange, null);
+        if (waitNanos > 0) {
+            tooManyRequests(exchange, waitNanos);
+            return;
+        }
+
+        JSONArray requests;
+        try {
+            String body = convert(exchange.getRequestBody()).trim();
+            requests = body.startsWith("[") ? new JSONArray(body) : new JSONObject(body).getJSONArray("requests");
+        } catch (JSONException e) {
+            requests = null;
+        }
+        if (requests == null || requests.length() == 0 || requests.length() > batch.getMaxRequests()) {
+            res.put("status", "BAD REQUEST");
+            handleResponse(res, exchange, 400);
+            return;
+        }
+
+        handleResponse(batch.execute(requests, Proxy.requestHeaders(exchange), Deadline.remainingNanos(exchange),
+                dispatcher(clientOf(exchange))), exchange, 200);
+    }
+
+    private Batch.Dispatcher dispatcher(String client) {
+        return (method, path, query, headers, body, timeout) -> dispatch(client, method, path, query, headers, body, timeout);
+    }
+
+    /**
+     * Sends one batch item or part of an aggregate through the routing table, with the route's
+     * rate limit, caching, coalescing and invalidation, and returns the buffered response.
+     */
+    private BufferedResponse dispatch(String client, String method, String path, String query,
+                                      Map<String, List<String>> headers, byte[] body, Duration timeout)
+            throws IOException, InterruptedException {
+        Router.Match<Route> match = router.match(method, path);
+        if (match == null) {
+            return statusResponse(404, "NOT FOUND");
+        }
+        Route route = match.target();
+        if (route == null) {
+            return statusResponse(405, "METHOD NOT ALLOWED");
+        }
+        if (route.getRateLimiter() != null && route.getRateLimiter().tryAcquire(client) > 0) {
+            return statusResponse(429, "TOO MANY REQUESTS");
+        }
+        if (route.getAggregate() != null) {
+            return route.getAggregate().fetch(match, headers, timeout.toNanos(), dispatcher(client));
+        }
+
+        String pathAndQuery = path + (query == null ? "" : "?" + query);
+        SingleFlight.Call call = () -> route.getUpstream().fetch(method, pathAndQuery, headers, body, timeout,
+                route.isCritical());
+        boolean get = method.equals("GET");
+        if (invalidates(route)) {
+            invalidate(route, path);
+            try {
+                return call.call();
+            } finally {
+                invalidate(route, path);
+            }
+        }
+        BufferedResponse res;
+        if (get && route.getCacheTtlMs() > 0) {
+            String key = ResponseCache.key(path, query);
+            res = cache.get(key);
+            if (res == null) {
+                long epoch = cache.epoch(key);
+                res = coalescing ? singleFlight.execute("GET " + pathAndQuery, call, timeout.toNanos()) : call.call();
+                if (res.getStatus() == 200) {
+                    cache.put(key, res, route.getCacheTtlMs(), epoch);
+                }
+            }
+        } else if (get && coalescing && route.isCoalesce()) {
+            res = singleFlight.execute("GET " + pathAndQuery, call, timeout.toNanos());
+        } else {
+            res = call.call();
+        }
+        return res;
+    }
+
+    private static boolean invalidates(Route route) {
+        return route.isInvalidatesPath() || route.getInvalidatesPrefix() != null;
+    }
+
+    /**
+     * Drops the cached responses a write replaces. Called both before the write is sent, so that
+     * a GET racing it cannot cache the old value, and after it, whether or not it succeeded, since
+     * the backend may have committed it anyway; the second call comes before the reply is written,
+     * so the client's next GET sees its own write.
+     */
+    private void invalidate(Route route, String path) {
+        if (route.isInvalidatesPath()) {
+            cache.invalidate(path);
+        }
+        if (route.getInvalidatesPrefix() != null) {
+            cache.invalidatePrefix(route.getInvalidatesPrefix());
+        }
+    }
+
+    private static BufferedResponse statusResponse(int status, String text) {
+        String body = "{\"status\":\"" + text + "\"}";
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Content-Type", List.of("application/json"));
+        return new BufferedResponse(status, headers, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Answers from the response cache, or fetches from the backend and caches a 200.
+     * @param exchange the client exchange
+     * @param route the matched route
+     * @param key cache key for the request
+     * @param pathAndQuery path on the backend, including the query string
+     */
+    private void serveCached(HttpExchange exchange, Route route, String key, String pathAndQuery)
+            throws IOException, InterruptedException {
+        BufferedResponse cached = cache.get(key);
+        if (cached != null) {
+            exchange.getResponseHeaders().set("X-Cache", "HIT");
+            cached.writeTo(exchange);
+            return;
+        }
+
+        long epoch = cache.epoch(key);
+        BufferedResponse res = fetch(exchange, route, pathAndQuery);
+        if (res.getStatus() == 200) {
+            cache.put(key, res, route.getCacheTtlMs(), epoch);
+        }
+        exchange.getResponseHeaders().set("X-Cache", "MISS");
+        res.writeTo(exchange);
+    }
+
+    /**
+     * Fetches the full backend response, sharing it with identical GETs already in flight
+     * and hedging slow GETs when the route allows it.
+     * @param exchange the client exchange
+     * @param route the matched route
+     * @param pathAndQuery path on the backend, including the query string
+     * @return the backend's response
+     */
+    private BufferedResponse fetch(HttpExchange exchange, Route route, String pathAndQuery)
+            throws IOException, InterruptedException {
+        boolean get = exchange.getRequestMethod().equals("GET");
+        SingleFlight.Call call = get && route.getHedge() != null
+                ? () -> route.getUpstream().fetchHedged(exchange, pathAndQuery, route.getHedge())
+                : () -> route.getUpstream().fetch(exchange, pathAndQuery);
+        if (coalescing && route.isCoalesce() && get) {
+            return singleFlight.execute("GET " + pathAndQuery, call, Deadline.remainingNanos(exchange));
+        }
+        return call.call();
+    }
+
     private HttpURLConnection getConnection(String endpoint, String method) throws IOException {
         URL url = new URL(endpoint);
         HttpURLConnection client = (HttpURLConnection) url.openConnection();
@@ -174,13 +451,7 @@ public class ReqHandler implements HttpHandler {
      * @param rCode Response code (200/400/404/500)
      */
     private void handleResponse(JSONObject outJSON, HttpExchange exchange, int rCode) throws IOException {
-        // saves code to output stream
-        OutputStream outputStream = exchange.getResponseBody();
-        exchange.sendResponseHeaders(rCode, outJSON.toString().getBytes().length);
-        outputStream.write(outJSON.toString().getBytes());
-
-        // close filereaders
-        outputStream.flush();
-        outputStream.close();
+        // goes through BufferedResponse so large replies such as batches get compressed
+        new BufferedResponse(rCode, new HashMap<>(), outJSON.toString().getBytes()).writeTo(exchange);
     }
 }
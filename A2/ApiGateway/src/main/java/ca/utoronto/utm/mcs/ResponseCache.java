@@ -0,0 +1,214 @@
+package ca.utoronto.utm.mcs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gateway side cache of GET responses with a TTL per entry, bounded by entry count and bytes.
+ *
+ * Entries are spread over independently locked LRU segments by path, so every variant of a path
+ * (different query strings) lives in one segment and can be invalidated together. Each segment
+ * keeps an epoch that moves on every invalidation; a response is only stored if its segment's
+ * epoch has not moved since the request started, so a read racing a write can never put the
+ * old value back.
+ *
+ * Exported metrics: cache.hits, cache.misses, cache.expired, cache.evictions,
+ * cache.invalidations, cache.entries, cache.bytes
+ */
+public class ResponseCache {
+   private static final int SEGMENTS = 16;
+
+   private final Segment[] segments = new Segment[SEGMENTS];
+   private final LongAdder hits = Metrics.counter("cache.hits");
+   private final LongAdder misses = Metrics.counter("cache.misses");
+   private final LongAdder expired = Metrics.counter("cache.expired");
+   private final LongAdder evictions = Metrics.counter("cache.evictions");
+   private final LongAdder invalidations = Metrics.counter("cache.invalidations");
+
+   /**
+    * @param maxEntries maximum number of cached responses
+    * @param maxBytes maximum total size of cached responses
+    */
+   public ResponseCache(int maxEntries, long maxBytes) {
+      for (int i = 0; i < SEGMENTS; i++) {
+         segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), Math.max(1, maxBytes / SEGMENTS));
+      }
+      Metrics.gauge("cache.entries", () -> {
+         long total = 0;
+         for (Segment segment : segments) {
+            synchronized (segment) {
+               total += segment.size();
+            }
+         }
+         return total;
+      });
+      Metrics.gauge("cache.bytes", () -> {
+         long total = 0;
+         for (Segment segment : segments) {
+            synchronized (segment) {
+               total += segment.bytes;
+            }
+         }
+         return total;
+      });
+   }
+
+   /**
+    * Builds the cache key for a request.
+    * @param path raw request path
+    * @param query raw query string, may be null
+    * @return the key
+    */
+   public static String key(String path, String query) {
+      int end = path.length();
+      while (end > 1 && path.charAt(end - 1) == '/') {
+         end--;
+      }
+      String trimmed = path.substring(0, end);
+      return query == null ? trimmed : trimmed + "?" + query;
+   }
+
+   /**
+    * @param key cache key
+    * @return the cached response, or null if missing or expired
+    */
+   public BufferedResponse get(String key) {
+      Segment segment = segmentFor(key);
+      synchronized (segment) {
+         CacheEntry entry = segment.get(key);
+         if (entry == null) {
+            misses.increment();
+            return null;
+         }
+         if (entry.expiresAt - System.nanoTime() <= 0) {
+            segment.remove(key);
+            segment.bytes -= entry.response.size();
+            expired.increment();
+            misses.increment();
+            return null;
+         }
+         hits.increment();
+         return entry.response;
+      }
+   }
+
+   /**
+    * Reads the epoch to pass to put() once the response arrives. Must be called before the
+    * backend request is sent.
+    * @param key cache key
+    * @return the key's current epoch
+    */
+   public long epoch(String key) {
+      Segment segment = segmentFor(key);
+      synchronized (segment) {
+         return segment.epoch;
+      }
+   }
+
+   /**
+    * Stores a response unless an invalidation happened after epoch was read.
+    * @param key cache key
+    * @param response response to store
+    * @param ttlMs how long the response stays fresh
+    * @param epoch value of epoch(key) taken before the request was sent
+    */
+   public void put(String key, BufferedResponse response, long ttlMs, long epoch) {
+      Segment segment = segmentFor(key);
+      synchronized (segment) {
+         if (segment.epoch != epoch || response.size() > segment.maxBytes) {
+            return;
+         }
+         CacheEntry previous = segment.put(key, new CacheEntry(response, System.nanoTime() + ttlMs * 1_000_000));
+         if (previous != null) {
+            segment.bytes -= previous.response.size();
+         }
+         segment.bytes += response.size();
+         segment.trim();
+      }
+   }
+
+   /**
+    * Drops every cached variant of a path.
+    * @param path raw request path
+    */
+   public void invalidate(String path) {
+      String base = key(path, null);
+      Segment segment = segmentFor(base);
+      synchronized (segment) {
+         segment.epoch++;
+         segment.removeMatching(base, false);
+      }
+      invalidations.increment();
+   }
+
+   /**
+    * Drops every cached path starting with prefix.
+    * @param prefix path prefix, e.g. /trip/passenger/
+    */
+   public void invalidatePrefix(String prefix) {
+      for (Segment segment : segments) {
+         synchronized (segment) {
+            segment.epoch++;
+            segment.removeMatching(prefix, true);
+         }
+      }
+      invalidations.increment();
+   }
+
+   private Segment segmentFor(String key) {
+      int end = key.indexOf('?');
+      int hash = (end < 0 ? key : key.substring(0, end)).hashCode();
+      return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+   }
+
+   private static class CacheEntry {
+      final BufferedResponse response;
+      final long expiresAt;
+
+      CacheEntry(BufferedResponse response, long expiresAt) {
+         this.response = response;
+         this.expiresAt = expiresAt;
+      }
+   }
+
+   /**
+    * Access ordered map, so iteration starts at the least recently used entry.
+    */
+   private class Segment extends LinkedHashMap<String, CacheEntry> {
+      final int maxEntries;
+      final long maxBytes;
+      long bytes = 0;
+      long epoch = 0;
+
+      Segment(int maxEntries, long maxBytes) {
+         super(16, 0.75f, true);
+         this.maxEntries = maxEntries;
+         this.maxBytes = maxBytes;
+      }
+
+      void trim() {
+         Iterator<Map.Entry<String, CacheEntry>> it = entrySet().iterator();
+         while ((size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            bytes -= it.next().getValue().response.size();
+            it.remove();
+            evictions.increment();
+         }
+      }
+
+      void removeMatching(String path, boolean prefix) {
+         Iterator<Map.Entry<String, CacheEntry>> it = entrySet().iterator();
+         while (it.hasNext()) {
+            Map.Entry<String, CacheEntry> entry = it.next();
+            String key = entry.getKey();
+            boolean matches = prefix ? key.startsWith(path)
+                    : key.equals(path) || (key.startsWith(path) && key.charAt(path.length()) == '?');
+            if (matches) {
+               bytes -= entry.getValue().response.size();
+               it.remove();
+            }
+         }
+      }
+   }
+}
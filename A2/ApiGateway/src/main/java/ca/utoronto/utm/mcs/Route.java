@@ -0,0 +1,153 @@
+package ca.utoronto.utm.mcs;
+
+/**
+ * A gateway route: the method and path pattern clients call and the backend that serves it.
+ */
+public class Route {
+   private final String method;
+   private final String pattern;
+   private final Upstream upstream;
+   private long cacheTtlMs = 0;
+   private boolean invalidatesPath = false;
+   private String invalidatesPrefix = null;
+   private boolean coalesce = false;
+   private RateLimiter rateLimiter = null;
+   private Hedge hedge = null;
+   private Aggregate aggregate = null;
+   private boolean critical = false;
+
+   public Route(String method, String pattern, Upstream upstream) {
+      this.method = method;
+      this.pattern = pattern;
+      this.upstream = upstream;
+   }
+
+   /**
+    * Caches successful responses of this route in the gateway.
+    * @param ttlMs how long a response stays fresh, 0 to disable
+    * @return this route
+    */
+   public Route cache(long ttlMs) {
+      this.cacheTtlMs = ttlMs;
+      return this;
+   }
+
+   /**
+    * Makes this route drop cached responses for the same path, e.g. PATCH /user/{uid}
+    * invalidating GET /user/{uid}.
+    * @return this route
+    */
+   public Route invalidatesPath() {
+      this.invalidatesPath = true;
+      return this;
+   }
+
+   /**
+    * Makes this route drop every cached response under a path prefix.
+    * @param prefix path prefix, e.g. /trip/passenger/
+    * @return this route
+    */
+   public Route invalidatesPrefix(String prefix) {
+      this.invalidatesPrefix = prefix;
+      return this;
+   }
+
+   public String getMethod() {
+      return method;
+   }
+
+   public String getPattern() {
+      return pattern;
+   }
+
+   /**
+    * Lets identical concurrent GETs on this route share one backend call.
+    * @return this route
+    */
+   public Route coalesce() {
+      this.coalesce = true;
+      return this;
+   }
+
+   /**
+    * Limits how often each client may call this route, on top of the gateway wide limit.
+    * @param rateLimiter the route's limiter, null for no limit
+    * @return this route
+    */
+   public Route rateLimit(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+      return this;
+   }
+
+   public RateLimiter getRateLimiter() {
+      return rateLimiter;
+   }
+
+   /**
+    * Hedges this route's GETs: a slow request is sent again to another replica.
+    * @param hedge the route's hedging policy, null to never hedge
+    * @return this route
+    */
+   public Route hedge(Hedge hedge) {
+      this.hedge = hedge;
+      return this;
+   }
+
+   public Hedge getHedge() {
+      return hedge;
+   }
+
+   /**
+    * Lets this route's calls go ahead of ordinary ones, and wait longer, when the backend is at
+    * its concurrency limit; for requests that belong to a trip in progress.
+    * @return this route
+    */
+   public Route critical() {
+      this.critical = true;
+      return this;
+   }
+
+   public boolean isCritical() {
+      return critical;
+   }
+
+   /**
+    * Answers this route in the gateway by combining several backend calls instead of forwarding
+    * the request.
+    * @param aggregate builds the response
+    * @return this route
+    */
+   public Route aggregate(Aggregate aggregate) {
+      this.aggregate = aggregate;
+      return this;
+   }
+
+   public Aggregate getAggregate() {
+      return aggregate;
+   }
+
+   public Upstream getUpstream() {
+      return upstream;
+   }
+
+   public long getCacheTtlMs() {
+      return cacheTtlMs;
+   }
+
+   public boolean isInvalidatesPath() {
+      return invalidatesPath;
+   }
+
+   public String getInvalidatesPrefix() {
+      return invalidatesPrefix;
+   }
+
+   public boolean isCoalesce() {
+      return coalesce;
+   }
+
+   @Override
+   public String toString() {
+      return method + " " + pattern;
+   }
+}
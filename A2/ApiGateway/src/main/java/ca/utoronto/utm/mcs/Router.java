@@ -0,0 +1,190 @@
+package ca.utoronto.utm.mcs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Routing table compiled into a trie of path segments. Patterns are literal segments and
+ * {name} captures, e.g. /trip/passenger/{uid}. Lookups walk the path in place one segment
+ * at a time, so they cost O(segments), use no regex and allocate nothing but the result.
+ * Literal segments win over captures, and empty segments are ignored, so /user/ and /user
+ * are the same route. The query string is not part of the match.
+ * @param <T> what a route resolves to
+ */
+public class Router<T> {
+   private final Node<T> root = new Node<>(null);
+   private int maxParams = 0;
+
+   /**
+    * Adds a route.
+    * @param method HTTP method the route answers
+    * @param pattern path pattern, e.g. /location/nearbyDriver/{uid}
+    * @param target value returned when the route matches
+    */
+   public void add(String method, String pattern, T target) {
+      Node<T> node = root;
+      List<String> params = new ArrayList<>();
+      for (String segment : pattern.split("/")) {
+         if (segment.isEmpty()) {
+            continue;
+         }
+         if (segment.startsWith("{") && segment.endsWith("}")) {
+            if (node.param == null) {
+               node.param = new Node<>(null);
+            }
+            node = node.param;
+            params.add(segment.substring(1, segment.length() - 1));
+         } else {
+            node = node.child(segment);
+         }
+      }
+      node.add(method, target, params.toArray(new String[0]));
+      maxParams = Math.max(maxParams, params.size());
+   }
+
+   /**
+    * Looks up the route for a request.
+    * @param method request method
+    * @param path raw request path, without the query string
+    * @return the match; null if no route has this path. When the path exists but not for
+    *         this method the match has no target and lists the allowed methods instead.
+    */
+   public Match<T> match(String method, String path) {
+      Match<T> match = new Match<>(path, new int[maxParams * 2]);
+      if (walk(root, path, skipSlashes(path, 0), method, match, 0) || match.allowed != null) {
+         return match;
+      }
+      return null;
+   }
+
+   @SuppressWarnings("unchecked")
+   private boolean walk(Node<T> node, String path, int pos, String method, Match<T> match, int params) {
+      if (pos == path.length()) {
+         for (int i = 0; i < node.methods.length; i++) {
+            if (node.methods[i].equals(method)) {
+               match.target = (T) node.targets[i];
+               match.names = node.paramNames[i];
+               return true;
+            }
+         }
+         if (node.methods.length > 0 && match.allowed == null) {
+            match.allowed = String.join(", ", node.methods);
+         }
+         return false;
+      }
+
+      int end = path.indexOf('/', pos);
+      if (end < 0) {
+         end = path.length();
+      }
+      int next = skipSlashes(path, end);
+      int length = end - pos;
+      for (Node<T> child : node.children) {
+         if (child.segment.length() == length && path.regionMatches(pos, child.segment, 0, length)
+                 && walk(child, path, next, method, match, params)) {
+            return true;
+         }
+      }
+      if (node.param != null) {
+         match.bounds[params * 2] = pos;
+         match.bounds[params * 2 + 1] = end;
+         return walk(node.param, path, next, method, match, params + 1);
+      }
+      return false;
+   }
+
+   private static int skipSlashes(String path, int pos) {
+      while (pos < path.length() && path.charAt(pos) == '/') {
+         pos++;
+      }
+      return pos;
+   }
+
+   /**
+    * Result of a lookup. Captured parameters are kept as offsets into the path and only
+    * turned into strings when read.
+    * @param <T> what a route resolves to
+    */
+   public static class Match<T> {
+      private final String path;
+      private final int[] bounds;
+      private T target;
+      private String[] names;
+      private String allowed;
+
+      Match(String path, int[] bounds) {
+         this.path = path;
+         this.bounds = bounds;
+      }
+
+      /**
+       * @return the matched route, or null when only the method did not match
+       */
+      public T target() {
+         return target;
+      }
+
+      /**
+       * @return comma separated methods the path does answer, for a 405 Allow header
+       */
+      public String allowedMethods() {
+         return allowed;
+      }
+
+      /**
+       * @param name parameter name from the pattern
+       * @return the captured path segment, or null if the pattern has no such parameter
+       */
+      public String param(String name) {
+         for (int i = 0; names != null && i < names.length; i++) {
+            if (names[i].equals(name)) {
+               return path.substring(bounds[i * 2], bounds[i * 2 + 1]);
+            }
+         }
+         return null;
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private static class Node<T> {
+      final String segment;
+      Node<T>[] children = new Node[0];
+      Node<T> param;
+      String[] methods = new String[0];
+      Object[] targets = new Object[0];
+      String[][] paramNames = new String[0][];
+
+      Node(String segment) {
+         this.segment = segment;
+      }
+
+      Node<T> child(String segment) {
+         for (Node<T> child : children) {
+            if (child.segment.equals(segment)) {
+               return child;
+            }
+         }
+         Node<T> child = new Node<>(segment);
+         children = Arrays.copyOf(children, children.length + 1);
+         children[children.length - 1] = child;
+         return child;
+      }
+
+      void add(String method, T target, String[] names) {
+         for (int i = 0; i < methods.length; i++) {
+            if (methods[i].equals(method)) {
+               targets[i] = target;
+               paramNames[i] = names;
+               return;
+            }
+         }
+         methods = Arrays.copyOf(methods, methods.length + 1);
+         targets = Arrays.copyOf(targets, targets.length + 1);
+         paramNames = Arrays.copyOf(paramNames, paramNames.length + 1);
+         methods[methods.length - 1] = method;
+         targets[targets.length - 1] = target;
+         paramNames[paramNames.length - 1] = names;
+      }
+   }
+}
@@ -0,0 +1,83 @@
+package ca.utoronto.utm.mcs;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses identical concurrent backend calls into one. The first caller for a key makes the
+ * call; everyone who asks for the same key while it is in flight waits for and shares its
+ * response. Nothing is kept once the call completes, so a response is never older than the
+ * request that produced it.
+ *
+ * Exported metrics: coalesce.leaders, coalesce.followers, coalesce.inFlight
+ */
+public class SingleFlight {
+   private final ConcurrentHashMap<String, CompletableFuture<BufferedResponse>> inFlight = new ConcurrentHashMap<>();
+   private final LongAdder leaders = Metrics.counter("coalesce.leaders");
+   private final LongAdder followers = Metrics.counter("coalesce.followers");
+
+   public SingleFlight() {
+      Metrics.gauge("coalesce.inFlight", inFlight::size);
+   }
+
+   /**
+    * A backend call whose response can be shared.
+    */
+   public interface Call {
+      BufferedResponse call() throws IOException, InterruptedException;
+   }
+
+   /**
+    * Runs call, or joins the identical call already in flight.
+    * @param key identity of the request, e.g. method, path and query
+    * @param call the backend call
+    * @param timeoutNanos time this caller has left; a follower stops waiting for the leader then,
+    *                     since the leader's call runs on the leader's deadline
+    * @return the shared response
+    * @throws UpstreamException (504) if a follower's time runs out first
+    */
+   public BufferedResponse execute(String key, Call call, long timeoutNanos) throws IOException, InterruptedException {
+      CompletableFuture<BufferedResponse> mine = new CompletableFuture<>();
+      CompletableFuture<BufferedResponse> existing = inFlight.putIfAbsent(key, mine);
+      if (existing != null) {
+         followers.increment();
+         return await(existing, timeoutNanos);
+      }
+
+      leaders.increment();
+      try {
+         BufferedResponse res = call.call();
+         mine.complete(res);
+         return res;
+      } catch (IOException | InterruptedException | RuntimeException e) {
+         mine.completeExceptionally(e);
+         throw e;
+      } finally {
+         inFlight.remove(key, mine);
+      }
+   }
+
+   private static BufferedResponse await(CompletableFuture<BufferedResponse> future, long timeoutNanos)
+           throws IOException, InterruptedException {
+      try {
+         return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+         throw new UpstreamException(504, "deadline passed waiting for a shared request");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof IOException) {
+            throw (IOException) cause;
+         }
+         if (cause instanceof InterruptedException) {
+            // the leader was interrupted, not us
+            throw new UpstreamException(503, "shared request was interrupted");
+         }
+         throw new IOException(cause);
+      }
+   }
+}
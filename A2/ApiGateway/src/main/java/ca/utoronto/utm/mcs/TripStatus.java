@@ -0,0 +1,183 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * GET /trip/{id}/status: everything a client needs to show a live trip in one round trip.
+ *
+ * The trip is looked up first, since the other parts need its driver and passenger. Then the
+ * driver's location, the ETA from the driver to the passenger and the driver's profile are
+ * fetched in parallel. The trip is required; the other parts are not. A part that fails or has
+ * not answered within tripStatus.partTimeoutMs is left out and listed under "missing", and the
+ * rest is still returned. A part still running then is cancelled, which interrupts its request,
+ * so it does not keep one of the tripStatus.threads threads busy after nobody needs its answer:
+ * {"status": "OK", "data": {"trip": ..., "location": ..., "eta": {"arrival_time": ...}, "driver": ...},
+ *  "missing": []}
+ *
+ * Exported metrics: tripStatus.requests, tripStatus.degraded, tripStatus.latency
+ */
+public class TripStatus implements Aggregate {
+   private static final byte[] NO_BODY = new byte[0];
+
+   private final long partTimeoutNanos;
+   private final ExecutorService executor;
+
+   private final LongAdder requests = Metrics.counter("tripStatus.requests");
+   private final LongAdder degraded = Metrics.counter("tripStatus.degraded");
+   private final LatencyHistogram latency = Metrics.histogram("tripStatus.latency");
+
+   /**
+    * @param config gateway settings, read from tripStatus.*
+    */
+   public TripStatus(GatewayConfig config) {
+      this.partTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("tripStatus.partTimeoutMs", 1000));
+      AtomicInteger count = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(config.getInt("tripStatus.threads", 16), runnable -> {
+         Thread thread = new Thread(runnable, "trip-status-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   @Override
+   public BufferedResponse fetch(Router.Match<Route> match, Map<String, List<String>> headers, long remainingNanos,
+                                 Batch.Dispatcher dispatcher) throws IOException, InterruptedException {
+      long start = System.nanoTime();
+      requests.increment();
+      try {
+         Map<String, List<String>> shared = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+         shared.putAll(headers);
+         // the gateway has to be able to read every part, and each part gets its own deadline
+         shared.remove("Content-Type");
+         shared.remove("Accept-Encoding");
+         shared.remove(Deadline.HEADER);
+
+         BufferedResponse trip = dispatcher.dispatch("GET", "/trip/" + match.param("id"), null, shared, NO_BODY,
+                 Duration.ofNanos(remainingNanos));
+         if (trip.getStatus() != 200) {
+            return trip;
+         }
+         JSONObject tripData = parse(trip).getJSONObject("data");
+         String driver = tripData.optString("driver");
+         String passenger = tripData.optString("passenger");
+
+         long partNanos = Math.min(partTimeoutNanos, remainingNanos - (System.nanoTime() - start));
+         Map<String, Future<BufferedResponse>> parts = new LinkedHashMap<>();
+         JSONObject data = new JSONObject();
+         JSONArray missing = new JSONArray();
+         try {
+            parts.put("location", part(dispatcher, "/location/" + driver, null, shared, partNanos));
+            parts.put("eta", part(dispatcher, "/location/navigation/" + driver,
+                    "passengerUid=" + URLEncoder.encode(passenger, StandardCharsets.UTF_8), shared, partNanos));
+            parts.put("driver", part(dispatcher, "/user/" + driver, null, shared, partNanos));
+            long partDeadline = System.nanoTime() + partNanos;
+            for (Future<BufferedResponse> part : parts.values()) {
+               try {
+                  part.get(Math.max(0, partDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+               } catch (TimeoutException e) {
+                  // out of time; whatever is missing is reported below
+                  break;
+               } catch (ExecutionException | CancellationException e) {
+                  // reported below
+               }
+            }
+
+            data.put("trip", tripData);
+            for (Map.Entry<String, Future<BufferedResponse>> part : parts.entrySet()) {
+               JSONObject value = valueOf(part.getKey(), part.getValue());
+               if (value == null) {
+                  missing.put(part.getKey());
+               } else {
+                  data.put(part.getKey(), value);
+               }
+            }
+         } finally {
+            // interrupts the parts still running; the finished ones are unaffected
+            for (Future<BufferedResponse> part : parts.values()) {
+               part.cancel(true);
+            }
+         }
+         if (missing.length() > 0) {
+            degraded.increment();
+         }
+
+         JSONObject res = new JSONObject();
+         res.put("status", "OK");
+         res.put("data", data);
+         res.put("missing", missing);
+         Map<String, List<String>> resHeaders = new HashMap<>();
+         resHeaders.put("Content-Type", List.of("application/json"));
+         return new BufferedResponse(200, resHeaders, res.toString().getBytes(StandardCharsets.UTF_8));
+      } catch (JSONException e) {
+         throw new IOException("tripinfomicroservice sent an unreadable trip", e);
+      } finally {
+         latency.recordSince(start);
+      }
+   }
+
+   /**
+    * Submitted to the pool rather than run with CompletableFuture.supplyAsync, whose cancel does
+    * not interrupt the thread running it.
+    */
+   private Future<BufferedResponse> part(Batch.Dispatcher dispatcher, String path, String query,
+                                         Map<String, List<String>> headers, long timeoutNanos) {
+      if (timeoutNanos <= 0) {
+         return CompletableFuture.failedFuture(new UpstreamException(504, "no time left for " + path));
+      }
+      return executor.submit(() -> dispatcher.dispatch("GET", path, query, headers, NO_BODY, Duration.ofNanos(timeoutNanos)));
+   }
+
+   /**
+    * @return what the response includes for a part, or null if the part is missing
+    */
+   private static JSONObject valueOf(String name, Future<BufferedResponse> part) {
+      if (part.state() != Future.State.SUCCESS) {
+         return null;
+      }
+      try {
+         BufferedResponse res = part.resultNow();
+         if (res.getStatus() != 200) {
+            return null;
+         }
+         JSONObject body = parse(res);
+         JSONObject data = body.optJSONObject("data");
+         if (data == null) {
+            // GET /user/{uid} answers with the profile itself
+            body.remove("status");
+            data = body;
+         }
+         if (name.equals("eta")) {
+            return new JSONObject().put("arrival_time", data.get("total_time"));
+         }
+         return data;
+      } catch (JSONException e) {
+         return null;
+      }
+   }
+
+   private static JSONObject parse(BufferedResponse res) throws JSONException {
+      return new JSONObject(new String(res.getBody(), StandardCharsets.UTF_8));
+   }
+}
@@ -0,0 +1,569 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client for one backend service. Each backend gets its own HttpClient and executor, so
+ * connections are kept alive and reused per service, and a bulkhead bounds how many calls
+ * (and therefore connections) can be open against it at once, so one slow backend cannot hold
+ * every gateway thread. Within that cap an adaptive limit follows the backend's response times,
+ * see ConcurrencyLimiter, and sheds ordinary calls first when the backend is saturated. A
+ * circuit breaker in front of both fails calls fast while the backend is erroring or too slow.
+ *
+ * A backend may run as several replicas, listed comma separated in upstream.name.url. Each call
+ * goes to the less busy of two randomly picked replicas (power of two choices on outstanding
+ * calls), and a replica that fails eject.failures times in a row is left out for eject.ms. The
+ * replica list can be changed at runtime with setEndpoints(). Idempotent GETs can be hedged
+ * across replicas with fetchHedged().
+ *
+ * Exported metrics, prefixed with upstream.name.:
+ *   pool.max, pool.inUse, pool.waiting  connection pool utilization
+ *   pool.wait                           time spent waiting for a free connection
+ *   latency                             time until the backend's response headers arrive
+ *   requests, errors, timeouts, rejected
+ *   endpoints, endpoints.available, ejections  replicas and passive health checks
+ * plus the breaker's and the limiter's metrics, see CircuitBreaker and ConcurrencyLimiter.
+ */
+public class Upstream {
+   public static Upstream location;
+   public static Upstream user;
+   public static Upstream trip;
+
+   private final String name;
+   private volatile List<Endpoint> endpoints = List.of();
+   private final int ejectFailures;
+   private final long ejectNanos;
+   private final HttpClient client;
+   private final Bulkhead bulkhead;
+   private final ConcurrencyLimiter limiter;
+   private final CircuitBreaker breaker;
+   private final Duration readTimeout;
+
+   private final LongAdder requests;
+   private final LongAdder errors;
+   private final LongAdder timeouts;
+   private final LongAdder rejected;
+   private final LongAdder ejections;
+   private final LatencyHistogram latency;
+   private final LatencyHistogram poolWait;
+
+   /**
+    * Creates the client for a backend from its upstream.name.* settings.
+    * @param name backend name, e.g. locationmicroservice
+    * @param config gateway settings
+    */
+   public Upstream(String name, GatewayConfig config) {
+      this.name = name;
+      this.ejectFailures = config.upstreamInt(name, "eject.failures", 5);
+      this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(config.upstreamInt(name, "eject.ms", 10000));
+      setEndpoints(config.upstream(name, "url", "http://" + name + ":8000"));
+      this.readTimeout = Duration.ofMillis(config.upstreamInt(name, "readTimeoutMs", 10000));
+      this.bulkhead = new Bulkhead(name,
+              config.upstreamInt(name, "maxConnections", 64),
+              config.upstreamInt(name, "maxWaiting", 64),
+              config.upstreamInt(name, "acquireTimeoutMs", 1000));
+      this.breaker = new CircuitBreaker(name, config);
+      this.limiter = new ConcurrencyLimiter(name, config, bulkhead.getMaxConcurrent());
+
+      boolean http2 = Boolean.parseBoolean(config.upstream(name, "http2", "false"));
+      ExecutorService executor = Executors.newFixedThreadPool(config.upstreamInt(name, "threads", 8), daemonThreads(name));
+      this.client = HttpClient.newBuilder()
+              .executor(executor)
+              .connectTimeout(Duration.ofMillis(config.upstreamInt(name, "connectTimeoutMs", 2000)))
+              .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+              .followRedirects(HttpClient.Redirect.NEVER)
+              .build();
+
+      String prefix = "upstream." + name + ".";
+      this.requests = Metrics.counter(prefix + "requests");
+      this.errors = Metrics.counter(prefix + "errors");
+      this.timeouts = Metrics.counter(prefix + "timeouts");
+      this.rejected = Metrics.counter(prefix + "rejected");
+      this.ejections = Metrics.counter(prefix + "ejections");
+      this.latency = Metrics.histogram(prefix + "latency");
+      this.poolWait = Metrics.histogram(prefix + "pool.wait");
+      Metrics.gauge(prefix + "pool.max", bulkhead::getMaxConcurrent);
+      Metrics.gauge(prefix + "pool.inUse", bulkhead::inUse);
+      Metrics.gauge(prefix + "pool.waiting", bulkhead::waiting);
+      Metrics.gauge(prefix + "endpoints", () -> endpoints.size());
+      Metrics.gauge(prefix + "endpoints.available", () -> {
+         long now = System.nanoTime();
+         return endpoints.stream().filter(endpoint -> endpoint.isAvailable(now)).count();
+      });
+   }
+
+   /**
+    * Creates the three backend clients. The JDK client's keep-alive setting is global, so it
+    * has to be set before the first client is built.
+    * @param config gateway settings
+    */
+   public static void init(GatewayConfig config) {
+      System.setProperty("jdk.httpclient.keepalive.timeout", config.get("upstream.keepAliveSeconds", "30"));
+      location = new Upstream("locationmicroservice", config);
+      user = new Upstream("usermicroservice", config);
+      trip = new Upstream("tripinfomicroservice", config);
+   }
+
+   /**
+    * Re-reads every backend's replica list, e.g. after the config file changed. Other settings
+    * only take effect on restart.
+    * @param config gateway settings
+    */
+   public static void reload(GatewayConfig config) {
+      for (Upstream upstream : new Upstream[]{location, user, trip}) {
+         upstream.setEndpoints(config.upstream(upstream.name, "url", "http://" + upstream.name + ":8000"));
+      }
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public List<Endpoint> getEndpoints() {
+      return endpoints;
+   }
+
+   /**
+    * Replaces the replica list. Replicas that stay in the list keep their load and health state.
+    * @param urls comma separated base urls
+    */
+   public synchronized void setEndpoints(String urls) {
+      Map<String, Endpoint> current = new HashMap<>();
+      for (Endpoint endpoint : endpoints) {
+         current.put(endpoint.getUrl(), endpoint);
+      }
+      List<Endpoint> next = new ArrayList<>();
+      for (String url : urls.split(",")) {
+         url = url.trim();
+         while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+         }
+         if (!url.isEmpty()) {
+            next.add(current.getOrDefault(url, new Endpoint(url)));
+         }
+      }
+      if (next.isEmpty()) {
+         throw new IllegalArgumentException("no url configured for " + name);
+      }
+      endpoints = List.copyOf(next);
+   }
+
+   /**
+    * Picks the replica for a call: the one with fewer outstanding calls out of two random
+    * available replicas. If every replica is ejected they are all tried again rather than
+    * refusing the call.
+    */
+   Endpoint pick() {
+      List<Endpoint> all = endpoints;
+      if (all.size() == 1) {
+         return all.get(0);
+      }
+      long now = System.nanoTime();
+      List<Endpoint> candidates = new ArrayList<>(all.size());
+      for (Endpoint endpoint : all) {
+         if (endpoint.isAvailable(now)) {
+            candidates.add(endpoint);
+         }
+      }
+      if (candidates.isEmpty()) {
+         candidates = all;
+      }
+      int n = candidates.size();
+      if (n == 1) {
+         return candidates.get(0);
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int a = random.nextInt(n);
+      int b = random.nextInt(n - 1);
+      if (b >= a) {
+         b++;
+      }
+      Endpoint first = candidates.get(a);
+      Endpoint second = candidates.get(b);
+      return second.getOutstanding() < first.getOutstanding() ? second : first;
+   }
+
+   /**
+    * Picks an available replica other than the given one, the less busy of two if there are
+    * more, for a hedged request.
+    * @return the replica, or null if there is no other available replica
+    */
+   Endpoint pickOther(Endpoint not) {
+      long now = System.nanoTime();
+      Endpoint best = null;
+      Endpoint other = null;
+      List<Endpoint> all = endpoints;
+      int offset = ThreadLocalRandom.current().nextInt(all.size());
+      for (int i = 0; i < all.size() && other == null; i++) {
+         Endpoint endpoint = all.get((offset + i) % all.size());
+         if (endpoint == not || !endpoint.isAvailable(now)) {
+            continue;
+         }
+         if (best == null) {
+            best = endpoint;
+         } else {
+            other = endpoint;
+         }
+      }
+      if (other != null && other.getOutstanding() < best.getOutstanding()) {
+         return other;
+      }
+      return best;
+   }
+
+   /**
+    * Streams the exchange to this backend and the reply back to the client.
+    * @param exchange the client exchange
+    * @param pathAndQuery path on the backend, including the query string
+    * @throws UpstreamException if the breaker is open or no connection frees up in time (503),
+    *                           or the backend does not answer in time (504); nothing has been written to the client
+    * @throws IOException if the backend could not be reached, nothing has been written to the client
+    */
+   public void forward(HttpExchange exchange, String pathAndQuery) throws IOException, InterruptedException {
+      Endpoint endpoint = pick();
+      HttpRequest request = request(exchange, endpoint, pathAndQuery);
+      acquire(ConcurrencyLimiter.isCritical(exchange));
+      endpoint.begin();
+      try {
+         HttpResponse<InputStream> res = send(endpoint, request, HttpResponse.BodyHandlers.ofInputStream());
+         Proxy.relay(res.statusCode(), res.headers(), res.body(), exchange);
+      } finally {
+         endpoint.end();
+         release();
+      }
+   }
+
+   /**
+    * Sends the exchange to this backend and reads the whole reply into memory, for routes
+    * that need to keep or share the response.
+    * @param exchange the client exchange
+    * @param pathAndQuery path on the backend, including the query string
+    * @return the backend's response
+    * @throws UpstreamException if the breaker is open or no connection frees up in time (503),
+    *                           or the backend does not answer in time (504)
+    * @throws IOException if the backend could not be reached
+    */
+   public BufferedResponse fetch(HttpExchange exchange, String pathAndQuery) throws IOException, InterruptedException {
+      Endpoint endpoint = pick();
+      HttpRequest request = request(exchange, endpoint, pathAndQuery);
+      return fetch(endpoint, request, ConcurrencyLimiter.isCritical(exchange));
+   }
+
+   /**
+    * Sends a request built by the gateway itself, e.g. one item of a batch, and reads the whole
+    * reply into memory.
+    * @param method request method
+    * @param pathAndQuery path on the backend, including the query string
+    * @param headers request headers, hop-by-hop headers are skipped
+    * @param body request body, empty for none
+    * @param timeout time allowed for the backend to answer, capped at the read timeout and
+    *                passed on in the deadline header
+    * @param critical whether the call goes ahead of ordinary calls when the backend is at its limit
+    * @return the backend's response
+    * @throws UpstreamException if the breaker is open or no connection frees up in time (503),
+    *                           or the backend does not answer in time (504)
+    * @throws IOException if the backend could not be reached
+    */
+   public BufferedResponse fetch(String method, String pathAndQuery, Map<String, List<String>> headers,
+                                 byte[] body, Duration timeout, boolean critical) throws IOException, InterruptedException {
+      Endpoint endpoint = pick();
+      HttpRequest.Builder builder = HttpRequest.newBuilder()
+              .uri(URI.create(endpoint.getUrl() + pathAndQuery))
+              .method(method, body.length == 0 ? HttpRequest.BodyPublishers.noBody()
+                      : HttpRequest.BodyPublishers.ofByteArray(body));
+      for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+         if (!Proxy.HOP_HEADERS.contains(header.getKey().toLowerCase())) {
+            for (String value : header.getValue()) {
+               builder.header(header.getKey(), value);
+            }
+         }
+      }
+      Duration capped = Deadline.cap(readTimeout, timeout.toNanos(), name);
+      builder.timeout(capped).setHeader(Deadline.HEADER, Deadline.headerValue(capped));
+      return fetch(endpoint, builder.build(), critical);
+   }
+
+   private BufferedResponse fetch(Endpoint endpoint, HttpRequest request, boolean critical)
+           throws IOException, InterruptedException {
+      acquire(critical);
+      endpoint.begin();
+      try {
+         HttpResponse<byte[]> res = send(endpoint, request, HttpResponse.BodyHandlers.ofByteArray());
+         return new BufferedResponse(res.statusCode(), Proxy.responseHeaders(res.headers()), res.body());
+      } finally {
+         endpoint.end();
+         release();
+      }
+   }
+
+   /**
+    * Sends the exchange, a GET without a body, and if the backend has not answered by the
+    * route's hedge delay sends a second copy to another replica. The first response wins and
+    * the other request is cancelled. Falls back to a plain fetch when there is only one replica
+    * or not enough latency data yet.
+    * @param exchange the client exchange
+    * @param pathAndQuery path on the backend, including the query string
+    * @param hedge the route's hedging policy
+    * @return the first backend response
+    * @throws UpstreamException if the breaker is open or no connection frees up in time (503),
+    *                           or no backend answers in time (504)
+    * @throws IOException if no backend could be reached
+    */
+   public BufferedResponse fetchHedged(HttpExchange exchange, String pathAndQuery, Hedge hedge)
+           throws IOException, InterruptedException {
+      long start = System.nanoTime();
+      long delay = hedge.start();
+      Endpoint first = pick();
+      Endpoint second = delay > 0 ? pickOther(first) : null;
+      if (second == null) {
+         BufferedResponse res = fetch(first, request(exchange, first, pathAndQuery), ConcurrencyLimiter.isCritical(exchange));
+         hedge.finish(start, false);
+         return res;
+      }
+
+      CompletableFuture<BufferedResponse> winner = new CompletableFuture<>();
+      AtomicReference<Endpoint> won = new AtomicReference<>();
+      AtomicInteger pending = new AtomicInteger(1);
+      HttpRequest request = request(exchange, first, pathAndQuery);
+      acquire(ConcurrencyLimiter.isCritical(exchange));
+      CompletableFuture<?> primary = attempt(first, request, winner, won, pending);
+      CompletableFuture<?> backup = null;
+      try {
+         try {
+            return winner.get(delay, TimeUnit.NANOSECONDS);
+         } catch (TimeoutException e) {
+            // too slow, hedge below
+         }
+         // built before taking a hedge and permits: it throws once the deadline has passed, and
+         // nothing would release them then
+         HttpRequest backupRequest = request(exchange, second, pathAndQuery);
+         if (hedge.tryHedge() && tryAcquire()) {
+            pending.incrementAndGet();
+            backup = attempt(second, backupRequest, winner, won, pending);
+         }
+         return winner.get();
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof HttpTimeoutException && !(cause instanceof HttpConnectTimeoutException)) {
+            long ms = request.timeout().orElse(readTimeout).toMillis();
+            throw new UpstreamException(504, name + " did not answer within " + ms + "ms");
+         }
+         throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+      } finally {
+         // whichever request is still running lost
+         primary.cancel(true);
+         if (backup != null) {
+            backup.cancel(true);
+         }
+         hedge.finish(start, won.get() == second);
+      }
+   }
+
+   /**
+    * Builds the request for the exchange to one replica. Its timeout is capped at the exchange's
+    * deadline, and the time left is passed on in the deadline header.
+    * @throws UpstreamException (504) if the deadline has already passed
+    */
+   private HttpRequest request(HttpExchange exchange, Endpoint endpoint, String pathAndQuery) throws UpstreamException {
+      Duration timeout = Deadline.cap(readTimeout, Deadline.remainingNanos(exchange), name);
+      return Proxy.newRequest(exchange, endpoint.getUrl() + pathAndQuery)
+              .timeout(timeout)
+              .setHeader(Deadline.HEADER, Deadline.headerValue(timeout))
+              .build();
+   }
+
+   /**
+    * Starts one asynchronous attempt of a hedged request, already admitted by acquire() or
+    * tryAcquire(). The first attempt to get a response completes winner; winner only fails once
+    * every attempt has failed.
+    */
+   private CompletableFuture<?> attempt(Endpoint endpoint, HttpRequest request, CompletableFuture<BufferedResponse> winner,
+                                        AtomicReference<Endpoint> won, AtomicInteger pending) {
+      requests.increment();
+      endpoint.begin();
+      long start = System.nanoTime();
+      CompletableFuture<HttpResponse<byte[]>> future;
+      try {
+         future = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+      } catch (RuntimeException e) {
+         endpoint.end();
+         release();
+         breaker.onIgnored();
+         if (pending.decrementAndGet() == 0) {
+            winner.completeExceptionally(e);
+         }
+         return CompletableFuture.completedFuture(null);
+      }
+      future.whenComplete((res, error) -> {
+         endpoint.end();
+         release();
+         Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+         settle(endpoint, start, res == null ? 0 : res.statusCode(), cause);
+         if (cause == null) {
+            if (won.compareAndSet(null, endpoint)) {
+               winner.complete(new BufferedResponse(res.statusCode(), Proxy.responseHeaders(res.headers()), res.body()));
+            }
+         } else if (pending.decrementAndGet() == 0) {
+            winner.completeExceptionally(cause);
+         }
+      });
+      return future;
+   }
+
+   /**
+    * Sends a request admitted by acquire().
+    */
+   private <T> HttpResponse<T> send(Endpoint endpoint, HttpRequest request, HttpResponse.BodyHandler<T> handler)
+           throws IOException, InterruptedException {
+      requests.increment();
+      long start = System.nanoTime();
+      try {
+         HttpResponse<T> res = client.send(request, handler);
+         settle(endpoint, start, res.statusCode(), null);
+         return res;
+      } catch (HttpConnectTimeoutException e) {
+         settle(endpoint, start, 0, e);
+         throw e;
+      } catch (HttpTimeoutException e) {
+         settle(endpoint, start, 0, e);
+         long ms = request.timeout().orElse(readTimeout).toMillis();
+         throw new UpstreamException(504, name + " did not answer within " + ms + "ms");
+      } catch (IOException | InterruptedException | RuntimeException e) {
+         settle(endpoint, start, 0, e);
+         throw e;
+      }
+   }
+
+   /**
+    * Reports how a call went to the metrics, the breaker and the replica's health check.
+    * @param endpoint replica the call went to
+    * @param start System.nanoTime() when the call was sent
+    * @param status response status, if there was a response
+    * @param error why there was no response, null if there was one
+    */
+   private void settle(Endpoint endpoint, long start, int status, Throwable error) {
+      boolean failed;
+      boolean dropped = false;
+      if (error == null) {
+         latency.recordSince(start);
+         failed = status >= 500;
+         if (failed) {
+            errors.increment();
+         }
+      } else if (error instanceof HttpTimeoutException && !(error instanceof HttpConnectTimeoutException)) {
+         timeouts.increment();
+         failed = true;
+         dropped = true;
+      } else if (error instanceof IOException) {
+         errors.increment();
+         failed = true;
+         dropped = true;
+      } else {
+         // interrupted or cancelled, says nothing about the backend's health
+         breaker.onIgnored();
+         return;
+      }
+      long rtt = System.nanoTime() - start;
+      breaker.onResult(failed, rtt);
+      limiter.onSample(rtt, dropped);
+      if (!failed) {
+         endpoint.onSuccess();
+      } else if (endpoint.onFailure(ejectFailures, ejectNanos)) {
+         ejections.increment();
+      }
+   }
+
+   /**
+    * Admits a call through the breaker, the adaptive limit and the bulkhead. Every successful
+    * call must be paired with release().
+    * @param critical whether the call goes ahead of ordinary calls at the limit
+    */
+   private void acquire(boolean critical) throws InterruptedException, UpstreamException {
+      if (!breaker.tryAcquire()) {
+         rejected.increment();
+         throw new UpstreamException(503, name + " is unavailable, circuit open");
+      }
+      long start = System.nanoTime();
+      boolean limited = false;
+      try {
+         limiter.acquire(critical);
+         limited = true;
+         bulkhead.acquire();
+      } catch (UpstreamException e) {
+         breaker.onIgnored();
+         rejected.increment();
+         if (limited) {
+            limiter.release();
+         }
+         throw e;
+      } catch (InterruptedException e) {
+         breaker.onIgnored();
+         if (limited) {
+            limiter.release();
+         }
+         throw e;
+      } finally {
+         poolWait.recordSince(start);
+      }
+   }
+
+   private void release() {
+      bulkhead.release();
+      limiter.release();
+   }
+
+   /**
+    * Admits an optional call, such as a hedge, only if that needs no waiting.
+    * @return true if admitted, in which case release() must follow
+    */
+   private boolean tryAcquire() {
+      if (!breaker.tryAcquire()) {
+         return false;
+      }
+      if (!limiter.tryAcquire()) {
+         breaker.onIgnored();
+         return false;
+      }
+      if (!bulkhead.tryAcquire()) {
+         limiter.release();
+         breaker.onIgnored();
+         return false;
+      }
+      return true;
+   }
+
+   private static ThreadFactory daemonThreads(String name) {
+      AtomicInteger count = new AtomicInteger();
+      return runnable -> {
+         Thread thread = new Thread(runnable, "upstream-" + name + "-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      };
+   }
+}
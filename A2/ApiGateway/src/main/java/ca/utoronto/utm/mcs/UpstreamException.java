@@ -0,0 +1,20 @@
+package ca.utoronto.utm.mcs;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the gateway refuses or fails to complete a backend call before anything
+ * has been written to the client. Carries the status the client should see.
+ */
+public class UpstreamException extends IOException {
+   private final int status;
+
+   public UpstreamException(int status, String message) {
+      super(message);
+      this.status = status;
+   }
+
+   public int getStatus() {
+      return status;
+   }
+}
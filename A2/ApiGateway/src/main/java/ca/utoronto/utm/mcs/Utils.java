@@ -6,17 +6,11 @@ import org.json.JSONObject;
 
 import java.io.*;
 import java.net.HttpURLConnection;
-import java.net.URI;
 import java.net.URL;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.util.stream.Collectors;
 
 public class Utils {
-   public static HttpClient client = HttpClient.newHttpClient();
-
    public static String convert(InputStream inputStream) throws IOException {
 
       try (BufferedReader br = new BufferedReader(new InputStreamReader(inputStream))) {
@@ -24,47 +18,6 @@ public class Utils {
       }
    }
 
-   public static void SendAndHandleRequest(HttpExchange exchange, String method, String url, boolean hasBody) throws IOException, JSONException {
-      JSONObject requestBody = handleRequest(exchange.getRequestBody());
-      System.out.println("APIGateway sending: " + requestBody + " to: " + url);
-      HttpURLConnection client = getConnection(url, method);
-      if (hasBody) {
-         writeConnection(client.getOutputStream(), requestBody);
-      }
-      client.connect();
-      int rCode = client.getResponseCode();
-      InputStream stream;
-      if (100 <= rCode && rCode <= 399) {
-         stream = client.getInputStream();
-      } else {
-         stream = client.getErrorStream();
-      }
-      JSONObject res = readConnection(stream);
-      client.disconnect();
-      System.out.println("APIGateway returning: " + res);
-      handleResponse(res, exchange, rCode);
-   }
-
-   public static void SendAndHandleRequestHttpClient(HttpExchange exchange, String method, String url, boolean hasBody) throws IOException, JSONException, InterruptedException {
-      JSONObject requestBody = handleRequest(exchange.getRequestBody());
-      System.out.println("APIGateway sending: " + requestBody + " to: " + url);
-      HttpRequest.Builder builder = HttpRequest.newBuilder()
-              .uri(URI.create(url))
-              .header("Accept", "application/json");
-      if (hasBody) {
-         System.out.println(method + " body: " + requestBody);
-         builder.method(method, HttpRequest.BodyPublishers.ofString(requestBody.toString()));
-      }
-      else {
-         builder.method(method, HttpRequest.BodyPublishers.noBody());
-      }
-
-      HttpRequest request = builder.build();
-      HttpResponse<String> res = client.send(request, HttpResponse.BodyHandlers.ofString());
-      System.out.println("APIGateway returning: " + res.body());
-      handleResponse(new JSONObject(res.body()), exchange, res.statusCode());
-   }
-
    public static HttpURLConnection getConnection(String endpoint, String method) throws IOException {
       URL url = new URL(endpoint);
       HttpURLConnection client = (HttpURLConnection) url.openConnection();
@@ -1,17 +1,869 @@
 package ca.utoronto.utm.mcs;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
 /*
-Please Write Your Tests For CI/CD In This Class. 
+Please Write Your Tests For CI/CD In This Class.
 You will see these tests pass/fail on github under github actions.
 */
 public class AppTest {
 
+   private static HttpServer backend;
+   private static HttpServer gateway;
+   private static String backendUrl;
+   private static String gatewayUrl;
+
+   @BeforeAll
+   static void setUp() throws IOException {
+      // echoes the method, query and body back so the gateway's forwarding can be checked
+      backend = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      backend.createContext("/", exchange -> {
+         byte[] body = exchange.getRequestBody().readAllBytes();
+         String reply = exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+                 + new String(body, StandardCharsets.UTF_8);
+         byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().add("X-Backend", "echo");
+         exchange.sendResponseHeaders(200, bytes.length);
+         try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+         }
+      });
+      backend.start();
+      backendUrl = "http://localhost:" + backend.getAddress().getPort();
+
+      // every backend is the echo server
+      Properties properties = new Properties();
+      properties.setProperty("upstream.default.url", backendUrl);
+      GatewayConfig config = new GatewayConfig(properties);
+      Upstream.init(config);
+
+      gateway = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      gateway.createContext("/", new ReqHandler(config));
+      gateway.start();
+      gatewayUrl = "http://localhost:" + gateway.getAddress().getPort();
+   }
+
+   @AfterAll
+   static void tearDown() {
+      gateway.stop(0);
+      backend.stop(0);
+   }
+
+   private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+      HttpRequest request = HttpRequest.newBuilder()
+              .uri(URI.create(gatewayUrl + path))
+              .method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body))
+              .build();
+      return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+   }
+
    @Test
    public void exampleTest() {
       assertTrue(true);
    }
+
+   @Test
+   public void proxyStreamsPatchBodyAndHeaders() throws IOException, InterruptedException {
+      HttpResponse<String> res = send("PATCH", "/user/1", "{\"name\":\"a\"}");
+      assertEquals(200, res.statusCode());
+      assertEquals("PATCH /user/1 {\"name\":\"a\"}", res.body());
+      assertEquals("echo", res.headers().firstValue("X-Backend").orElse(null));
+   }
+
+   @Test
+   public void proxyKeepsQueryString() throws IOException, InterruptedException {
+      HttpResponse<String> res = send("GET", "/location/nearbyDriver/1?radius=5", null);
+      assertEquals(200, res.statusCode());
+      assertEquals("GET /location/nearbyDriver/1?radius=5 ", res.body());
+   }
+
+   @Test
+   public void userCollectionIsRouted() throws IOException, InterruptedException {
+      assertEquals("GET /user?ids=1,2,3 ", send("GET", "/user?ids=1,2,3", null).body());
+      assertEquals("POST /user {\"ids\":[1,2]}", send("POST", "/user", "{\"ids\":[1,2]}").body());
+   }
+
+   @Test
+   public void couponRoutesAreNotUserIds() throws IOException, InterruptedException {
+      assertEquals("GET /user/coupons ", send("GET", "/user/coupons", null).body());
+      assertEquals("GET /user/coupons/7 ", send("GET", "/user/coupons/7", null).body());
+      assertEquals("POST /user/coupons/redeem {\"uid\":7,\"cid\":1}",
+              send("POST", "/user/coupons/redeem", "{\"uid\":7,\"cid\":1}").body());
+      assertNull(send("GET", "/user/coupons", null).headers().firstValue("X-Cache").orElse(null));
+   }
+
+   @Test
+   public void rideIncrementsAreNotUserIds() throws IOException, InterruptedException {
+      assertEquals("POST /user/rides {\"uid\":7}", send("POST", "/user/rides", "{\"uid\":7}").body());
+   }
+
+   @Test
+   public void upstreamExportsPoolMetrics() throws IOException, InterruptedException, JSONException {
+      send("POST", "/user/login", "{}");
+      JSONObject metrics = Metrics.snapshot();
+      assertTrue(metrics.getLong("upstream.usermicroservice.requests") > 0);
+      assertEquals(64, metrics.getLong("upstream.usermicroservice.pool.max"));
+      assertTrue(metrics.getJSONObject("upstream.usermicroservice.latency").getLong("count") > 0);
+   }
+
+   @Test
+   public void gatewayRejectsUnknownRoutes() throws IOException, InterruptedException {
+      assertEquals(404, send("GET", "/nothing/here", null).statusCode());
+      HttpResponse<String> res = send("DELETE", "/user/1", null);
+      assertEquals(405, res.statusCode());
+      assertEquals("GET, PATCH", res.headers().firstValue("Allow").orElse(null));
+   }
+
+   @Test
+   public void gatewayCachesUntilPatched() throws IOException, InterruptedException {
+      assertEquals("MISS", send("GET", "/user/7", null).headers().firstValue("X-Cache").orElse(null));
+      HttpResponse<String> hit = send("GET", "/user/7", null);
+      assertEquals("HIT", hit.headers().firstValue("X-Cache").orElse(null));
+      assertEquals("GET /user/7 ", hit.body());
+
+      send("PATCH", "/user/7", "{\"name\":\"b\"}");
+      assertEquals("MISS", send("GET", "/user/7", null).headers().firstValue("X-Cache").orElse(null));
+   }
+
+   @Test
+   public void failedPatchStillInvalidates() throws IOException, InterruptedException {
+      send("GET", "/user/8", null);
+      assertEquals("HIT", send("GET", "/user/8", null).headers().firstValue("X-Cache").orElse(null));
+
+      // out of time before it is sent: the backend may still have applied a write that failed this way
+      HttpRequest patch = HttpRequest.newBuilder(URI.create(gatewayUrl + "/user/8"))
+              .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"name\":\"c\"}"))
+              .header(Deadline.HEADER, "0")
+              .build();
+      assertEquals(504, HttpClient.newHttpClient().send(patch, HttpResponse.BodyHandlers.ofString()).statusCode());
+      assertEquals("MISS", send("GET", "/user/8", null).headers().firstValue("X-Cache").orElse(null));
+   }
+
+   @Test
+   public void routerCapturesParams() {
+      Router<String> router = new Router<>();
+      router.add("GET", "/location/nearbyDriver/{uid}", "nearby");
+      router.add("GET", "/trip/passenger/{uid}", "passenger");
+      Router.Match<String> match = router.match("GET", "/location/nearbyDriver/7");
+      assertEquals("nearby", match.target());
+      assertEquals("7", match.param("uid"));
+      assertEquals("abc", router.match("GET", "/trip/passenger/abc/").param("uid"));
+      assertNull(router.match("GET", "/trip/passenger"));
+      assertNull(router.match("GET", "/trip/passenger/abc/extra"));
+   }
+
+   @Test
+   public void routerPrefersLiteralsAndChecksMethod() {
+      Router<String> router = new Router<>();
+      router.add("PUT", "/location/user", "putUser");
+      router.add("GET", "/location/{uid}", "getLocation");
+      router.add("PATCH", "/location/{uid}", "patchLocation");
+      assertEquals("putUser", router.match("PUT", "/location/user").target());
+      // the literal has no GET, so the capture takes it
+      assertEquals("getLocation", router.match("GET", "/location/user").target());
+      assertEquals("user", router.match("GET", "/location/user").param("uid"));
+
+      Router.Match<String> wrongMethod = router.match("DELETE", "/location/42");
+      assertNull(wrongMethod.target());
+      assertEquals("GET, PATCH", wrongMethod.allowedMethods());
+   }
+
+   @Test
+   public void cacheInvalidatesAndRejectsStaleWrites() {
+      ResponseCache cache = new ResponseCache(100, 1 << 20);
+      BufferedResponse res = new BufferedResponse(200, new HashMap<>(), "{}".getBytes());
+      String key = ResponseCache.key("/user/42/", null);
+      cache.put(key, res, 60000, cache.epoch(key));
+      assertEquals(res, cache.get("/user/42"));
+
+      // a read that started before the PATCH must not store its result afterwards
+      long epoch = cache.epoch(key);
+      cache.invalidate("/user/42");
+      assertNull(cache.get(key));
+      cache.put(key, res, 60000, epoch);
+      assertNull(cache.get(key));
+
+      cache.put("/trip/passenger/1", res, 60000, cache.epoch("/trip/passenger/1"));
+      cache.invalidatePrefix("/trip/passenger/");
+      assertNull(cache.get("/trip/passenger/1"));
+   }
+
+   @Test
+   public void cacheExpiresAndEvicts() throws InterruptedException {
+      ResponseCache cache = new ResponseCache(16, 1 << 20);
+      BufferedResponse res = new BufferedResponse(200, new HashMap<>(), new byte[10]);
+      cache.put("/location/1", res, 1, cache.epoch("/location/1"));
+      Thread.sleep(5);
+      assertNull(cache.get("/location/1"));
+
+      // one entry per segment, so a second key in the same segment evicts the first
+      for (int i = 0; i < 1000; i++) {
+         cache.put("/location/" + i, res, 60000, cache.epoch("/location/" + i));
+      }
+      int cached = 0;
+      for (int i = 0; i < 1000; i++) {
+         cached += cache.get("/location/" + i) == null ? 0 : 1;
+      }
+      assertTrue(cached <= 16);
+   }
+
+   @Test
+   public void singleFlightSharesOneCall() throws Exception {
+      SingleFlight singleFlight = new SingleFlight();
+      AtomicInteger calls = new AtomicInteger();
+      CountDownLatch release = new CountDownLatch(1);
+      BufferedResponse res = new BufferedResponse(200, new HashMap<>(), new byte[0]);
+
+      ExecutorService pool = Executors.newFixedThreadPool(8);
+      List<Future<BufferedResponse>> results = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+         results.add(pool.submit(() -> singleFlight.execute("GET /trip/driverTime/1", () -> {
+            calls.incrementAndGet();
+            release.await();
+            return res;
+         }, Long.MAX_VALUE)));
+      }
+      // let every caller join before the leader finishes
+      Thread.sleep(200);
+      release.countDown();
+      for (Future<BufferedResponse> result : results) {
+         assertEquals(res, result.get(5, TimeUnit.SECONDS));
+      }
+      pool.shutdown();
+      assertEquals(1, calls.get());
+   }
+
+   @Test
+   public void singleFlightFollowerKeepsItsOwnDeadline() throws Exception {
+      SingleFlight singleFlight = new SingleFlight();
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      BufferedResponse res = new BufferedResponse(200, new HashMap<>(), new byte[0]);
+      ExecutorService pool = Executors.newSingleThreadExecutor();
+      Future<BufferedResponse> leader = pool.submit(() -> singleFlight.execute("GET /user/1", () -> {
+         started.countDown();
+         release.await();
+         return res;
+      }, TimeUnit.SECONDS.toNanos(10)));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+
+      long start = System.nanoTime();
+      UpstreamException e = assertThrows(UpstreamException.class,
+              () -> singleFlight.execute("GET /user/1", () -> res, TimeUnit.MILLISECONDS.toNanos(100)));
+      assertEquals(504, e.getStatus());
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+      release.countDown();
+      assertEquals(res, leader.get(5, TimeUnit.SECONDS));
+      pool.shutdown();
+   }
+
+   @Test
+   public void breakerOpensAndRecoversThroughProbes() throws InterruptedException {
+      Properties properties = new Properties();
+      properties.setProperty("upstream.default.breaker.minimumCalls", "4");
+      properties.setProperty("upstream.default.breaker.openMs", "100");
+      properties.setProperty("upstream.default.breaker.halfOpenProbes", "2");
+      CircuitBreaker breaker = new CircuitBreaker("test", new GatewayConfig(properties));
+
+      for (int i = 0; i < 4; i++) {
+         assertTrue(breaker.tryAcquire());
+         breaker.onResult(i % 2 == 0, 1000);
+      }
+      assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+      assertFalse(breaker.tryAcquire());
+
+      Thread.sleep(150);
+      assertTrue(breaker.tryAcquire());
+      assertTrue(breaker.tryAcquire());
+      // only halfOpenProbes calls at a time
+      assertFalse(breaker.tryAcquire());
+      breaker.onResult(false, 1000);
+      breaker.onResult(false, 1000);
+      assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+   }
+
+   @Test
+   public void bulkheadRejectsWhenFull() throws InterruptedException, UpstreamException {
+      Bulkhead bulkhead = new Bulkhead("test", 1, 0, 1000);
+      bulkhead.acquire();
+      long start = System.nanoTime();
+      assertThrows(UpstreamException.class, bulkhead::acquire);
+      // no room to queue, so the rejection does not wait
+      assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+      bulkhead.release();
+      bulkhead.acquire();
+      assertEquals(1, bulkhead.inUse());
+   }
+
+   @Test
+   public void limiterServesCriticalCallsFirstAndShedsTheRest() throws Exception {
+      Properties properties = new Properties();
+      properties.setProperty("upstream.limited.limit.initial", "2");
+      properties.setProperty("upstream.limited.limit.min", "1");
+      properties.setProperty("upstream.limited.limit.queueMs", "5000");
+      properties.setProperty("upstream.limited.limit.maxQueue", "1");
+      ConcurrencyLimiter limiter = new ConcurrencyLimiter("limited", new GatewayConfig(properties), 10);
+      limiter.acquire(false);
+      limiter.acquire(false);
+      assertFalse(limiter.tryAcquire());
+
+      ExecutorService pool = Executors.newFixedThreadPool(2);
+      try {
+         List<String> order = new CopyOnWriteArrayList<>();
+         Future<?> ordinary = pool.submit(() -> {
+            limiter.acquire(false);
+            order.add("ordinary");
+            return null;
+         });
+         while (limiter.queued() < 1) {
+            Thread.sleep(1);
+         }
+         Future<?> critical = pool.submit(() -> {
+            limiter.acquire(true);
+            order.add("critical");
+            return null;
+         });
+         while (limiter.queued() < 2) {
+            Thread.sleep(1);
+         }
+         // the ordinary queue is full
+         assertThrows(UpstreamException.class, () -> limiter.acquire(false));
+
+         limiter.release();
+         critical.get(1, TimeUnit.SECONDS);
+         limiter.release();
+         ordinary.get(1, TimeUnit.SECONDS);
+         assertEquals(List.of("critical", "ordinary"), order);
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   @Test
+   public void limiterFollowsResponseTimes() throws Exception {
+      Properties properties = new Properties();
+      properties.setProperty("upstream.adaptive.limit.initial", "8");
+      properties.setProperty("upstream.adaptive.limit.min", "2");
+      ConcurrencyLimiter limiter = new ConcurrencyLimiter("adaptive", new GatewayConfig(properties), 16);
+      for (int i = 0; i < 8; i++) {
+         limiter.acquire(false);
+      }
+      // busy and no slower than the fastest call seen: room to grow
+      for (int i = 0; i < 20; i++) {
+         limiter.onSample(TimeUnit.MILLISECONDS.toNanos(5), false);
+      }
+      int grown = limiter.getLimit();
+      assertTrue(grown > 8);
+
+      // ten times slower means calls are queueing at the backend
+      for (int i = 0; i < 5; i++) {
+         limiter.onSample(TimeUnit.MILLISECONDS.toNanos(50), false);
+      }
+      int slowed = limiter.getLimit();
+      assertTrue(slowed < grown);
+      limiter.onSample(TimeUnit.MILLISECONDS.toNanos(50), true);
+      assertTrue(limiter.getLimit() < slowed);
+   }
+
+   @Test
+   public void upstreamBalancesAndEjectsReplicas() {
+      Properties properties = new Properties();
+      properties.setProperty("upstream.lb.url", "http://a:8000, http://b:8000/");
+      Upstream upstream = new Upstream("lb", new GatewayConfig(properties));
+      Endpoint a = upstream.getEndpoints().get(0);
+      Endpoint b = upstream.getEndpoints().get(1);
+      assertEquals("http://b:8000", b.getUrl());
+
+      a.begin();
+      for (int i = 0; i < 20; i++) {
+         assertSame(b, upstream.pick());
+      }
+      a.end();
+
+      assertTrue(b.onFailure(1, TimeUnit.SECONDS.toNanos(10)));
+      for (int i = 0; i < 20; i++) {
+         assertSame(a, upstream.pick());
+      }
+
+      // replicas that survive a reload keep their state
+      upstream.setEndpoints("http://b:8000,http://c:8000");
+      assertSame(b, upstream.getEndpoints().get(0));
+      assertFalse(b.isAvailable(System.nanoTime()));
+      assertEquals("http://c:8000", upstream.pick().getUrl());
+   }
+
+   @Test
+   public void rateLimiterThrottlesAndForgetsIdleClients() throws InterruptedException {
+      RateLimiter limiter = new RateLimiter("test", 10, 3, 60000);
+      for (int i = 0; i < 3; i++) {
+         assertEquals(0, limiter.tryAcquire("a"));
+      }
+      long wait = limiter.tryAcquire("a");
+      assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(100));
+      // other clients have their own bucket
+      assertEquals(0, limiter.tryAcquire("b"));
+
+      Thread.sleep(120);
+      assertEquals(0, limiter.tryAcquire("a"));
+
+      RateLimiter quick = new RateLimiter("quick", 1000, 1, 10);
+      quick.tryAcquire("a");
+      Thread.sleep(50);
+      quick.sweep();
+      assertEquals(0, quick.size());
+   }
+
+   @Test
+   public void gatewayAnswersThrottledRequestsWith429() throws IOException, InterruptedException {
+      Properties properties = new Properties();
+      properties.setProperty("ratelimit.tripRequest.perSecond", "0.5");
+      properties.setProperty("ratelimit.tripRequest.burst", "1");
+      HttpServer limited = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      limited.createContext("/", new ReqHandler(new GatewayConfig(properties)));
+      limited.start();
+      try {
+         HttpClient client = HttpClient.newHttpClient();
+         HttpRequest request = HttpRequest.newBuilder(
+                 URI.create("http://localhost:" + limited.getAddress().getPort() + "/trip/request"))
+                 .POST(HttpRequest.BodyPublishers.ofString("{}"))
+                 .build();
+         assertEquals(200, client.send(request, HttpResponse.BodyHandlers.ofString()).statusCode());
+         HttpResponse<String> throttled = client.send(request, HttpResponse.BodyHandlers.ofString());
+         assertEquals(429, throttled.statusCode());
+         assertEquals("2", throttled.headers().firstValue("Retry-After").orElse(null));
+      } finally {
+         limited.stop(0);
+      }
+   }
+
+   @Test
+   public void accessLogWritesRecordsAndDropsWhenFull() throws IOException {
+      StringWriter out = new StringWriter();
+      AccessLog log = new AccessLog("test", 4, 1.0, out);
+      log.log("GET", "/user/\"1\"", 200, 1500_000, 0, 42);
+      assertEquals(1, log.drain());
+      assertEquals("{\"time\":", out.toString().substring(0, 8));
+      assertTrue(out.toString().contains("\"path\":\"/user/\\\"1\\\"\",\"status\":200,\"latencyUs\":1500,\"bytesIn\":0,\"bytesOut\":42}\n"));
+
+      for (int i = 0; i < 6; i++) {
+         log.log("GET", "/user/1", 200, 0, 0, 0);
+      }
+      assertEquals(2, log.dropped());
+      assertEquals(4, log.drain());
+   }
+
+   @Test
+   public void batchRunsItemsAndReportsEachStatus() throws IOException, InterruptedException, JSONException {
+      String body = "[{\"id\":\"profile\",\"path\":\"/user/5\"},"
+              + "{\"method\":\"PATCH\",\"path\":\"/location/5\",\"body\":{\"street\":\"a\"}},"
+              + "{\"path\":\"/nothing\"},"
+              + "{\"path\":\"/trip/passenger/5?limit=1\"}]";
+      HttpResponse<String> res = send("POST", "/batch", body);
+      assertEquals(200, res.statusCode());
+      JSONArray responses = new JSONObject(res.body()).getJSONArray("responses");
+      assertEquals(4, responses.length());
+
+      JSONObject profile = responses.getJSONObject(0);
+      assertEquals("profile", profile.getString("id"));
+      assertEquals(200, profile.getInt("status"));
+      assertEquals("GET /user/5", profile.getString("body"));
+      assertEquals("PATCH /location/5 {\"street\":\"a\"}", responses.getJSONObject(1).getString("body"));
+      assertEquals(404, responses.getJSONObject(2).getInt("status"));
+      assertEquals(2, responses.getJSONObject(2).getInt("id"));
+      assertEquals("GET /trip/passenger/5?limit=1", responses.getJSONObject(3).getString("body"));
+
+      assertEquals(400, send("POST", "/batch", "not json").statusCode());
+      assertEquals(405, send("GET", "/batch", null).statusCode());
+   }
+
+   @Test
+   public void gatewayCompressesLargeBodiesWhenAccepted() throws IOException, InterruptedException {
+      String big = "x".repeat(5000);
+      HttpRequest gzip = HttpRequest.newBuilder()
+              .uri(URI.create(gatewayUrl + "/user/9"))
+              .header("Accept-Encoding", "br;q=1, gzip;q=0.8")
+              .method("PATCH", HttpRequest.BodyPublishers.ofString(big))
+              .build();
+      HttpResponse<byte[]> res = HttpClient.newHttpClient().send(gzip, HttpResponse.BodyHandlers.ofByteArray());
+      assertEquals("gzip", res.headers().firstValue("Content-Encoding").orElse(null));
+      assertTrue(res.body().length < 1000);
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(res.body()))) {
+         assertEquals("PATCH /user/9 " + big, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+      }
+
+      // small bodies and clients that do not ask are sent as they are
+      assertFalse(send("PATCH", "/user/9", big).headers().firstValue("Content-Encoding").isPresent());
+      HttpRequest small = HttpRequest.newBuilder()
+              .uri(URI.create(gatewayUrl + "/user/9"))
+              .header("Accept-Encoding", "gzip")
+              .build();
+      assertFalse(HttpClient.newHttpClient().send(small, HttpResponse.BodyHandlers.ofString())
+              .headers().firstValue("Content-Encoding").isPresent());
+   }
+
+   @Test
+   public void compressionNegotiatesAndRoundTrips() throws IOException {
+      assertEquals("gzip", Compression.accepted("deflate, gzip"));
+      assertEquals("deflate", Compression.accepted("deflate, gzip;q=0"));
+      // * only stands for codings the header does not name
+      assertEquals("deflate", Compression.accepted("gzip;q=0, *"));
+      assertEquals("deflate", Compression.accepted("*, gzip;q=0"));
+      assertNull(Compression.accepted("gzip;q=0, deflate;q=0, *"));
+      assertEquals("gzip", Compression.accepted("*"));
+      assertNull(Compression.accepted("*;q=0"));
+      assertNull(Compression.accepted("identity"));
+      assertNull(Compression.accepted(null));
+
+      Compression compression = new Compression(true, 0, 6);
+      byte[] body = "{\"trips\":[]}".repeat(200).getBytes(StandardCharsets.UTF_8);
+      for (int i = 0; i < 3; i++) {
+         // deflaters are reused between bodies
+         byte[] deflated = compression.compress(body, "deflate");
+         try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+            assertArrayEquals(body, in.readAllBytes());
+         }
+         byte[] gzipped = compression.compress(body, "gzip");
+         try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            assertArrayEquals(body, in.readAllBytes());
+         }
+      }
+   }
+
+   @Test
+   public void hedgedGetUsesTheFasterReplica() throws Exception {
+      HttpServer slow = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      slow.createContext("/", exchange -> {
+         try {
+            Thread.sleep(3000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         exchange.sendResponseHeaders(500, -1);
+         exchange.close();
+      });
+      slow.setExecutor(Executors.newCachedThreadPool());
+      slow.start();
+
+      Properties properties = new Properties();
+      properties.setProperty("upstream.hedged.url", "http://localhost:" + slow.getAddress().getPort() + "," + backendUrl);
+      properties.setProperty("hedge.minSamples", "0");
+      properties.setProperty("hedge.minDelayMs", "50");
+      properties.setProperty("hedge.maxPercent", "100");
+      GatewayConfig config = new GatewayConfig(properties);
+      Upstream upstream = new Upstream("hedged", config);
+      Hedge hedge = new Hedge("test", config);
+      // keep the load balancer sending the first copy to the slow replica
+      Endpoint fast = upstream.getEndpoints().get(1);
+      for (int i = 0; i < 5; i++) {
+         fast.begin();
+      }
+
+      HttpServer front = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      front.createContext("/", exchange -> {
+         try {
+            upstream.fetchHedged(exchange, exchange.getRequestURI().getRawPath(), hedge).writeTo(exchange);
+         } catch (InterruptedException e) {
+            exchange.sendResponseHeaders(500, -1);
+         }
+      });
+      front.setExecutor(Executors.newCachedThreadPool());
+      front.start();
+      try {
+         HttpRequest request = HttpRequest.newBuilder(
+                 URI.create("http://localhost:" + front.getAddress().getPort() + "/user/3")).build();
+         long start = System.nanoTime();
+         HttpResponse<String> res = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+         assertEquals(200, res.statusCode());
+         assertEquals("GET /user/3 ", res.body());
+         assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+
+         JSONObject metrics = Metrics.snapshot();
+         assertEquals(1, metrics.getLong("hedge.test.hedged"));
+         assertEquals(1, metrics.getLong("hedge.test.wins"));
+      } finally {
+         front.stop(0);
+         slow.stop(0);
+      }
+   }
+
+   @Test
+   public void hedgeAfterTheDeadlineReleasesItsPermits() throws Exception {
+      // answers at once, so the request's timeout is met, but holds the body back
+      HttpServer slow = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      slow.createContext("/", exchange -> {
+         exchange.sendResponseHeaders(200, 0);
+         try {
+            Thread.sleep(1000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         exchange.getResponseBody().write('x');
+         exchange.close();
+      });
+      slow.setExecutor(Executors.newCachedThreadPool());
+      slow.start();
+
+      Properties properties = new Properties();
+      properties.setProperty("upstream.lateHedge.url", "http://localhost:" + slow.getAddress().getPort() + "," + backendUrl);
+      properties.setProperty("hedge.minSamples", "0");
+      properties.setProperty("hedge.minDelayMs", "200");
+      properties.setProperty("hedge.maxPercent", "100");
+      GatewayConfig config = new GatewayConfig(properties);
+      Upstream upstream = new Upstream("lateHedge", config);
+      Hedge hedge = new Hedge("late", config);
+      Endpoint fast = upstream.getEndpoints().get(1);
+      for (int i = 0; i < 5; i++) {
+         fast.begin();
+      }
+
+      HttpServer front = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      front.createContext("/", exchange -> {
+         // the deadline passes before the hedge delay
+         Deadline.start(exchange, 100);
+         try {
+            upstream.fetchHedged(exchange, exchange.getRequestURI().getRawPath(), hedge).writeTo(exchange);
+         } catch (UpstreamException e) {
+            exchange.sendResponseHeaders(e.getStatus(), -1);
+            exchange.close();
+         } catch (InterruptedException e) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+         }
+      });
+      front.setExecutor(Executors.newCachedThreadPool());
+      front.start();
+      try {
+         HttpRequest request = HttpRequest.newBuilder(
+                 URI.create("http://localhost:" + front.getAddress().getPort() + "/user/3")).build();
+         assertEquals(504, HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+         // the cancelled primary releases its permits asynchronously
+         long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+         JSONObject metrics = Metrics.snapshot();
+         while ((metrics.getLong("upstream.lateHedge.pool.inUse") != 0
+                 || metrics.getLong("upstream.lateHedge.limit.inFlight") != 0) && System.nanoTime() < until) {
+            Thread.sleep(10);
+            metrics = Metrics.snapshot();
+         }
+         assertEquals(0, metrics.getLong("upstream.lateHedge.pool.inUse"));
+         assertEquals(0, metrics.getLong("upstream.lateHedge.limit.inFlight"));
+         assertEquals(0, metrics.getLong("hedge.late.hedged"));
+      } finally {
+         front.stop(0);
+         slow.stop(0);
+      }
+   }
+
+   @Test
+   public void deadlineCapsBackendCallsAndIsPassedOn() throws Exception {
+      AtomicReference<String> received = new AtomicReference<>();
+      HttpServer slow = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      slow.createContext("/", exchange -> {
+         received.set(exchange.getRequestHeaders().getFirst(Deadline.HEADER));
+         try {
+            Thread.sleep(2000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         exchange.sendResponseHeaders(200, -1);
+         exchange.close();
+      });
+      slow.setExecutor(Executors.newCachedThreadPool());
+      slow.start();
+
+      Properties properties = new Properties();
+      properties.setProperty("upstream.deadline.url", "http://localhost:" + slow.getAddress().getPort());
+      Upstream upstream = new Upstream("deadline", new GatewayConfig(properties));
+      HttpServer front = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      front.createContext("/", exchange -> {
+         Deadline.start(exchange, 10000);
+         try {
+            upstream.forward(exchange, exchange.getRequestURI().getRawPath());
+         } catch (UpstreamException e) {
+            exchange.sendResponseHeaders(e.getStatus(), -1);
+            exchange.close();
+         } catch (InterruptedException e) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+         }
+      });
+      front.setExecutor(Executors.newCachedThreadPool());
+      front.start();
+      try {
+         HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + front.getAddress().getPort() + "/trip/1"))
+                 .header(Deadline.HEADER, "300")
+                 .build();
+         long start = System.nanoTime();
+         HttpResponse<String> res = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+         assertEquals(504, res.statusCode());
+         assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+         long passedOn = Long.parseLong(received.get());
+         assertTrue(passedOn > 0 && passedOn <= 300);
+      } finally {
+         front.stop(0);
+         slow.stop(0);
+      }
+
+      // a request that is already out of time never reaches the backend
+      HttpRequest expired = HttpRequest.newBuilder(URI.create(gatewayUrl + "/trip/driver/1"))
+              .header(Deadline.HEADER, "0")
+              .build();
+      HttpResponse<String> res = HttpClient.newHttpClient().send(expired, HttpResponse.BodyHandlers.ofString());
+      assertEquals(504, res.statusCode());
+      assertEquals("{\"status\":\"GATEWAY TIMEOUT\"}", res.body());
+   }
+
+   @Test
+   public void tripStatusMergesPartsAndLeavesOutSlowOnes() throws Exception {
+      Properties properties = new Properties();
+      properties.setProperty("tripStatus.partTimeoutMs", "200");
+      TripStatus tripStatus = new TripStatus(new GatewayConfig(properties));
+      Router<Route> router = new Router<>();
+      router.add("GET", "/trip/{id}/status", new Route("GET", "/trip/{id}/status", Upstream.trip));
+      CountDownLatch interrupted = new CountDownLatch(1);
+      Batch.Dispatcher dispatcher = (method, path, query, headers, body, timeout) -> {
+         String reply;
+         if (path.equals("/trip/t1")) {
+            reply = "{\"status\":\"OK\",\"data\":{\"driver\":\"d1\",\"passenger\":\"p1\"}}";
+         } else if (path.equals("/location/d1")) {
+            reply = "{\"status\":\"OK\",\"data\":{\"longitude\":1.5,\"latitude\":2.5,\"street\":\"King\"}}";
+         } else if (path.equals("/location/navigation/d1") && "passengerUid=p1".equals(query)) {
+            try {
+               Thread.sleep(2000);
+            } catch (InterruptedException e) {
+               interrupted.countDown();
+               throw e;
+            }
+            reply = "{\"status\":\"OK\",\"data\":{\"total_time\":7}}";
+         } else if (path.equals("/user/d1")) {
+            reply = "{\"name\":\"Dee\",\"is_driver\":true}";
+         } else {
+            return new BufferedResponse(404, new HashMap<>(), "{\"status\":\"NOT FOUND\"}".getBytes(StandardCharsets.UTF_8));
+         }
+         return new BufferedResponse(200, new HashMap<>(), reply.getBytes(StandardCharsets.UTF_8));
+      };
+
+      long start = System.nanoTime();
+      BufferedResponse res = tripStatus.fetch(router.match("GET", "/trip/t1/status"), new HashMap<>(),
+              TimeUnit.SECONDS.toNanos(5), dispatcher);
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+      assertEquals(200, res.getStatus());
+      JSONObject body = new JSONObject(new String(res.getBody(), StandardCharsets.UTF_8));
+      JSONObject data = body.getJSONObject("data");
+      assertEquals("d1", data.getJSONObject("trip").getString("driver"));
+      assertEquals("King", data.getJSONObject("location").getString("street"));
+      assertEquals("Dee", data.getJSONObject("driver").getString("name"));
+      assertFalse(data.has("eta"));
+      assertEquals("[\"eta\"]", body.getJSONArray("missing").toString());
+      // the slow part is interrupted instead of holding a tripStatus thread until it answers
+      assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+
+      // without a trip there is nothing to show
+      assertEquals(404, tripStatus.fetch(router.match("GET", "/trip/t2/status"), new HashMap<>(),
+              TimeUnit.SECONDS.toNanos(5), dispatcher).getStatus());
+   }
+
+   @Test
+   public void sessionTokensAreCheckedAtTheGateway() throws IOException, InterruptedException {
+      SessionToken tokens = new SessionToken("secret".getBytes(StandardCharsets.UTF_8), 60);
+      String token = tokens.issue("42");
+      assertEquals("42", tokens.verify(token));
+      assertNull(new SessionToken("other".getBytes(StandardCharsets.UTF_8), 60).verify(token));
+      assertNull(tokens.verify(token.substring(0, token.length() - 2) + "AA"));
+      assertNull(tokens.verify("not.a-token"));
+      assertNull(new SessionToken("secret".getBytes(StandardCharsets.UTF_8), -1).verify(
+              new SessionToken("secret".getBytes(StandardCharsets.UTF_8), -1).issue("42")));
+
+      Properties properties = new Properties();
+      properties.setProperty("token.secret", "secret");
+      HttpServer checked = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      checked.createContext("/", new ReqHandler(new GatewayConfig(properties)));
+      checked.start();
+      try {
+         HttpClient client = HttpClient.newHttpClient();
+         URI uri = URI.create("http://localhost:" + checked.getAddress().getPort() + "/user/42");
+         HttpRequest good = HttpRequest.newBuilder(uri).header("Authorization", "Bearer " + token).build();
+         assertEquals(200, client.send(good, HttpResponse.BodyHandlers.ofString()).statusCode());
+         HttpRequest bad = HttpRequest.newBuilder(uri).header("Authorization", "Bearer " + token + "x").build();
+         HttpResponse<String> res = client.send(bad, HttpResponse.BodyHandlers.ofString());
+         assertEquals(401, res.statusCode());
+         assertEquals("{\"status\":\"UNAUTHORIZED\"}", res.body());
+         // requests without a token are still passed on
+         assertEquals(200, client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+      } finally {
+         checked.stop(0);
+      }
+   }
+
+   @Test
+   public void serverExecutorGaugesAndBoundedQueue() throws InterruptedException, JSONException {
+      ServerExecutor executor = new ServerExecutor("test", "platform", 1, 1);
+      CountDownLatch running = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(2);
+      executor.execute(() -> {
+         running.countDown();
+         try {
+            release.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         done.countDown();
+      });
+      assertTrue(running.await(5, TimeUnit.SECONDS));
+      executor.execute(done::countDown);
+      assertEquals(1, executor.inFlight());
+      assertEquals(1, executor.queued());
+      assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+      assertEquals(1, executor.rejected());
+
+      release.countDown();
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      JSONObject stats = executor.stats();
+      assertEquals("platform", stats.getString("server.executor"));
+      assertEquals(0, stats.getInt("server.queued"));
+      assertThrows(IllegalArgumentException.class, () -> new ServerExecutor("test", "fibers", 1, 1));
+   }
 }
@@ -0,0 +1,89 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares ServerExecutor's modes: an HttpServer whose handler blocks for a while, like a slow
+ * query, is driven by 1, 8 and 64 concurrent clients, once with virtual threads and once with a
+ * platform pool, and the requests per second are printed. Every service uses the same executor,
+ * so this stands in for all of them without needing their databases.
+ *
+ * Run with: mvn test-compile exec:java -Pbench
+ *
+ * Properties (all optional):
+ *   bench.clients    concurrency levels (1,8,64)
+ *   bench.requests   requests sent at each level (640)
+ *   bench.delayMs    time the handler blocks (20)
+ *   bench.threads    platform pool size (8)
+ */
+public class ExecutorBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      String[] levels = System.getProperty("bench.clients", "1,8,64").split(",");
+      int requests = Integer.getInteger("bench.requests", 640);
+      int delayMs = Integer.getInteger("bench.delayMs", 20);
+      int threads = Integer.getInteger("bench.threads", 8);
+
+      System.out.printf("%-10s %8s %12s%n", "executor", "clients", "requests/s");
+      for (String mode : List.of("virtual", "platform")) {
+         ServerExecutor executor = new ServerExecutor("bench", mode, threads, requests);
+         HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 128);
+         server.createContext("/", exchange -> {
+            try {
+               Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+         });
+         server.setExecutor(executor);
+         server.start();
+         try {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + server.getAddress().getPort() + "/")).build();
+            for (String level : levels) {
+               int clients = Integer.parseInt(level.trim());
+               double seconds = run(client, request, clients, Math.max(1, requests / clients));
+               System.out.printf("%-10s %8d %12.0f%n", mode, clients, clients * Math.max(1, requests / clients) / seconds);
+            }
+         } finally {
+            server.stop(0);
+         }
+      }
+   }
+
+   /**
+    * @return seconds taken for every client to send its requests one after another
+    */
+   private static double run(HttpClient client, HttpRequest request, int clients, int perClient) throws Exception {
+      long start = System.nanoTime();
+      try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+         List<Future<?>> futures = new ArrayList<>();
+         for (int c = 0; c < clients; c++) {
+            futures.add(pool.submit(() -> {
+               for (int i = 0; i < perClient; i++) {
+                  client.send(request, HttpResponse.BodyHandlers.discarding());
+               }
+               return null;
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      }
+      return (System.nanoTime() - start) / 1e9;
+   }
+}
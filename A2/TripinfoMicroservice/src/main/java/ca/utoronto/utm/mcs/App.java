@@ -1,21 +1,36 @@
 package ca.utoronto.utm.mcs;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.List;
 
 public class App {
    static int PORT = 8000;
 
    public static void main(String[] args) throws IOException {
+      List<Filter> filters = List.of(AccessLog.fromEnv("tripinfomicroservice").filter(), Deadline.filter());
       HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", PORT), 0);
-      server.createContext("/trip/request", new request());
-      server.createContext("/trip/confirm", new confirm());
-      server.createContext("/trip/", new id());
-      server.createContext("/trip/passenger/", new passenger());
-      server.createContext("/trip/driver/", new driver());
-      server.createContext("/trip/driverTime/", new driverTime());
+      // platform by default: the Mongo driver is older than virtual threads and blocks on its
+      // sockets while holding monitors
+      ServerExecutor executor = ServerExecutor.fromEnv("tripinfomicroservice", "platform");
+      server.setExecutor(executor);
+      server.createContext("/trip/request", new request()).getFilters().addAll(filters);
+      server.createContext("/trip/confirm", new confirm()).getFilters().addAll(filters);
+      server.createContext("/trip/", new id()).getFilters().addAll(filters);
+      server.createContext("/trip/passenger/", new passenger()).getFilters().addAll(filters);
+      server.createContext("/trip/driver/", new driver()).getFilters().addAll(filters);
+      server.createContext("/trip/driverTime/", new driverTime()).getFilters().addAll(filters);
+      server.createContext("/metrics", exchange -> {
+         try {
+            Utils.handleResponse(executor.stats(), exchange, 200);
+         } catch (JSONException e) {
+            exchange.sendResponseHeaders(500, -1);
+         }
+      });
 
       server.start();
       System.out.printf("Server started on port %d...\n", PORT);
@@ -50,8 +50,9 @@ public class confirm implements HttpHandler {
             res.put("status", "BAD REQUEST");
             Utils.handleResponse(res, r, 400);
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, r, 500);
+            int status = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, r, status);
         }
     }
 }
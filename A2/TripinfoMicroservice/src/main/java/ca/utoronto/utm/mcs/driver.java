@@ -12,6 +12,7 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class driver implements HttpHandler {
     public driver() {
@@ -47,6 +48,7 @@ public class driver implements HttpHandler {
             String uid = uriSplitter[3];
 
             List<Document> tripsList = Utils.collection.find(Filters.eq("driver", uid))
+                    .maxTime(Deadline.timeoutMillis(r), TimeUnit.MILLISECONDS)
                     .projection(Projections.exclude("driver", "discount"))
                     .into(new ArrayList<>());
             if (tripsList.size() == 0) {
@@ -66,8 +68,9 @@ public class driver implements HttpHandler {
             res.put("status", "BAD REQUEST");
             Utils.handleResponse(res, r, 400);
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, r, 500);
+            int status = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, r, status);
         }
     }
 }
@@ -11,6 +11,7 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class driverTime implements HttpHandler {
     public driverTime() {
@@ -43,13 +44,15 @@ public class driverTime implements HttpHandler {
         try {
             String id = uriSplitter[3];
 
-            Document trip = Utils.collection.find(Filters.eq("_id", id)).first();
+            Document trip = Utils.collection.find(Filters.eq("_id", id))
+                    .maxTime(Deadline.timeoutMillis(r), TimeUnit.MILLISECONDS)
+                    .first();
 
             String driverUid = trip.get("driver").toString();
             String passengerUid = trip.get("passenger").toString();
 
             JSONObject getRes = Utils.SendNoBodyRequest(Utils.APIGateway + "/location/navigation/" +
-                    driverUid + "?passengerUid=" + passengerUid, "GET");
+                    driverUid + "?passengerUid=" + passengerUid, "GET", r);
             JSONObject data = new JSONObject();
 
             if (getRes.get("status").equals("OK")) {
@@ -64,8 +67,9 @@ public class driverTime implements HttpHandler {
                 Utils.handleResponse(res, r, 404);
             }
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, r, 500);
+            int status = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, r, status);
         }
     }
 }
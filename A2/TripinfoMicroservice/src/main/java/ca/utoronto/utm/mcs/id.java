@@ -5,6 +5,7 @@ import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.Updates;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.json.JSONException;
@@ -12,6 +13,7 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 public class id implements HttpHandler {
     public id() {
@@ -21,6 +23,9 @@ public class id implements HttpHandler {
     @Override
     public void handle(HttpExchange r) throws IOException {
         try {
+            if (r.getRequestMethod().equals("GET")) {
+                handleGET(r);
+            }
             if (r.getRequestMethod().equals("PATCH")) {
                 handlePATCH(r);
             }
@@ -31,6 +36,36 @@ public class id implements HttpHandler {
         }
     }
 
+    private void handleGET(HttpExchange r) throws JSONException, IOException {
+        String[] uriSplitter = r.getRequestURI().getPath().split("/");
+        JSONObject res = new JSONObject();
+        if (uriSplitter.length != 3 || !ObjectId.isValid(uriSplitter[2])) {
+            res.put("status", "BAD REQUEST");
+            Utils.handleResponse(res, r, 400);
+            return;
+        }
+
+        try {
+            ObjectId id = new ObjectId(uriSplitter[2]);
+            Document trip = Utils.collection.find(Filters.eq("_id", id))
+                    .maxTime(Deadline.timeoutMillis(r), TimeUnit.MILLISECONDS)
+                    .first();
+            if (trip == null) {
+                res.put("status", "NOT FOUND");
+                Utils.handleResponse(res, r, 404);
+                return;
+            }
+            trip.put("_id", id.toHexString());
+            res.put("status", "OK");
+            res.put("data", new JSONObject(trip.toJson()));
+            Utils.handleResponse(res, r, 200);
+        } catch (Exception e) {
+            int status = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, r, status);
+        }
+    }
+
     private void handlePATCH(HttpExchange r) throws JSONException, IOException {
         JSONObject request = Utils.handleRequest(r.getRequestBody());
         String requestURI = r.getRequestURI().toString();
@@ -62,8 +97,9 @@ public class id implements HttpHandler {
             res.put("status", "BAD REQUEST");
             Utils.handleResponse(res, r, 400);
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, r, 500);
+            int status = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, r, status);
         }
     }
 }
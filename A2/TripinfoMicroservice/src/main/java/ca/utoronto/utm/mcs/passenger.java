@@ -14,6 +14,7 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class passenger implements HttpHandler {
     public passenger() {
@@ -55,6 +56,7 @@ public class passenger implements HttpHandler {
 //            }
 
             List<Document> tripsList = Utils.collection.find(Filters.eq("passenger", uid))
+                    .maxTime(Deadline.timeoutMillis(r), TimeUnit.MILLISECONDS)
                     .projection(Projections.exclude("passenger", "driverPayout"))
                     .into(new ArrayList<>());
             if (tripsList.size() == 0) {
@@ -74,8 +76,9 @@ public class passenger implements HttpHandler {
             res.put("status", "BAD REQUEST");
             Utils.handleResponse(res, r, 400);
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, r, 500);
+            int status = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, r, status);
         }
     }
 }
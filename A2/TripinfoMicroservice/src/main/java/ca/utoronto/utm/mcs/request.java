@@ -35,7 +35,7 @@ public class request implements HttpHandler {
 
         try {
             JSONObject getRes = Utils.SendNoBodyRequest(Utils.APIGateway + "/location/nearbyDriver/" +
-                    request.get("uid") + "?radius=" + request.get("radius"), "GET");
+                    request.get("uid") + "?radius=" + request.get("radius"), "GET", r);
 
             List<Integer> drivers = new ArrayList<>();
             if (getRes.get("status").equals("OK")) {
@@ -54,8 +54,9 @@ public class request implements HttpHandler {
             res.put("status", "BAD REQUEST");
             Utils.handleResponse(res, r, 400);
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, r, 500);
+            int status = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, r, status);
         }
 
 
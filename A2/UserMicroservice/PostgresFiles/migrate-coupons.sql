@@ -0,0 +1,22 @@
+-- Moves coupons from the Users.availableCoupons and redeemedCoupons arrays into user_coupons on a
+-- database created before that table existed. Safe to run more than once.
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS user_coupons(
+    id BIGSERIAL NOT NULL PRIMARY KEY,
+    uid integer NOT NULL,
+    cid integer NOT NULL,
+    state varchar(9) NOT NULL DEFAULT 'available' CHECK (state IN ('available', 'redeemed')),
+    issued_at timestamptz NOT NULL DEFAULT now(),
+    redeemed_at timestamptz
+);
+CREATE INDEX IF NOT EXISTS user_coupons_uid_state ON user_coupons (uid, state, cid);
+
+INSERT INTO user_coupons (uid, cid, state)
+SELECT uid, unnest(availableCoupons), 'available' FROM Users;
+INSERT INTO user_coupons (uid, cid, state, redeemed_at)
+SELECT uid, unnest(redeemedCoupons), 'redeemed', now() FROM Users;
+UPDATE Users SET availableCoupons = '{}', redeemedCoupons = '{}'
+WHERE availableCoupons <> '{}' OR redeemedCoupons <> '{}';
+
+COMMIT;
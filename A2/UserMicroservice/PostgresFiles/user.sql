@@ -1,5 +1,6 @@
 DROP TABLE IF EXISTS Users;
 DROP TABLE IF EXISTS Coupons;
+DROP TABLE IF EXISTS user_coupons;
 
 CREATE TABLE Users(
 	uid SERIAL NOT NULL PRIMARY KEY,
@@ -12,6 +13,18 @@ CREATE TABLE Users(
     redeemedCoupons integer[] NOT NULL
 );
 
+-- One row per coupon given to a user. Users.availableCoupons and redeemedCoupons are no longer
+-- read or written; they stay only so existing inserts keep working.
+CREATE TABLE user_coupons(
+    id BIGSERIAL NOT NULL PRIMARY KEY,
+    uid integer NOT NULL,
+    cid integer NOT NULL,
+    state varchar(9) NOT NULL DEFAULT 'available' CHECK (state IN ('available', 'redeemed')),
+    issued_at timestamptz NOT NULL DEFAULT now(),
+    redeemed_at timestamptz
+);
+CREATE INDEX user_coupons_uid_state ON user_coupons (uid, state, cid);
+
 CREATE TABLE Coupons(
     cid SERIAL NOT NULL PRIMARY KEY,
     "name" varchar(255) NOT NULL,
@@ -1,20 +1,55 @@
 package ca.utoronto.utm.mcs;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
 
 public class App {
    static int PORT = 8000;
 
-   public static void main(String[] args) throws IOException, ClassNotFoundException, SQLException {
+   public static void main(String[] args) throws IOException, ClassNotFoundException {
+      List<Filter> filters = List.of(AccessLog.fromEnv("usermicroservice").filter(), Deadline.filter());
+      ConnectionPool pool = ConnectionPool.fromEnv();
+      ProfileCache cache = ProfileCache.fromEnv();
+      CouponCatalog catalog = CouponCatalog.fromEnv(pool);
+      RideCounter rideCounter = RideCounter.fromEnv(pool, cache);
       HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", PORT), 0);
-      server.createContext("/user", new User());
-      server.createContext("/user/login", new login());
-      server.createContext("/user/register", new register());
+      // platform by default: the Postgres driver reads its socket inside synchronized blocks,
+      // which would pin virtual threads
+      ServerExecutor executor = ServerExecutor.fromEnv("usermicroservice", "platform");
+      server.setExecutor(executor);
+      server.createContext("/user", new User(pool, cache)).getFilters().addAll(filters);
+      server.createContext("/user/login", new login(pool)).getFilters().addAll(filters);
+      server.createContext("/user/register", new register(pool, cache)).getFilters().addAll(filters);
+      server.createContext("/user/bulk", new bulkRegister(pool, cache)).getFilters().addAll(filters);
+      server.createContext("/user/coupons", new coupons(pool, cache, catalog)).getFilters().addAll(filters);
+      server.createContext("/user/rides", new rides(rideCounter)).getFilters().addAll(filters);
+      server.createContext("/metrics", exchange -> {
+         try {
+            JSONObject stats = pool.stats();
+            for (JSONObject more : List.of(cache.stats(), rideCounter.stats(), executor.stats())) {
+               for (Iterator<?> it = more.keys(); it.hasNext(); ) {
+                  String key = it.next().toString();
+                  stats.put(key, more.get(key));
+               }
+            }
+            Utils.handleResponse(stats, exchange, 200);
+         } catch (JSONException e) {
+            exchange.sendResponseHeaders(500, -1);
+         }
+      });
       server.start();
+      // on SIGTERM, finish the requests in flight and then write the rides still counted in memory
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+         server.stop(1);
+         rideCounter.close();
+      }, "usermicroservice-shutdown"));
       System.out.printf("Server started on port %d...\n", PORT);
    }
 }
@@ -0,0 +1,379 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of Postgres connections shared by the handlers. A request borrows a connection
+ * with getConnection and gives it back by closing it, ideally in a try-with-resources block.
+ *
+ * At most DB_POOL_MAX connections are open at once; a request that finds them all in use waits
+ * up to DB_POOL_WAIT_MS, or the time its deadline has left, and then fails with an SQLException.
+ * Idle connections are reused most recently returned first, so the ones at the back stay idle
+ * and are closed after DB_POOL_IDLE_MS, down to DB_POOL_MIN. A connection that has been idle for
+ * more than DB_POOL_VALIDATE_MS is checked before it is handed out, and one that failed with a
+ * connection error is thrown away when it is returned, so the pool recovers by itself when
+ * Postgres restarts. A connection held for longer than DB_POOL_LEAK_MS is reported once on
+ * stderr with the stack trace of the code that borrowed it. The check is off by default, since
+ * it records a stack trace on every borrow.
+ *
+ * Settings come from environment variables:
+ *   DB_URL, DB_USER, DB_PASSWORD  connection details, default to the docker-compose database
+ *   DB_POOL_MIN          connections kept open while idle, default 2
+ *   DB_POOL_MAX          connections open at most, default 16
+ *   DB_POOL_WAIT_MS      longest wait for a free connection, default 1000
+ *   DB_POOL_IDLE_MS      idle time after which connections above the minimum are closed, default 300000
+ *   DB_POOL_VALIDATE_MS  idle time after which a connection is checked before use, default 5000
+ *   DB_POOL_LEAK_MS      time a connection may be held before it is reported, 0 to disable, default 0
+ *   DB_PREPARE_THRESHOLD executions of a statement before the driver prepares it on the server, default 1
+ */
+public class ConnectionPool {
+   private final String url;
+   private final String user;
+   private final String password;
+   private final String prepareThreshold;
+   private final int min;
+   private final int max;
+   private final long waitNanos;
+   private final long idleNanos;
+   private final long validateNanos;
+   private final long leakNanos;
+
+   // one permit per connection that may be lent out
+   private final Semaphore permits;
+   // most recently returned first
+   private final ConcurrentLinkedDeque<Pooled> idle = new ConcurrentLinkedDeque<>();
+   private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+   private final AtomicInteger open = new AtomicInteger();
+   private final AtomicInteger waiting = new AtomicInteger();
+   private final ScheduledExecutorService maintenance;
+
+   private final LongAdder created = new LongAdder();
+   private final LongAdder destroyed = new LongAdder();
+   private final LongAdder borrows = new LongAdder();
+   private final LongAdder timeouts = new LongAdder();
+   private final LongAdder leaks = new LongAdder();
+   private final LongAdder waitMicros = new LongAdder();
+   private final AtomicLong maxWaitMicros = new AtomicLong();
+
+   /**
+    * Opens the minimum number of connections, if the database is reachable, and starts the
+    * background thread that evicts idle connections, tops the pool back up and looks for leaks.
+    * @param url JDBC url
+    * @param user database user
+    * @param password database password
+    * @param prepareThreshold executions of a statement before it is prepared on the server
+    * @param min connections kept open while idle
+    * @param max connections open at most
+    * @param waitMs longest wait for a free connection
+    * @param idleMs idle time after which connections above min are closed
+    * @param validateMs idle time after which a connection is checked before use
+    * @param leakMs time a connection may be held before it is reported, 0 to disable
+    */
+   public ConnectionPool(String url, String user, String password, int prepareThreshold, int min, int max,
+                         long waitMs, long idleMs, long validateMs, long leakMs) throws ClassNotFoundException {
+      Class.forName("org.postgresql.Driver");
+      this.url = url;
+      this.user = user;
+      this.password = password;
+      this.prepareThreshold = String.valueOf(prepareThreshold);
+      this.max = max;
+      this.min = Math.min(min, max);
+      this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMs);
+      this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+      this.validateNanos = TimeUnit.MILLISECONDS.toNanos(validateMs);
+      this.leakNanos = TimeUnit.MILLISECONDS.toNanos(leakMs);
+      this.permits = new Semaphore(max, true);
+
+      maintain();
+      this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "connection-pool");
+         thread.setDaemon(true);
+         return thread;
+      });
+      long period = Math.max(1000, Math.min(idleMs, leakMs > 0 ? leakMs : idleMs) / 2);
+      maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+   }
+
+   public static ConnectionPool fromEnv() throws ClassNotFoundException {
+      return new ConnectionPool(env("DB_URL", Utils.url), env("DB_USER", "root"), env("DB_PASSWORD", "123456"),
+              Integer.parseInt(env("DB_PREPARE_THRESHOLD", "1")),
+              Integer.parseInt(env("DB_POOL_MIN", "2")), Integer.parseInt(env("DB_POOL_MAX", "16")),
+              Long.parseLong(env("DB_POOL_WAIT_MS", "1000")), Long.parseLong(env("DB_POOL_IDLE_MS", "300000")),
+              Long.parseLong(env("DB_POOL_VALIDATE_MS", "5000")), Long.parseLong(env("DB_POOL_LEAK_MS", "0")));
+   }
+
+   private static String env(String name, String def) {
+      String value = System.getenv(name);
+      return value == null || value.isEmpty() ? def : value;
+   }
+
+   /**
+    * Borrows a connection for a request, waiting no longer than the request's deadline allows.
+    * @param exchange the request
+    * @return the connection; closing it returns it to the pool
+    * @throws SQLException if no connection became free in time or a new one could not be opened
+    */
+   public Connection getConnection(HttpExchange exchange) throws SQLException {
+      return getConnection(Math.max(0, Math.min(waitNanos, Deadline.remainingNanos(exchange))));
+   }
+
+   /**
+    * Borrows a connection.
+    * @param timeoutNanos longest wait for a free connection
+    * @return the connection; closing it returns it to the pool
+    * @throws SQLException if no connection became free in time or a new one could not be opened
+    */
+   public Connection getConnection(long timeoutNanos) throws SQLException {
+      long start = System.nanoTime();
+      waiting.incrementAndGet();
+      try {
+         if (!permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+            timeouts.increment();
+            throw new SQLTransientConnectionException("no free database connection after "
+                    + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms", "08001");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLTransientConnectionException("interrupted while waiting for a database connection", "08001", e);
+      } finally {
+         waiting.decrementAndGet();
+      }
+      long waited = (System.nanoTime() - start) / 1000;
+      waitMicros.add(waited);
+      maxWaitMicros.accumulateAndGet(waited, Math::max);
+
+      Pooled pooled;
+      try {
+         pooled = take();
+      } catch (SQLException | RuntimeException e) {
+         permits.release();
+         throw e;
+      }
+      borrows.increment();
+      Lease lease = new Lease(pooled);
+      leases.add(lease);
+      return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, lease);
+   }
+
+   /**
+    * Takes an idle connection that still works, or opens a new one. Must hold a permit.
+    */
+   private Pooled take() throws SQLException {
+      Pooled pooled;
+      while ((pooled = idle.pollFirst()) != null) {
+         if (System.nanoTime() - pooled.returnedAt < validateNanos || isValid(pooled)) {
+            return pooled;
+         }
+         discard(pooled);
+      }
+      return connect();
+   }
+
+   private Pooled connect() throws SQLException {
+      Properties properties = new Properties();
+      properties.setProperty("user", user);
+      properties.setProperty("password", password);
+      // statements the handlers run repeatedly are parsed and planned once per connection
+      properties.setProperty("prepareThreshold", prepareThreshold);
+      Pooled pooled = new Pooled(DriverManager.getConnection(url, properties));
+      open.incrementAndGet();
+      created.increment();
+      return pooled;
+   }
+
+   private static boolean isValid(Pooled pooled) {
+      try {
+         return pooled.connection.isValid(1);
+      } catch (SQLException e) {
+         return false;
+      }
+   }
+
+   private void discard(Pooled pooled) {
+      open.decrementAndGet();
+      destroyed.increment();
+      try {
+         pooled.connection.close();
+      } catch (SQLException e) {
+         // already unusable
+      }
+   }
+
+   private void giveBack(Lease lease) {
+      leases.remove(lease);
+      Pooled pooled = lease.pooled;
+      try {
+         // the driver closes a connection whose socket failed, whichever statement hit it
+         if (pooled.connection.isClosed()) {
+            pooled.broken = true;
+         }
+         if (!pooled.broken && !pooled.connection.getAutoCommit()) {
+            pooled.connection.rollback();
+            pooled.connection.setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         pooled.broken = true;
+      }
+      if (pooled.broken) {
+         discard(pooled);
+      } else {
+         pooled.returnedAt = System.nanoTime();
+         idle.offerFirst(pooled);
+      }
+      // only after the connection is back, so whoever gets the permit finds it idle
+      permits.release();
+   }
+
+   /**
+    * Closes connections idle for too long, tops the pool back up to the minimum and reports
+    * connections that have been held for too long.
+    */
+   private void maintain() {
+      try {
+         long now = System.nanoTime();
+         while (open.get() > min) {
+            Pooled last = idle.peekLast();
+            if (last == null || now - last.returnedAt < idleNanos) {
+               break;
+            }
+            if (idle.removeLastOccurrence(last)) {
+               discard(last);
+            }
+         }
+         while (open.get() < min && permits.tryAcquire()) {
+            try {
+               idle.offerFirst(connect());
+            } catch (SQLException e) {
+               System.err.println("connection pool: cannot reach the database: " + e.getMessage());
+               break;
+            } finally {
+               permits.release();
+            }
+         }
+         if (leakNanos > 0) {
+            for (Lease lease : leases) {
+               if (!lease.reported && now - lease.borrowedAt > leakNanos) {
+                  lease.reported = true;
+                  leaks.increment();
+                  System.err.printf("connection pool: connection held for %dms, possibly leaked%n",
+                          TimeUnit.NANOSECONDS.toMillis(now - lease.borrowedAt));
+                  lease.origin.printStackTrace();
+               }
+            }
+         }
+      } catch (RuntimeException e) {
+         // keep the maintenance thread alive
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * @return the pool's counters and gauges, with wait times in microseconds
+    */
+   public JSONObject stats() throws JSONException {
+      long count = borrows.sum();
+      JSONObject json = new JSONObject();
+      json.put("pool.max", max);
+      json.put("pool.open", open.get());
+      json.put("pool.idle", idle.size());
+      json.put("pool.inUse", leases.size());
+      json.put("pool.waiting", waiting.get());
+      json.put("pool.created", created.sum());
+      json.put("pool.destroyed", destroyed.sum());
+      json.put("pool.borrows", count);
+      json.put("pool.timeouts", timeouts.sum());
+      json.put("pool.leaks", leaks.sum());
+      json.put("pool.wait.avgUs", count == 0 ? 0 : waitMicros.sum() / count);
+      json.put("pool.wait.maxUs", maxWaitMicros.get());
+      return json;
+   }
+
+   private static class Pooled {
+      final Connection connection;
+      volatile long returnedAt = System.nanoTime();
+      volatile boolean broken = false;
+
+      Pooled(Connection connection) {
+         this.connection = connection;
+      }
+   }
+
+   /**
+    * One borrowing of a connection: the handler behind the Connection given to the caller.
+    * Closing it returns the connection instead of closing it, and it cannot be used afterwards.
+    */
+   private class Lease implements InvocationHandler {
+      final Pooled pooled;
+      final long borrowedAt = System.nanoTime();
+      final Throwable origin;
+      final AtomicBoolean closed = new AtomicBoolean();
+      volatile boolean reported = false;
+
+      Lease(Pooled pooled) {
+         this.pooled = pooled;
+         this.origin = leakNanos > 0 ? new Throwable("connection borrowed here") : null;
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+         String name = method.getName();
+         if (name.equals("close")) {
+            if (closed.compareAndSet(false, true)) {
+               giveBack(this);
+            }
+            return null;
+         }
+         if (name.equals("isClosed")) {
+            return closed.get() || pooled.connection.isClosed();
+         }
+         if (name.equals("equals")) {
+            return proxy == args[0];
+         }
+         if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+         }
+         if (name.equals("toString")) {
+            return "pooled " + pooled.connection;
+         }
+         if (closed.get()) {
+            throw new SQLException("connection has been returned to the pool", "08003");
+         }
+         try {
+            return method.invoke(pooled.connection, args);
+         } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+               String state = ((SQLException) cause).getSQLState();
+               // connection exceptions, and Postgres shutting down or restarting
+               if (state != null && (state.startsWith("08") || state.startsWith("57P"))) {
+                  pooled.broken = true;
+               }
+            }
+            throw cause;
+         }
+      }
+   }
+}
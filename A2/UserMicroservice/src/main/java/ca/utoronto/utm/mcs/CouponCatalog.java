@@ -0,0 +1,134 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of the Coupons table. The catalog is small and hardly ever changes, so it is
+ * read once and then reloaded in the background every COUPON_CATALOG_REFRESH_MS (default
+ * 300000); lookups never touch the database. If Postgres is not reachable at startup the first
+ * lookup loads it instead.
+ */
+public class CouponCatalog {
+   private final ConnectionPool pool;
+   private volatile Map<Integer, Coupon> coupons = null;
+
+   public static class Coupon {
+      final int cid;
+      final String name;
+      final String description;
+      final String discount;
+      final LocalDate expiry;
+
+      Coupon(int cid, String name, String description, String discount, LocalDate expiry) {
+         this.cid = cid;
+         this.name = name;
+         this.description = description;
+         this.discount = discount;
+         this.expiry = expiry;
+      }
+
+      public int getCid() {
+         return cid;
+      }
+
+      /**
+       * @return whether the coupon can no longer be redeemed; it is valid through its expiry date
+       */
+      public boolean isExpired() {
+         return LocalDate.now().isAfter(expiry);
+      }
+
+      public JSONObject toJSON() throws JSONException {
+         JSONObject json = new JSONObject();
+         json.put("cid", cid);
+         json.put("name", name);
+         json.put("description", description);
+         json.put("discount", discount);
+         json.put("expiry", expiry.toString());
+         return json;
+      }
+   }
+
+   /**
+    * @param pool connections to read the catalog with
+    * @param refreshMs how often the catalog is reloaded
+    */
+   public CouponCatalog(ConnectionPool pool, long refreshMs) {
+      this.pool = pool;
+      try {
+         reload();
+      } catch (SQLException e) {
+         System.err.println("coupon catalog: cannot load coupons yet: " + e.getMessage());
+      }
+      ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "coupon-catalog");
+         thread.setDaemon(true);
+         return thread;
+      });
+      refresher.scheduleWithFixedDelay(() -> {
+         try {
+            reload();
+         } catch (SQLException e) {
+            // keep serving the copy we have
+            System.err.println("coupon catalog: reload failed: " + e.getMessage());
+         }
+      }, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+   }
+
+   public static CouponCatalog fromEnv(ConnectionPool pool) {
+      String refresh = System.getenv("COUPON_CATALOG_REFRESH_MS");
+      return new CouponCatalog(pool, refresh == null ? 300000 : Long.parseLong(refresh));
+   }
+
+   /**
+    * Reads the whole Coupons table and swaps it in.
+    */
+   public void reload() throws SQLException {
+      Map<Integer, Coupon> loaded = new LinkedHashMap<>();
+      try (Connection connection = pool.getConnection(TimeUnit.SECONDS.toNanos(5));
+           Statement st = connection.createStatement();
+           ResultSet rs = st.executeQuery("SELECT cid, \"name\", description, discount, expiry FROM Coupons ORDER BY cid")) {
+         while (rs.next()) {
+            int cid = rs.getInt("cid");
+            loaded.put(cid, new Coupon(cid, rs.getString("name"), rs.getString("description"),
+                    rs.getBigDecimal("discount").toPlainString(), rs.getDate("expiry").toLocalDate()));
+         }
+      }
+      coupons = Collections.unmodifiableMap(loaded);
+   }
+
+   /**
+    * @param cid coupon id
+    * @return the coupon, or null if there is no such coupon
+    */
+   public Coupon get(int cid) throws SQLException {
+      return loaded().get(cid);
+   }
+
+   public Collection<Coupon> all() throws SQLException {
+      return loaded().values();
+   }
+
+   private Map<Integer, Coupon> loaded() throws SQLException {
+      Map<Integer, Coupon> current = coupons;
+      if (current == null) {
+         reload();
+         current = coupons;
+      }
+      return current;
+   }
+}
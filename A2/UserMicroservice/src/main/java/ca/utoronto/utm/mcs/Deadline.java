@@ -0,0 +1,103 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request deadline set by the API gateway. The gateway sends the time a request has left in the
+ * X-Request-Timeout-Ms header. The filter turns it into a deadline on the exchange and answers
+ * 504 at once if it has already passed; handlers cap their database and HTTP calls at the time
+ * left, so a stuck query gives up at about the same time as the gateway instead of holding a
+ * thread after nobody is waiting for the answer.
+ *
+ * Requests without the header have no deadline.
+ */
+public class Deadline {
+   public static final String HEADER = "X-Request-Timeout-Ms";
+   private static final String ATTRIBUTE = Deadline.class.getName();
+
+   /**
+    * Filter that reads the deadline header of the contexts it is added to.
+    * @return the filter
+    */
+   public static Filter filter() {
+      return new Filter() {
+         @Override
+         public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            String header = exchange.getRequestHeaders().getFirst(HEADER);
+            if (header != null) {
+               try {
+                  long ms = Long.parseLong(header.trim());
+                  exchange.setAttribute(ATTRIBUTE, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms));
+                  if (ms <= 0) {
+                     byte[] body = "{\"status\":\"GATEWAY TIMEOUT\"}".getBytes(StandardCharsets.UTF_8);
+                     exchange.sendResponseHeaders(504, body.length);
+                     try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                     }
+                     return;
+                  }
+               } catch (NumberFormatException e) {
+                  // treated as no deadline
+               }
+            }
+            chain.doFilter(exchange);
+         }
+
+         @Override
+         public String description() {
+            return "request deadline";
+         }
+      };
+   }
+
+   /**
+    * @return nanoseconds until the deadline, negative once it has passed, Long.MAX_VALUE if the
+    *         request has none
+    */
+   public static long remainingNanos(HttpExchange exchange) {
+      Object deadline = exchange.getAttribute(ATTRIBUTE);
+      return deadline == null ? Long.MAX_VALUE : (Long) deadline - System.nanoTime();
+   }
+
+   public static boolean expired(HttpExchange exchange) {
+      return remainingNanos(exchange) <= 0;
+   }
+
+   /**
+    * Timeout for a call made on behalf of the request.
+    * @return milliseconds left, at least 1, or 0 if the request has no deadline
+    */
+   public static long timeoutMillis(HttpExchange exchange) {
+      long remaining = remainingNanos(exchange);
+      if (remaining == Long.MAX_VALUE) {
+         return 0;
+      }
+      return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+   }
+
+   /**
+    * Timeout in whole seconds, rounded up, for APIs such as JDBC's setQueryTimeout.
+    * @return seconds left, at least 1, or 0 if the request has no deadline
+    */
+   public static int timeoutSeconds(HttpExchange exchange) {
+      long ms = timeoutMillis(exchange);
+      return ms == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, (ms + 999) / 1000);
+   }
+
+   /**
+    * Status for a request that failed: 504 if it ran out of time, otherwise 500.
+    */
+   public static int failureStatus(HttpExchange exchange) {
+      return expired(exchange) ? 504 : 500;
+   }
+
+   public static String statusText(int status) {
+      return status == 504 ? "GATEWAY TIMEOUT" : "INTERNAL SERVER ERROR";
+   }
+}
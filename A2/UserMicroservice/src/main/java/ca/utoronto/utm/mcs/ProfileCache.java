@@ -0,0 +1,285 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of GET /user/{uid} responses, serialized, keyed by uid and bounded by entry
+ * count and bytes. Unknown uids are cached too, as their 404, since register invalidates the uid
+ * it creates.
+ *
+ * Entries are spread over independently locked LRU segments. Each segment keeps an epoch that
+ * moves on every invalidation, and a loaded profile is only stored if the epoch has not moved
+ * since the load started, so a read racing a PATCH can never put the old profile back. Only one
+ * load per uid runs at a time: requests that miss while it is in flight wait for it instead of
+ * all querying Postgres at once when a hot profile expires.
+ *
+ * Settings come from environment variables:
+ *   PROFILE_CACHE_ENTRIES  maximum cached profiles, default 10000
+ *   PROFILE_CACHE_BYTES    maximum total size of cached responses, default 16777216
+ *   PROFILE_CACHE_TTL_MS   how long a profile is served without a query, 0 to disable, default 30000
+ */
+public class ProfileCache {
+   private static final int SEGMENTS = 16;
+   // rough per-entry overhead of the map entry, key and Profile, counted towards the byte limit
+   private static final int ENTRY_OVERHEAD = 96;
+
+   private final long ttlNanos;
+   private final Segment[] segments = new Segment[SEGMENTS];
+   private final ConcurrentHashMap<Integer, CompletableFuture<Profile>> loading = new ConcurrentHashMap<>();
+
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder coalesced = new LongAdder();
+   private final LongAdder evictions = new LongAdder();
+   private final LongAdder invalidations = new LongAdder();
+
+   /**
+    * A serialized response.
+    */
+   public static class Profile {
+      final int status;
+      final byte[] body;
+
+      public Profile(int status, byte[] body) {
+         this.status = status;
+         this.body = body;
+      }
+
+      public int getStatus() {
+         return status;
+      }
+
+      public byte[] getBody() {
+         return body;
+      }
+   }
+
+   /**
+    * Reads a profile from the database.
+    */
+   public interface Loader {
+      Profile load() throws SQLException;
+   }
+
+   /**
+    * @param maxEntries maximum number of cached profiles
+    * @param maxBytes maximum total size of cached responses
+    * @param ttlMs how long a profile stays fresh, 0 to disable caching
+    */
+   public ProfileCache(int maxEntries, long maxBytes, long ttlMs) {
+      this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+      for (int i = 0; i < SEGMENTS; i++) {
+         segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), Math.max(1, maxBytes / SEGMENTS));
+      }
+   }
+
+   public static ProfileCache fromEnv() {
+      return new ProfileCache(Integer.parseInt(env("PROFILE_CACHE_ENTRIES", "10000")),
+              Long.parseLong(env("PROFILE_CACHE_BYTES", "16777216")), Long.parseLong(env("PROFILE_CACHE_TTL_MS", "30000")));
+   }
+
+   private static String env(String name, String def) {
+      String value = System.getenv(name);
+      return value == null || value.isEmpty() ? def : value;
+   }
+
+   /**
+    * Returns the cached profile, or loads it, joining a load of the same uid already in flight.
+    * @param uid the user
+    * @param timeoutNanos longest wait for another request's load
+    * @param loader reads the profile when this request has to load it itself
+    * @return the profile
+    * @throws SQLException if the load failed, or SQLTimeoutException if waiting for it timed out
+    */
+   public Profile get(int uid, long timeoutNanos, Loader loader) throws SQLException {
+      if (ttlNanos <= 0) {
+         return loader.load();
+      }
+      Segment segment = segmentFor(uid);
+      long epoch;
+      synchronized (segment) {
+         CacheEntry entry = segment.get(uid);
+         if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.increment();
+            return entry.profile;
+         }
+         if (entry != null) {
+            segment.remove(uid);
+            segment.bytes -= entry.size();
+         }
+         epoch = segment.epoch;
+      }
+      misses.increment();
+
+      CompletableFuture<Profile> mine = new CompletableFuture<>();
+      CompletableFuture<Profile> existing = loading.putIfAbsent(uid, mine);
+      if (existing != null) {
+         coalesced.increment();
+         return await(existing, timeoutNanos);
+      }
+      try {
+         Profile profile = loader.load();
+         put(segment, uid, profile, epoch);
+         mine.complete(profile);
+         return profile;
+      } catch (SQLException | RuntimeException e) {
+         mine.completeExceptionally(e);
+         throw e;
+      } finally {
+         loading.remove(uid, mine);
+      }
+   }
+
+   /**
+    * Returns the cached profile without loading it.
+    * @param uid the user
+    * @return the profile, or null if it is not cached or has expired
+    */
+   public Profile getIfPresent(int uid) {
+      if (ttlNanos <= 0) {
+         return null;
+      }
+      Segment segment = segmentFor(uid);
+      synchronized (segment) {
+         CacheEntry entry = segment.get(uid);
+         if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.increment();
+            return entry.profile;
+         }
+      }
+      misses.increment();
+      return null;
+   }
+
+   /**
+    * Drops a user's cached profile. Call after the user's row has been written.
+    * @param uid the user
+    */
+   public void invalidate(int uid) {
+      Segment segment = segmentFor(uid);
+      synchronized (segment) {
+         segment.epoch++;
+         CacheEntry entry = segment.remove(uid);
+         if (entry != null) {
+            segment.bytes -= entry.size();
+         }
+      }
+      // requests from now on must not join a load that may have read the old row
+      loading.remove(uid);
+      invalidations.increment();
+   }
+
+   private void put(Segment segment, int uid, Profile profile, long epoch) {
+      CacheEntry entry = new CacheEntry(profile, System.nanoTime() + ttlNanos);
+      synchronized (segment) {
+         if (segment.epoch != epoch || entry.size() > segment.maxBytes) {
+            return;
+         }
+         CacheEntry previous = segment.put(uid, entry);
+         if (previous != null) {
+            segment.bytes -= previous.size();
+         }
+         segment.bytes += entry.size();
+         segment.trim();
+      }
+   }
+
+   private static Profile await(CompletableFuture<Profile> future, long timeoutNanos) throws SQLException {
+      try {
+         return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+         throw new SQLTimeoutException("timed out waiting for another request to load the profile");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("interrupted while waiting for a profile", e);
+      } catch (CancellationException e) {
+         throw new SQLException("profile load was cancelled", e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) {
+            throw (SQLException) cause;
+         }
+         throw new SQLException(cause);
+      }
+   }
+
+   private Segment segmentFor(int uid) {
+      return segments[(uid ^ (uid >>> 16)) & (SEGMENTS - 1)];
+   }
+
+   /**
+    * @return the cache's counters and sizes
+    */
+   public JSONObject stats() throws JSONException {
+      long entries = 0;
+      long bytes = 0;
+      for (Segment segment : segments) {
+         synchronized (segment) {
+            entries += segment.size();
+            bytes += segment.bytes;
+         }
+      }
+      JSONObject json = new JSONObject();
+      json.put("profileCache.hits", hits.sum());
+      json.put("profileCache.misses", misses.sum());
+      json.put("profileCache.coalesced", coalesced.sum());
+      json.put("profileCache.evictions", evictions.sum());
+      json.put("profileCache.invalidations", invalidations.sum());
+      json.put("profileCache.entries", entries);
+      json.put("profileCache.bytes", bytes);
+      return json;
+   }
+
+   private static class CacheEntry {
+      final Profile profile;
+      final long expiresAt;
+
+      CacheEntry(Profile profile, long expiresAt) {
+         this.profile = profile;
+         this.expiresAt = expiresAt;
+      }
+
+      long size() {
+         return profile.body.length + ENTRY_OVERHEAD;
+      }
+   }
+
+   /**
+    * Access ordered map, so iteration starts at the least recently used entry.
+    */
+   private class Segment extends LinkedHashMap<Integer, CacheEntry> {
+      final int maxEntries;
+      final long maxBytes;
+      long bytes = 0;
+      long epoch = 0;
+
+      Segment(int maxEntries, long maxBytes) {
+         super(16, 0.75f, true);
+         this.maxEntries = maxEntries;
+         this.maxBytes = maxBytes;
+      }
+
+      void trim() {
+         Iterator<Map.Entry<Integer, CacheEntry>> it = entrySet().iterator();
+         while ((size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            bytes -= it.next().getValue().size();
+            it.remove();
+            evictions.increment();
+         }
+      }
+   }
+}
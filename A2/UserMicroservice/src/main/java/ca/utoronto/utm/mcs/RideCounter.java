@@ -0,0 +1,235 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts completed rides in memory and adds them to Users.rides in batches, so a busy driver's row
+ * is updated a few times a second at most instead of once per trip.
+ *
+ * Each uid has its own LongAdder, so concurrent increments of the same uid do not contend.
+ * Every flush drains the adders and sends the totals in UPDATE ... FROM (VALUES ...) statements,
+ * ordered by uid so two instances flushing at once cannot deadlock. A flush that fails keeps its
+ * totals for the next one, and close() flushes whatever is left, so counts survive a graceful
+ * shutdown; a crash loses at most one flush interval. A uid with no row is dropped by the UPDATE.
+ *
+ * Settings come from environment variables:
+ *   RIDE_FLUSH_MS     time between flushes, default 250
+ *   RIDE_FLUSH_BATCH  most uids per UPDATE statement, default 500
+ */
+public class RideCounter implements AutoCloseable {
+   private final Writer writer;
+   private final ProfileCache cache;
+   private final int batch;
+   private final ConcurrentHashMap<Integer, Counter> counters = new ConcurrentHashMap<>();
+   private final ScheduledExecutorService flusher;
+
+   private final LongAdder increments = new LongAdder();
+   private final LongAdder flushes = new LongAdder();
+   private final LongAdder flushedRows = new LongAdder();
+   private final LongAdder failures = new LongAdder();
+
+   /**
+    * A uid's pending rides. A counter that stayed idle for a whole interval is removed and
+    * retired; an increment that lands on it after that moves what the flush missed to a new one.
+    */
+   private static class Counter {
+      final LongAdder pending = new LongAdder();
+      volatile boolean retired = false;
+   }
+
+   /**
+    * Adds a batch of totals to the users' rows.
+    */
+   interface Writer {
+      void write(List<Map.Entry<Integer, Long>> rows) throws SQLException;
+   }
+
+   /**
+    * @param pool connections to flush with
+    * @param cache profiles to invalidate once their rides are written
+    * @param flushMs time between flushes
+    * @param batch most uids per UPDATE statement
+    */
+   public RideCounter(ConnectionPool pool, ProfileCache cache, long flushMs, int batch) {
+      this(rows -> {
+         try (Connection connection = pool.getConnection(TimeUnit.SECONDS.toNanos(5))) {
+            update(connection, rows);
+         }
+      }, cache, flushMs, batch);
+   }
+
+   /**
+    * @param writer writes each batch
+    * @param cache profiles to invalidate once their rides are written
+    * @param flushMs time between flushes
+    * @param batch most uids per batch
+    */
+   RideCounter(Writer writer, ProfileCache cache, long flushMs, int batch) {
+      this.writer = writer;
+      this.cache = cache;
+      this.batch = batch;
+      flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "ride-counter");
+         thread.setDaemon(true);
+         return thread;
+      });
+      flusher.scheduleWithFixedDelay(() -> {
+         try {
+            flush();
+         } catch (SQLException e) {
+            System.err.println("ride counter: flush failed, retrying next time: " + e.getMessage());
+         }
+      }, flushMs, flushMs, TimeUnit.MILLISECONDS);
+   }
+
+   public static RideCounter fromEnv(ConnectionPool pool, ProfileCache cache) {
+      return new RideCounter(pool, cache, Long.parseLong(env("RIDE_FLUSH_MS", "250")),
+              Integer.parseInt(env("RIDE_FLUSH_BATCH", "500")));
+   }
+
+   private static String env(String name, String def) {
+      String value = System.getenv(name);
+      return value == null || value.isEmpty() ? def : value;
+   }
+
+   /**
+    * Adds rides to a user; they are written by the next flush.
+    * @param uid the user
+    * @param delta rides to add
+    */
+   public void increment(int uid, long delta) {
+      increments.increment();
+      add(uid, delta);
+   }
+
+   private void add(int uid, long delta) {
+      while (delta != 0) {
+         Counter counter = counters.computeIfAbsent(uid, key -> new Counter());
+         counter.pending.add(delta);
+         if (!counter.retired) {
+            // the flush that retires it drains it afterwards, so it will see this add
+            return;
+         }
+         // the flush may already have drained it; take back whatever it left and start over
+         delta = counter.pending.sumThenReset();
+      }
+   }
+
+   /**
+    * Writes all pending rides. Called by the flusher thread and by close().
+    * @throws SQLException if a statement failed; the rides it carried are pending again
+    */
+   public synchronized void flush() throws SQLException {
+      // sorted by uid, so the rows are always locked in the same order
+      TreeMap<Integer, Long> deltas = new TreeMap<>();
+      for (Map.Entry<Integer, Counter> entry : counters.entrySet()) {
+         Counter counter = entry.getValue();
+         long delta = counter.pending.sumThenReset();
+         if (delta == 0) {
+            counters.remove(entry.getKey(), counter);
+            counter.retired = true;
+            delta = counter.pending.sumThenReset();
+         }
+         if (delta != 0) {
+            deltas.put(entry.getKey(), delta);
+         }
+      }
+      if (deltas.isEmpty()) {
+         return;
+      }
+      flushes.increment();
+
+      List<Map.Entry<Integer, Long>> rows = new ArrayList<>(deltas.entrySet());
+      int written = 0;
+      try {
+         for (; written < rows.size(); written += batch) {
+            List<Map.Entry<Integer, Long>> chunk = rows.subList(written, Math.min(rows.size(), written + batch));
+            writer.write(chunk);
+            for (Map.Entry<Integer, Long> row : chunk) {
+               cache.invalidate(row.getKey());
+            }
+            flushedRows.add(chunk.size());
+         }
+      } catch (SQLException e) {
+         failures.increment();
+         for (Map.Entry<Integer, Long> row : rows.subList(written, rows.size())) {
+            add(row.getKey(), row.getValue());
+         }
+         throw e;
+      }
+   }
+
+   private static void update(Connection connection, List<Map.Entry<Integer, Long>> rows) throws SQLException {
+      StringBuilder sql = new StringBuilder("UPDATE users SET rides = rides + v.delta FROM (VALUES ");
+      for (int i = 0; i < rows.size(); i++) {
+         sql.append(i == 0 ? "" : ", ").append("(?::integer, ?::bigint)");
+      }
+      sql.append(") AS v(uid, delta) WHERE users.uid = v.uid");
+      try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+         int parameter = 1;
+         for (Map.Entry<Integer, Long> row : rows) {
+            ps.setInt(parameter++, row.getKey());
+            ps.setLong(parameter++, row.getValue());
+         }
+         ps.executeUpdate();
+      }
+   }
+
+   /**
+    * Stops the flusher and writes what is still pending, retrying for up to five seconds so it
+    * finishes inside docker stop's default grace period.
+    */
+   @Override
+   public void close() {
+      flusher.shutdown();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (true) {
+         try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+            flush();
+            return;
+         } catch (SQLException e) {
+            if (System.nanoTime() - deadline > 0) {
+               System.err.println("ride counter: giving up on pending rides: " + e.getMessage());
+               return;
+            }
+            try {
+               Thread.sleep(200);
+            } catch (InterruptedException interrupted) {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+   }
+
+   /**
+    * @return the counter's totals
+    */
+   public JSONObject stats() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("rides.increments", increments.sum());
+      json.put("rides.pendingUsers", counters.size());
+      json.put("rides.flushes", flushes.sum());
+      json.put("rides.flushedRows", flushedRows.sum());
+      json.put("rides.flushFailures", failures.sum());
+      return json;
+   }
+}
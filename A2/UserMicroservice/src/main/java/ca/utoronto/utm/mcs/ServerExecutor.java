@@ -0,0 +1,136 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the HttpServer's exchanges. Without one the server handles every exchange on its
+ * dispatcher thread, one at a time, so a single slow call holds up every other request.
+ *
+ *   virtual   a new virtual thread per exchange, so requests waiting on I/O hold no platform thread
+ *   platform  a fixed pool of threads and a bounded queue; when the queue is full the exchange is
+ *             rejected and the server closes its connection
+ *
+ * Virtual threads only help while the code they run blocks without holding a monitor: a driver that
+ * does its socket I/O inside synchronized blocks pins the carrier thread, and then a small platform
+ * pool does as well.
+ *
+ * The gauges count exchanges running a handler (in flight) and exchanges waiting for a thread
+ * (queued; always near 0 for virtual threads).
+ */
+public class ServerExecutor implements Executor {
+   private final String mode;
+   private final int threads;
+   private final ExecutorService executor;
+
+   private final AtomicInteger inFlight = new AtomicInteger();
+   private final AtomicInteger queued = new AtomicInteger();
+   private final LongAdder completed = new LongAdder();
+   private final LongAdder rejected = new LongAdder();
+
+   /**
+    * @param name prefix of the threads' names
+    * @param mode "virtual" or "platform"
+    * @param threads pool size, for platform
+    * @param queue most exchanges waiting for a thread, for platform
+    */
+   public ServerExecutor(String name, String mode, int threads, int queue) {
+      this.mode = mode;
+      if (mode.equals("virtual")) {
+         this.threads = 0;
+         executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory());
+      } else if (mode.equals("platform")) {
+         this.threads = threads;
+         AtomicInteger count = new AtomicInteger();
+         executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+                 runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                 });
+      } else {
+         throw new IllegalArgumentException("unknown server executor " + mode + ", expected virtual or platform");
+      }
+   }
+
+   /**
+    * Reads SERVER_EXECUTOR (virtual or platform), SERVER_THREADS (default 32) and SERVER_QUEUE
+    * (default 1000).
+    * @param name prefix of the threads' names
+    * @param defaultMode mode used when SERVER_EXECUTOR is not set
+    */
+   public static ServerExecutor fromEnv(String name, String defaultMode) {
+      return new ServerExecutor(name, env("SERVER_EXECUTOR", defaultMode), Integer.parseInt(env("SERVER_THREADS", "32")),
+              Integer.parseInt(env("SERVER_QUEUE", "1000")));
+   }
+
+   private static String env(String name, String def) {
+      String value = System.getenv(name);
+      return value == null || value.isEmpty() ? def : value;
+   }
+
+   @Override
+   public void execute(Runnable exchange) {
+      queued.incrementAndGet();
+      try {
+         executor.execute(() -> {
+            queued.decrementAndGet();
+            inFlight.incrementAndGet();
+            try {
+               exchange.run();
+            } finally {
+               inFlight.decrementAndGet();
+               completed.increment();
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         queued.decrementAndGet();
+         rejected.increment();
+         throw e;
+      }
+   }
+
+   public String getMode() {
+      return mode;
+   }
+
+   public int inFlight() {
+      return inFlight.get();
+   }
+
+   public int queued() {
+      return queued.get();
+   }
+
+   public long completed() {
+      return completed.sum();
+   }
+
+   public long rejected() {
+      return rejected.sum();
+   }
+
+   /**
+    * @return the executor's mode and gauges
+    */
+   public JSONObject stats() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("server.executor", mode);
+      json.put("server.threads", threads);
+      json.put("server.inFlight", inFlight());
+      json.put("server.queued", queued());
+      json.put("server.completed", completed());
+      json.put("server.rejected", rejected());
+      return json;
+   }
+}
@@ -0,0 +1,130 @@
+package ca.utoronto.utm.mcs;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Signed, self-contained session tokens, in the JWT compact format with HS256:
+ * header.payload.signature, each part base64url encoded. The payload carries the user's uid and
+ * the issue and expiry times in epoch seconds, so whoever holds the shared secret can check a
+ * token without asking the user service.
+ *
+ * UserMicroservice issues tokens on login and the API gateway verifies them, both with the
+ * secret in the TOKEN_SECRET environment variable.
+ */
+public class SessionToken {
+   private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+   private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+   private static final String HEADER = ENCODER.encodeToString(
+           "{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+
+   private final SecretKeySpec key;
+   private final long ttlSeconds;
+   // Mac instances are not thread safe and costly to set up, so this one is keyed once and every
+   // signature works on a clone of it. A per-thread Mac would be set up again for every request
+   // when each request runs on a new virtual thread.
+   private final Mac prototype;
+
+   /**
+    * @param secret shared signing key
+    * @param ttlSeconds how long issued tokens stay valid
+    */
+   public SessionToken(byte[] secret, long ttlSeconds) {
+      if (secret.length == 0) {
+         throw new IllegalArgumentException("empty token secret");
+      }
+      this.key = new SecretKeySpec(secret, "HmacSHA256");
+      this.ttlSeconds = ttlSeconds;
+      this.prototype = newMac(key);
+   }
+
+   private static Mac newMac(SecretKeySpec key) {
+      try {
+         Mac mac = Mac.getInstance("HmacSHA256");
+         mac.init(key);
+         return mac;
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Creates tokens from TOKEN_SECRET and TOKEN_TTL_SECONDS (default 3600).
+    * @return the tokens, or null if TOKEN_SECRET is not set
+    */
+   public static SessionToken fromEnv() {
+      String secret = System.getenv("TOKEN_SECRET");
+      if (secret == null || secret.isEmpty()) {
+         return null;
+      }
+      String ttl = System.getenv("TOKEN_TTL_SECONDS");
+      return new SessionToken(secret.getBytes(StandardCharsets.UTF_8), ttl == null ? 3600 : Long.parseLong(ttl));
+   }
+
+   public long getTtlSeconds() {
+      return ttlSeconds;
+   }
+
+   /**
+    * @param uid the user the token is for
+    * @return a token valid for ttlSeconds from now
+    */
+   public String issue(String uid) {
+      long now = System.currentTimeMillis() / 1000;
+      JSONObject claims = new JSONObject();
+      try {
+         claims.put("uid", uid);
+         claims.put("iat", now);
+         claims.put("exp", now + ttlSeconds);
+      } catch (JSONException e) {
+         throw new IllegalStateException(e);
+      }
+      String signed = HEADER + "." + ENCODER.encodeToString(claims.toString().getBytes(StandardCharsets.UTF_8));
+      return signed + "." + ENCODER.encodeToString(sign(signed));
+   }
+
+   /**
+    * Checks a token's signature and expiry.
+    * @param token the token
+    * @return the uid it was issued for, or null if it is malformed, forged or expired
+    */
+   public String verify(String token) {
+      int first = token.indexOf('.');
+      int last = token.lastIndexOf('.');
+      if (first < 0 || first == last || !token.substring(0, first).equals(HEADER)) {
+         return null;
+      }
+      try {
+         byte[] signature = DECODER.decode(token.substring(last + 1));
+         if (!MessageDigest.isEqual(signature, sign(token.substring(0, last)))) {
+            return null;
+         }
+         JSONObject claims = new JSONObject(new String(DECODER.decode(token.substring(first + 1, last)),
+                 StandardCharsets.UTF_8));
+         if (claims.getLong("exp") <= System.currentTimeMillis() / 1000) {
+            return null;
+         }
+         return claims.getString("uid");
+      } catch (IllegalArgumentException | JSONException e) {
+         return null;
+      }
+   }
+
+   private byte[] sign(String data) {
+      Mac mac;
+      try {
+         mac = (Mac) prototype.clone();
+      } catch (CloneNotSupportedException e) {
+         // only if the provider cannot clone its Macs
+         mac = newMac(key);
+      }
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+   }
+}
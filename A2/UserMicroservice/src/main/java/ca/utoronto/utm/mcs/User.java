@@ -2,25 +2,65 @@ package ca.utoronto.utm.mcs;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class User implements HttpHandler {
-   public Connection connection;
+   // PATCH body keys that may be updated, and their columns in the same order
+   private static final List<String> PATCH_KEYS = List.of("name", "email", "password", "rides", "is_driver");
+   private static final List<String> PATCH_COLUMNS = List.of("prefer_name", "email", "password", "rides", "isdriver");
+   // one UPDATE per set of columns, indexed by a bit mask over PATCH_KEYS. Every PATCH uses one of
+   // these fixed strings, so the driver's per-connection statement cache can reuse the prepared
+   // statement on the server instead of parsing a freshly built one each time.
+   private static final String[] PATCH_SQL = new String[1 << PATCH_KEYS.size()];
 
-   public User() throws ClassNotFoundException, SQLException {
-      String url = Utils.url;
-      Class.forName("org.postgresql.Driver");
-      this.connection = DriverManager.getConnection(url, "root", "123456");
+   static {
+      for (int columns = 1; columns < PATCH_SQL.length; columns++) {
+         StringBuilder sql = new StringBuilder("UPDATE users SET ");
+         String separator = "";
+         for (int column = 0; column < PATCH_COLUMNS.size(); column++) {
+            if ((columns & 1 << column) != 0) {
+               sql.append(separator).append(PATCH_COLUMNS.get(column)).append(" = ?");
+               separator = ", ";
+            }
+         }
+         PATCH_SQL[columns] = sql.append(" WHERE uid = ? RETURNING uid").toString();
+      }
+   }
+
+   // coupons are read from user_coupons through its (uid, state, cid) index, in the old array format
+   private static final String PROFILE_COLUMNS = "prefer_name as name, email, rides, isdriver, "
+           + "ARRAY(SELECT cid FROM user_coupons c WHERE c.uid = users.uid AND c.state = 'available' ORDER BY c.id) AS availableCoupons, "
+           + "ARRAY(SELECT cid FROM user_coupons c WHERE c.uid = users.uid AND c.state = 'redeemed' ORDER BY c.id) AS redeemedCoupons";
+   // most uids one GET /user?ids= or POST /user may ask for
+   private static final int MAX_IDS = Integer.parseInt(System.getenv().getOrDefault("USER_BATCH_MAX_IDS", "1000"));
+
+   private final ConnectionPool pool;
+   private final ProfileCache cache;
+
+   public User(ConnectionPool pool, ProfileCache cache) {
+      this.pool = pool;
+      this.cache = cache;
    }
 
    public static boolean isNumeric(String str) {
-      System.out.println("user");
       try {
          Double.parseDouble(str);
          return true;
@@ -32,8 +72,18 @@ public class User implements HttpHandler {
    @Override
    public void handle(HttpExchange r) throws IOException {
       try {
+         // /user itself is the collection: GET /user?ids=1,2,3 and POST /user {"ids": [...]}
+         String path = r.getRequestURI().getPath();
+         boolean collection = path.equals("/user") || path.equals("/user/");
          if (r.getRequestMethod().equals("GET")) {
-            handleGET(r);
+            if (collection) {
+               handleBatchGET(r);
+            } else {
+               handleGET(r);
+            }
+         }
+         if (r.getRequestMethod().equals("POST") && collection) {
+            handleBatchPOST(r);
          }
          if (r.getRequestMethod().equals("PATCH")) {
             handlePATCH(r);
@@ -43,53 +93,24 @@ public class User implements HttpHandler {
       }
    }
 
-   public void handleGET(HttpExchange r) throws IOException, JSONException, SQLException {
+   public void handleGET(HttpExchange r) throws IOException, JSONException {
       String[] url = r.getRequestURI().getPath().split("/");
-      System.out.println(url[url.length - 1]);
       if (isNumeric(url[url.length - 1])) {
+         int uid = Integer.parseInt(url[url.length - 1]);
          try {
-            ResultSet rs;
-            int uid = Integer.parseInt(url[url.length - 1]);
-            String prepare = "SELECT prefer_name as name, email, rides, isdriver,availableCoupons, redeemedCoupons FROM users WHERE uid = ?";
-            PreparedStatement ps = this.connection.prepareStatement(prepare);
-            ps.setInt(1, uid);
-            rs = ps.executeQuery();
-            if (rs.next()) {
-               JSONObject var = new JSONObject();
-               String name = rs.getString("name");
-               String email = rs.getString("email");
-               String rides = rs.getString("rides");
-               Boolean isDriver = rs.getBoolean("isdriver");
-               Array availableCoupons = rs.getArray("availableCoupons");
-               Array redeemedCoupons = rs.getArray("redeemedCoupons");
-               var.put("name", name);
-               var.put("email", email);
-               var.put("rides", rides);
-               var.put("is_driver", isDriver);
-               var.put("availableCoupons", availableCoupons.toString());
-               var.put("redeemedCoupons", redeemedCoupons.toString());
-               String response = var.toString();
-               r.sendResponseHeaders(200, response.length());
-               // Writing response body
-               OutputStream os = r.getResponseBody();
-               os.write(response.getBytes());
-               os.close();
-            } else {
-               JSONObject res = new JSONObject();
-               res.put("status", "NOT FOUND");
-               String response = res.toString();
-               r.sendResponseHeaders(404, response.length());
-               // Writing response body
-               OutputStream os = r.getResponseBody();
-               os.write(response.getBytes());
-               os.close();
-            }
-
+            ProfileCache.Profile profile = cache.get(uid, Math.max(0, Deadline.remainingNanos(r)),
+                    () -> loadProfile(uid, r));
+            r.sendResponseHeaders(profile.getStatus(), profile.getBody().length);
+            // Writing response body
+            OutputStream os = r.getResponseBody();
+            os.write(profile.getBody());
+            os.close();
          } catch (SQLException se) {
+            int status = Deadline.failureStatus(r);
             JSONObject res = new JSONObject();
-            res.put("status", "INTERNAL SERVER ERROR");
+            res.put("status", Deadline.statusText(status));
             String response = res.toString();
-            r.sendResponseHeaders(500, response.length());
+            r.sendResponseHeaders(status, response.length());
             // Writing response body
             OutputStream os = r.getResponseBody();
             os.write(response.getBytes());
@@ -99,112 +120,248 @@ public class User implements HttpHandler {
 
    }
 
-   public void handlePATCH(HttpExchange r) throws IOException, JSONException, SQLException {
-      String[] url = r.getRequestURI().getPath().split("/");
-      if (isNumeric(url[url.length - 1])) {
-         ResultSet rs;
-         int uid = Integer.parseInt(url[url.length - 1]);
-         String preCheck = "SELECT count(*) as c FROM users WHERE uid = ?";
-         PreparedStatement ps = this.connection.prepareStatement(preCheck);
+   /**
+    * Reads a profile and serializes the GET response for it.
+    */
+   private ProfileCache.Profile loadProfile(int uid, HttpExchange r) throws SQLException {
+      String prepare = "SELECT " + PROFILE_COLUMNS + " FROM users WHERE uid = ?";
+      try (Connection connection = pool.getConnection(r);
+           PreparedStatement ps = connection.prepareStatement(prepare)) {
          ps.setInt(1, uid);
-         try {
-            rs = ps.executeQuery();
-            if (rs.next()) {
-               int numOfUser = rs.getInt("c");
-               String alters = "";
-               if (numOfUser == 1) {
-                  // Packing the alter info
-                  String body = Utils.convert(r.getRequestBody());
-                  JSONObject deserialized = new JSONObject(body);
-                  Iterator<?> it = deserialized.keys();
-                  String[] alternates = new String[deserialized.length()];
-                  int order = 0;
-                  System.out.println(deserialized.length());
-                  while (it.hasNext()) {
-                     System.out.println(order);
-                     String key = it.next().toString();
-                     if (order != 0 && order < deserialized.length()) {
-                        alters += ", ";
-                     }
-                     if (key.equals("is_driver")) {
-                        alternates[order] = "is_driver";
-                        alters += "isdriver = ? ";
-                     } else if (key.equals("name")) {
-                        alternates[order] = "name";
-                        alters += "prefer_name = ? ";
-                     } else {
-                        alternates[order] = key;
-                        alters += key + " = ? ";
-                     }
-                     order++;
-                  }
-                  String alternation = "UPDATE users SET " + alters + " WHERE uid = ?";
-                  PreparedStatement ps1 = this.connection.prepareStatement(alternation);
-                  for (int j = 0; j < deserialized.length(); j++) {
-                     System.out.println(alternates[j]);
-                     System.out.print(j);
-                     if (alternates[j].equals("is_driver")) {
-                        System.out.println(deserialized.getBoolean(alternates[j]));
-                        ps1.setBoolean(j + 1, deserialized.getBoolean(alternates[j]));
-                     } else if (alternates[j].equals("rides")) {
-                        ps1.setInt(j + 1, deserialized.getInt(alternates[j]));
-                     } else {
-                        ps1.setString(j + 1, deserialized.getString(alternates[j]));
-                     }
-                  }
-                  ps1.setInt(deserialized.length() + 1, uid);
-                  try {
-                     ps1.executeUpdate();
-                     // success
-                     JSONObject res = new JSONObject();
-                     res.put("status", "OK");
-                     String response = res.toString();
-                     r.sendResponseHeaders(200, response.length());
-                     // Writing response body
-                     OutputStream os = r.getResponseBody();
-                     os.write(response.getBytes());
-                     os.close();
-                  } catch (SQLException e) {
-                     JSONObject res = new JSONObject();
-                     res.put("status", "INTERNAL SERVER ERROR");
-                     String response = res.toString();
-                     r.sendResponseHeaders(500, response.length());
-                     // Writing response body
-                     OutputStream os = r.getResponseBody();
-                     os.write(response.getBytes());
-                     os.close();
+         ps.setQueryTimeout(Deadline.timeoutSeconds(r));
+         try (ResultSet rs = ps.executeQuery()) {
+            JSONObject var = new JSONObject();
+            if (!rs.next()) {
+               var.put("status", "NOT FOUND");
+               return new ProfileCache.Profile(404, var.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return new ProfileCache.Profile(200, profileJson(rs).toString().getBytes(StandardCharsets.UTF_8));
+         }
+      } catch (JSONException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * The profile in the current row, as GET /user/{uid} returns it.
+    */
+   private static JSONObject profileJson(ResultSet rs) throws SQLException, JSONException {
+      JSONObject var = new JSONObject();
+      var.put("name", rs.getString("name"));
+      var.put("email", rs.getString("email"));
+      var.put("rides", rs.getString("rides"));
+      var.put("is_driver", rs.getBoolean("isdriver"));
+      var.put("availableCoupons", rs.getArray("availableCoupons").toString());
+      var.put("redeemedCoupons", rs.getArray("redeemedCoupons").toString());
+      return var;
+   }
+
+   /**
+    * GET /user?ids=1,2,3
+    */
+   public void handleBatchGET(HttpExchange r) throws IOException, JSONException {
+      String query = r.getRequestURI().getQuery();
+      Set<Integer> ids = new LinkedHashSet<>();
+      try {
+         for (String param : query == null ? new String[0] : query.split("&")) {
+            if (param.startsWith("ids=")) {
+               for (String id : param.substring(4).split(",")) {
+                  if (!id.isBlank()) {
+                     ids.add(Integer.parseInt(id.trim()));
                   }
                }
-            } else {
-               JSONObject res = new JSONObject();
-               res.put("status", "NOT FOUND");
-               String response = res.toString();
-               r.sendResponseHeaders(404, response.length());
-               // Writing response body
-               OutputStream os = r.getResponseBody();
-               os.write(response.getBytes());
-               os.close();
             }
-         } catch (SQLException e) {
-            JSONObject res = new JSONObject();
-            res.put("status", "INTERNAL SERVER ERROR");
-            String response = res.toString();
-            r.sendResponseHeaders(500, response.length());
-            // Writing response body
-            OutputStream os = r.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
          }
-      } else {
+      } catch (NumberFormatException e) {
+         ids.clear();
+      }
+      sendProfiles(r, ids);
+   }
+
+   /**
+    * POST /user {"ids": [1, 2, 3]}, for lists too long for a query string.
+    */
+   public void handleBatchPOST(HttpExchange r) throws IOException, JSONException {
+      Set<Integer> ids = new LinkedHashSet<>();
+      try {
+         JSONArray array = new JSONObject(Utils.convert(r.getRequestBody())).getJSONArray("ids");
+         for (int i = 0; i < array.length(); i++) {
+            ids.add(array.getInt(i));
+         }
+      } catch (JSONException e) {
+         ids.clear();
+      }
+      sendProfiles(r, ids);
+   }
+
+   /**
+    * Answers {"status": "OK", "data": {"uid": profile, ...}, "missing": [uid, ...]}. Cached
+    * profiles are used as they are and the rest are read with one query, whose rows are written
+    * to the response as they arrive rather than collected first.
+    */
+   private void sendProfiles(HttpExchange r, Set<Integer> ids) throws IOException, JSONException {
+      if (ids.isEmpty() || ids.size() > MAX_IDS) {
          JSONObject res = new JSONObject();
          res.put("status", "BAD REQUEST");
-         String response = res.toString();
-         r.sendResponseHeaders(400, response.length());
-         // Writing response body
-         OutputStream os = r.getResponseBody();
-         os.write(response.getBytes());
-         os.close();
+         Utils.handleResponse(res, r, 400);
+         return;
+      }
+
+      Map<Integer, ProfileCache.Profile> cached = new LinkedHashMap<>();
+      List<Integer> uncached = new ArrayList<>();
+      for (int uid : ids) {
+         ProfileCache.Profile profile = cache.getIfPresent(uid);
+         if (profile == null) {
+            uncached.add(uid);
+         } else {
+            cached.put(uid, profile);
+         }
+      }
+
+      Connection connection = null;
+      PreparedStatement ps = null;
+      ResultSet rs = null;
+      try {
+         if (!uncached.isEmpty()) {
+            connection = pool.getConnection(r);
+            ps = connection.prepareStatement("SELECT uid, " + PROFILE_COLUMNS + " FROM users WHERE uid = ANY(?)");
+            ps.setArray(1, connection.createArrayOf("integer", uncached.toArray()));
+            ps.setQueryTimeout(Deadline.timeoutSeconds(r));
+            rs = ps.executeQuery();
+         }
+      } catch (SQLException e) {
+         closeQuietly(rs, ps, connection);
+         int status = Deadline.failureStatus(r);
+         JSONObject res = new JSONObject();
+         res.put("status", Deadline.statusText(status));
+         Utils.handleResponse(res, r, status);
+         return;
       }
 
+      // the status is settled once the query has started, so the body can be streamed
+      r.getResponseHeaders().set("Content-Type", "application/json");
+      r.sendResponseHeaders(200, 0);
+      try (Writer out = new BufferedWriter(new OutputStreamWriter(r.getResponseBody(), StandardCharsets.UTF_8))) {
+         out.write("{\"status\":\"OK\",\"data\":{");
+         String separator = "";
+         JSONArray missing = new JSONArray();
+         for (Map.Entry<Integer, ProfileCache.Profile> entry : cached.entrySet()) {
+            if (entry.getValue().getStatus() != 200) {
+               missing.put(entry.getKey());
+               continue;
+            }
+            out.write(separator + "\"" + entry.getKey() + "\":");
+            out.write(new String(entry.getValue().getBody(), StandardCharsets.UTF_8));
+            separator = ",";
+         }
+         Set<Integer> found = new HashSet<>();
+         while (rs != null && rs.next()) {
+            int uid = rs.getInt("uid");
+            found.add(uid);
+            out.write(separator + "\"" + uid + "\":");
+            out.write(profileJson(rs).toString());
+            separator = ",";
+         }
+         for (int uid : uncached) {
+            if (!found.contains(uid)) {
+               missing.put(uid);
+            }
+         }
+         out.write("},\"missing\":" + missing + "}");
+      } catch (SQLException e) {
+         // too late for an error status; the client sees a truncated body
+         e.printStackTrace();
+      } finally {
+         closeQuietly(rs, ps, connection);
+      }
+   }
+
+   private static void closeQuietly(AutoCloseable... resources) {
+      for (AutoCloseable resource : resources) {
+         if (resource != null) {
+            try {
+               resource.close();
+            } catch (Exception e) {
+               // nothing left to do with it
+            }
+         }
+      }
+   }
+
+   public void handlePATCH(HttpExchange r) throws IOException, JSONException {
+      String[] url = r.getRequestURI().getPath().split("/");
+      JSONObject res = new JSONObject();
+      if (!isNumeric(url[url.length - 1])) {
+         res.put("status", "BAD REQUEST");
+         Utils.handleResponse(res, r, 400);
+         return;
+      }
+      int uid = Integer.parseInt(url[url.length - 1]);
+
+      JSONObject deserialized;
+      int columns = 0;
+      try {
+         deserialized = new JSONObject(Utils.convert(r.getRequestBody()));
+         Iterator<?> it = deserialized.keys();
+         while (it.hasNext()) {
+            int column = PATCH_KEYS.indexOf(it.next().toString());
+            if (column < 0) {
+               columns = 0;
+               break;
+            }
+            columns |= 1 << column;
+         }
+      } catch (JSONException e) {
+         deserialized = null;
+      }
+      if (deserialized == null || columns == 0) {
+         res.put("status", "BAD REQUEST");
+         Utils.handleResponse(res, r, 400);
+         return;
+      }
+
+      boolean found;
+      try (Connection connection = pool.getConnection(r);
+           PreparedStatement ps = connection.prepareStatement(PATCH_SQL[columns])) {
+         int param = 1;
+         for (int column = 0; column < PATCH_KEYS.size(); column++) {
+            if ((columns & 1 << column) == 0) {
+               continue;
+            }
+            String key = PATCH_KEYS.get(column);
+            if (key.equals("is_driver")) {
+               ps.setBoolean(param++, deserialized.getBoolean(key));
+            } else if (key.equals("rides")) {
+               ps.setInt(param++, deserialized.getInt(key));
+            } else {
+               ps.setString(param++, deserialized.getString(key));
+            }
+         }
+         ps.setInt(param, uid);
+         ps.setQueryTimeout(Deadline.timeoutSeconds(r));
+         // RETURNING tells whether the user exists without a separate lookup
+         try (ResultSet rs = ps.executeQuery()) {
+            found = rs.next();
+         }
+         if (found) {
+            cache.invalidate(uid);
+         }
+      } catch (JSONException e) {
+         res.put("status", "BAD REQUEST");
+         Utils.handleResponse(res, r, 400);
+         return;
+      } catch (SQLException e) {
+         int status = Deadline.failureStatus(r);
+         res.put("status", Deadline.statusText(status));
+         Utils.handleResponse(res, r, status);
+         return;
+      }
+      if (found) {
+         res.put("status", "OK");
+         Utils.handleResponse(res, r, 200);
+      } else {
+         res.put("status", "NOT FOUND");
+         Utils.handleResponse(res, r, 404);
+      }
    }
 }
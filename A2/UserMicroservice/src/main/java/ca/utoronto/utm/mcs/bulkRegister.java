@@ -0,0 +1,261 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * POST /user/bulk: registers many users in one request, for migrations.
+ *
+ * The body is streamed, either as NDJSON (one {"name", "email", "password"} object per line) or,
+ * with Content-Type text/csv, as name,email,password lines with an optional header line. Valid
+ * lines are copied into a temporary staging table with COPY as they are read, so memory use does
+ * not grow with the input. The staging table is then merged into Users in the same transaction.
+ * A line whose email is already registered, appears earlier in the input, or is registered by
+ * someone else while the load runs, is not inserted and is reported as a duplicate, so
+ * received = inserted + duplicates + invalid:
+ * {"status": "OK", "received": 3, "inserted": 1, "duplicates": 1, "invalid": 1,
+ *  "duplicateLines": [{"line": 2, "email": ...}], "invalidLines": [3]}
+ * At most MAX_REPORTED lines of each kind are listed; the counts are always complete.
+ *
+ * Meant to be called on the user service directly: a large load takes longer than the gateway's
+ * request deadline.
+ */
+public class bulkRegister implements HttpHandler {
+    private static final int MAX_REPORTED = 1000;
+    // COPY data is sent to Postgres in chunks of this size
+    private static final int CHUNK = 64 * 1024;
+
+    private final ConnectionPool pool;
+    private final ProfileCache cache;
+
+    public bulkRegister(ConnectionPool pool, ProfileCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) {
+        try {
+            if (exchange.getRequestMethod().equals("POST")) {
+                handlePOST(exchange);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void handlePOST(HttpExchange exchange) throws JSONException, IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean csv = contentType != null && contentType.toLowerCase().startsWith("text/csv");
+        JSONObject res = new JSONObject();
+        try (Connection connection = pool.getConnection(exchange)) {
+            connection.setAutoCommit(false);
+            try (Statement st = connection.createStatement()) {
+                st.setQueryTimeout(Deadline.timeoutSeconds(exchange));
+                // uid is set for the lines that were inserted
+                st.execute("CREATE TEMP TABLE users_staging (line bigint NOT NULL, prefer_name varchar NOT NULL, "
+                        + "email varchar NOT NULL, \"password\" varchar NOT NULL, uid integer) ON COMMIT DROP");
+            }
+
+            Counts counts = copy(connection, exchange, csv);
+
+            JSONArray duplicateLines = new JSONArray();
+            long duplicates = 0;
+            long inserted;
+            try (Statement st = connection.createStatement()) {
+                st.setQueryTimeout(Deadline.timeoutSeconds(exchange));
+                st.execute("CREATE INDEX ON users_staging (email, line)");
+                st.execute("ANALYZE users_staging");
+                // ON CONFLICT also covers anyone registering the same email meanwhile; each inserted
+                // uid is written back to the first line with its email, the one DISTINCT ON took
+                inserted = st.executeUpdate("WITH inserted AS (INSERT INTO Users (prefer_name, email, "
+                        + "password, rides, availableCoupons, redeemedCoupons) "
+                        + "SELECT DISTINCT ON (email) prefer_name, email, \"password\", 0, '{}', '{}' "
+                        + "FROM users_staging ORDER BY email, line "
+                        + "ON CONFLICT (email) DO NOTHING RETURNING uid, email) "
+                        + "UPDATE users_staging s SET uid = i.uid FROM inserted i WHERE s.email = i.email "
+                        + "AND s.line = (SELECT min(line) FROM users_staging t WHERE t.email = s.email)");
+                int first = 0;
+                int last = -1;
+                try (ResultSet rs = st.executeQuery("SELECT min(uid) AS first, max(uid) AS last FROM users_staging")) {
+                    rs.next();
+                    if (inserted > 0) {
+                        first = rs.getInt("first");
+                        last = rs.getInt("last");
+                    }
+                }
+                // every other line is a duplicate, whichever way it lost; inside a transaction this
+                // reads them in batches instead of all at once
+                st.setFetchSize(MAX_REPORTED);
+                try (ResultSet rs = st.executeQuery("SELECT line, email FROM users_staging WHERE uid IS NULL ORDER BY line")) {
+                    while (rs.next()) {
+                        if (duplicates++ < MAX_REPORTED) {
+                            JSONObject duplicate = new JSONObject();
+                            duplicate.put("line", rs.getLong("line"));
+                            duplicate.put("email", rs.getString("email"));
+                            duplicateLines.put(duplicate);
+                        }
+                    }
+                }
+                connection.commit();
+                // new uids may have been looked up, and cached as not found, before they existed
+                for (int uid = first; uid <= last; uid++) {
+                    cache.invalidate(uid);
+                }
+            }
+
+            res.put("status", "OK");
+            res.put("received", counts.received);
+            res.put("inserted", inserted);
+            res.put("duplicates", duplicates);
+            res.put("invalid", counts.invalid);
+            res.put("duplicateLines", duplicateLines);
+            res.put("invalidLines", counts.invalidLines);
+            Utils.handleResponse(res, exchange, 200);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            int status = Deadline.failureStatus(exchange);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, exchange, status);
+        }
+    }
+
+    /**
+     * Reads the body line by line and copies every valid line into users_staging.
+     */
+    private static Counts copy(Connection connection, HttpExchange exchange, boolean csv)
+            throws SQLException, IOException {
+        Counts counts = new Counts();
+        CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI()
+                .copyIn("COPY users_staging (line, prefer_name, email, \"password\") FROM STDIN WITH (FORMAT csv)");
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            StringBuilder chunk = new StringBuilder(CHUNK + 1024);
+            String line;
+            long number = 0;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                number++;
+                if (csv && number == 1 && isCsvHeader(line)) {
+                    number--;
+                    continue;
+                }
+                counts.received++;
+                String[] fields = csv ? parseCsv(line) : parseJson(line);
+                if (fields == null) {
+                    if (counts.invalid++ < MAX_REPORTED) {
+                        counts.invalidLines.put(number);
+                    }
+                    continue;
+                }
+                chunk.append(number);
+                for (String field : fields) {
+                    chunk.append(",\"").append(field.replace("\"", "\"\"")).append('"');
+                }
+                chunk.append('\n');
+                if (chunk.length() >= CHUNK) {
+                    write(copyIn, chunk);
+                }
+            }
+            write(copyIn, chunk);
+            copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+        return counts;
+    }
+
+    private static void write(CopyIn copyIn, StringBuilder chunk) throws SQLException {
+        byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        chunk.setLength(0);
+    }
+
+    /**
+     * @return name, email and password, or null if the line is not a valid registration
+     */
+    static String[] parseJson(String line) {
+        try {
+            JSONObject user = new JSONObject(line);
+            return valid(new String[]{user.getString("name"), user.getString("email"), user.getString("password")});
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether a CSV body's first line is a header rather than a registration
+     */
+    static boolean isCsvHeader(String line) {
+        return line.trim().toLowerCase().startsWith("name,");
+    }
+
+    /**
+     * Splits a CSV line of name,email,password. Fields may be quoted, with "" for a quote, but
+     * may not span lines.
+     * @return the fields, or null if the line is not a valid registration
+     */
+    static String[] parseCsv(String line) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        if (quoted || fields.size() != 3) {
+            return null;
+        }
+        return valid(fields.toArray(new String[0]));
+    }
+
+    private static String[] valid(String[] fields) {
+        for (String field : fields) {
+            // Postgres text cannot hold NUL
+            if (field.isEmpty() || field.indexOf('\0') >= 0) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    private static class Counts {
+        long received = 0;
+        long invalid = 0;
+        final JSONArray invalidLines = new JSONArray();
+    }
+}
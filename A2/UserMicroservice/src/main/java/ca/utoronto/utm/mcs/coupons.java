@@ -0,0 +1,207 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.sql.*;
+
+/**
+ * Coupons given to users, one user_coupons row each.
+ *   GET  /user/coupons          the coupon catalog
+ *   GET  /user/coupons/{uid}    a user's coupons: {"available": [...], "redeemed": [...]}
+ *   POST /user/coupons/issue    {"uid", "cid"}: gives the user a coupon
+ *   POST /user/coupons/redeem   {"uid", "cid"}: redeems one of the user's available copies
+ */
+public class coupons implements HttpHandler {
+
+    private final ConnectionPool pool;
+    private final ProfileCache cache;
+    private final CouponCatalog catalog;
+
+    public coupons(ConnectionPool pool, ProfileCache cache, CouponCatalog catalog) {
+        this.pool = pool;
+        this.cache = cache;
+        this.catalog = catalog;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) {
+        try {
+            String[] url = exchange.getRequestURI().getPath().split("/");
+            String last = url[url.length - 1];
+            if (exchange.getRequestMethod().equals("GET")) {
+                if (last.equals("coupons")) {
+                    handleCatalog(exchange);
+                } else {
+                    handleUserCoupons(exchange, last);
+                }
+            } else if (exchange.getRequestMethod().equals("POST") && last.equals("issue")) {
+                handleIssue(exchange);
+            } else if (exchange.getRequestMethod().equals("POST") && last.equals("redeem")) {
+                handleRedeem(exchange);
+            } else {
+                JSONObject res = new JSONObject();
+                res.put("status", "NOT FOUND");
+                Utils.handleResponse(res, exchange, 404);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleCatalog(HttpExchange exchange) throws JSONException, IOException {
+        JSONObject res = new JSONObject();
+        try {
+            JSONArray data = new JSONArray();
+            for (CouponCatalog.Coupon coupon : catalog.all()) {
+                data.put(coupon.toJSON());
+            }
+            res.put("status", "OK");
+            res.put("data", data);
+            Utils.handleResponse(res, exchange, 200);
+        } catch (SQLException e) {
+            sendFailure(exchange, res);
+        }
+    }
+
+    private void handleUserCoupons(HttpExchange exchange, String uidText) throws JSONException, IOException {
+        JSONObject res = new JSONObject();
+        int uid;
+        try {
+            uid = Integer.parseInt(uidText);
+        } catch (NumberFormatException e) {
+            res.put("status", "BAD REQUEST");
+            Utils.handleResponse(res, exchange, 400);
+            return;
+        }
+        String prepare = "SELECT id, cid, state, redeemed_at FROM user_coupons WHERE uid = ? ORDER BY id";
+        try (Connection connection = pool.getConnection(exchange);
+             PreparedStatement ps = connection.prepareStatement(prepare)) {
+            ps.setInt(1, uid);
+            ps.setQueryTimeout(Deadline.timeoutSeconds(exchange));
+            JSONArray available = new JSONArray();
+            JSONArray redeemed = new JSONArray();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    CouponCatalog.Coupon coupon = catalog.get(rs.getInt("cid"));
+                    JSONObject item = coupon == null ? new JSONObject().put("cid", rs.getInt("cid")) : coupon.toJSON();
+                    item.put("id", rs.getLong("id"));
+                    if (rs.getString("state").equals("redeemed")) {
+                        item.put("redeemed_at", rs.getTimestamp("redeemed_at").toInstant().toString());
+                        redeemed.put(item);
+                    } else {
+                        available.put(item);
+                    }
+                }
+            }
+            JSONObject data = new JSONObject();
+            data.put("available", available);
+            data.put("redeemed", redeemed);
+            res.put("status", "OK");
+            res.put("data", data);
+            Utils.handleResponse(res, exchange, 200);
+        } catch (SQLException e) {
+            sendFailure(exchange, res);
+        }
+    }
+
+    private void handleIssue(HttpExchange exchange) throws JSONException, IOException {
+        JSONObject res = new JSONObject();
+        int uid;
+        int cid;
+        try {
+            JSONObject request = Utils.handleRequest(exchange.getRequestBody());
+            uid = request.getInt("uid");
+            cid = request.getInt("cid");
+        } catch (JSONException e) {
+            res.put("status", "BAD REQUEST");
+            Utils.handleResponse(res, exchange, 400);
+            return;
+        }
+        String prepare = "INSERT INTO user_coupons (uid, cid) SELECT uid, ? FROM users WHERE uid = ? RETURNING id";
+        try {
+            if (catalog.get(cid) == null) {
+                res.put("status", "NOT FOUND");
+                Utils.handleResponse(res, exchange, 404);
+                return;
+            }
+            try (Connection connection = pool.getConnection(exchange);
+                 PreparedStatement ps = connection.prepareStatement(prepare)) {
+                ps.setInt(1, cid);
+                ps.setInt(2, uid);
+                ps.setQueryTimeout(Deadline.timeoutSeconds(exchange));
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        res.put("status", "NOT FOUND");
+                        Utils.handleResponse(res, exchange, 404);
+                        return;
+                    }
+                    res.put("id", rs.getLong("id"));
+                }
+            }
+            cache.invalidate(uid);
+            res.put("status", "OK");
+            Utils.handleResponse(res, exchange, 200);
+        } catch (SQLException e) {
+            sendFailure(exchange, res);
+        }
+    }
+
+    private void handleRedeem(HttpExchange exchange) throws JSONException, IOException {
+        JSONObject res = new JSONObject();
+        int uid;
+        int cid;
+        try {
+            JSONObject request = Utils.handleRequest(exchange.getRequestBody());
+            uid = request.getInt("uid");
+            cid = request.getInt("cid");
+        } catch (JSONException e) {
+            res.put("status", "BAD REQUEST");
+            Utils.handleResponse(res, exchange, 400);
+            return;
+        }
+        // one statement: takes the user's oldest available copy, skipping one that a concurrent
+        // redemption has already locked, so the same copy can never be redeemed twice
+        String prepare = "UPDATE user_coupons SET state = 'redeemed', redeemed_at = now() "
+                + "WHERE id = (SELECT id FROM user_coupons WHERE uid = ? AND cid = ? AND state = 'available' "
+                + "ORDER BY id LIMIT 1 FOR UPDATE SKIP LOCKED) AND state = 'available' RETURNING id";
+        try {
+            CouponCatalog.Coupon coupon = catalog.get(cid);
+            if (coupon == null || coupon.isExpired()) {
+                res.put("status", coupon == null ? "NOT FOUND" : "BAD REQUEST");
+                Utils.handleResponse(res, exchange, coupon == null ? 404 : 400);
+                return;
+            }
+            try (Connection connection = pool.getConnection(exchange);
+                 PreparedStatement ps = connection.prepareStatement(prepare)) {
+                ps.setInt(1, uid);
+                ps.setInt(2, cid);
+                ps.setQueryTimeout(Deadline.timeoutSeconds(exchange));
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        res.put("status", "NOT FOUND");
+                        Utils.handleResponse(res, exchange, 404);
+                        return;
+                    }
+                    res.put("id", rs.getLong("id"));
+                }
+            }
+            cache.invalidate(uid);
+            res.put("status", "OK");
+            res.put("discount", coupon.discount);
+            Utils.handleResponse(res, exchange, 200);
+        } catch (SQLException e) {
+            sendFailure(exchange, res);
+        }
+    }
+
+    private static void sendFailure(HttpExchange exchange, JSONObject res) throws JSONException, IOException {
+        int status = Deadline.failureStatus(exchange);
+        res.put("status", Deadline.statusText(status));
+        Utils.handleResponse(res, exchange, status);
+    }
+}
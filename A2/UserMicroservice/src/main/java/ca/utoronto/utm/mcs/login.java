@@ -12,17 +12,16 @@ import static ca.utoronto.utm.mcs.Utils.convert;
 
 public class login implements HttpHandler {
 
-    public Connection connection;
+    private final ConnectionPool pool;
+    // null when TOKEN_SECRET is not set, in which case no token is issued
+    private final SessionToken tokens = SessionToken.fromEnv();
 
-    public login() throws ClassNotFoundException, SQLException {
-        String url = Utils.url;
-        Class.forName("org.postgresql.Driver");
-        this.connection = DriverManager.getConnection(url, "root", "123456");
+    public login(ConnectionPool pool) {
+        this.pool = pool;
     }
 
     @Override
     public void handle(HttpExchange exchange) {
-        System.out.println("login");
         try {
             if (exchange.getRequestMethod().equals("POST")) {
                 handlePOST(exchange);
@@ -35,15 +34,21 @@ public class login implements HttpHandler {
     private void handlePOST(HttpExchange exchange) throws JSONException, IOException {
         JSONObject request = Utils.handleRequest(exchange.getRequestBody());
         JSONObject res = new JSONObject();
-        try {
+        String prepare = "SELECT * FROM Users WHERE email = ? AND password = ?";
+        try (Connection connection = pool.getConnection(exchange);
+             PreparedStatement ps = connection.prepareStatement(prepare)) {
             ResultSet rs;
-            String prepare = "SELECT * FROM Users WHERE email = ? AND password = ?";
-            PreparedStatement ps = this.connection.prepareStatement(prepare);
+            ps.setQueryTimeout(Deadline.timeoutSeconds(exchange));
             ps.setString(1, request.get("email").toString());
             ps.setString(2, request.get("password").toString());
             rs = ps.executeQuery();
             if (rs.next()) {
                 res.put("status", "OK");
+                if (tokens != null) {
+                    // lets the gateway identify the user on later requests without asking us
+                    res.put("token", tokens.issue(rs.getString("uid")));
+                    res.put("expiresIn", tokens.getTtlSeconds());
+                }
                 Utils.handleResponse(res, exchange, 200);
             }
             else {
@@ -54,8 +59,9 @@ public class login implements HttpHandler {
             res.put("status", "BAD REQUEST");
             Utils.handleResponse(res, exchange, 400);
         } catch (SQLException e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, exchange, 500);
+            int status = Deadline.failureStatus(exchange);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, exchange, status);
         }
     }
 }
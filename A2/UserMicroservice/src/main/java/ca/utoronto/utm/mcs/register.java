@@ -13,17 +13,16 @@ import static ca.utoronto.utm.mcs.Utils.convert;
 
 public class register implements HttpHandler {
 
-    public Connection connection;
+    private final ConnectionPool pool;
+    private final ProfileCache cache;
 
-    public register() throws ClassNotFoundException, SQLException {
-        String url = Utils.url;
-        Class.forName("org.postgresql.Driver");
-        this.connection = DriverManager.getConnection(url, "root", "123456");
+    public register(ConnectionPool pool, ProfileCache cache) {
+        this.pool = pool;
+        this.cache = cache;
     }
 
     @Override
     public void handle(HttpExchange exchange) {
-        System.out.println("register");
         try {
             if (exchange.getRequestMethod().equals("POST")) {
                 handlePOST(exchange);
@@ -36,14 +35,18 @@ public class register implements HttpHandler {
     public void handlePOST(HttpExchange exchange) throws JSONException, IOException {
         JSONObject request = Utils.handleRequest(exchange.getRequestBody());
         JSONObject res = new JSONObject();
-        try {
-            String prepare = "INSERT INTO Users (prefer_name, email, password, rides, availableCoupons, redeemedCoupons) VALUES (?, ?, ?, 0, '{}', '{}')";
-            PreparedStatement ps = this.connection.prepareStatement(prepare);
+        String prepare = "INSERT INTO Users (prefer_name, email, password, rides, availableCoupons, redeemedCoupons) VALUES (?, ?, ?, 0, '{}', '{}') RETURNING uid";
+        try (Connection connection = pool.getConnection(exchange);
+             PreparedStatement ps = connection.prepareStatement(prepare)) {
+            ps.setQueryTimeout(Deadline.timeoutSeconds(exchange));
             ps.setString(1, request.get("name").toString());
             ps.setString(2, request.get("email").toString());
             ps.setString(3, request.get("password").toString());
 
-            if (ps.executeUpdate() == 1) {
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                // the uid may have been looked up, and cached as not found, before it existed
+                cache.invalidate(rs.getInt("uid"));
                 res.put("status", "OK");
                 Utils.handleResponse(res, exchange, 200);
             }
@@ -55,8 +58,9 @@ public class register implements HttpHandler {
             res.put("status", "BAD REQUEST");
             Utils.handleResponse(res, exchange, 400);
         } catch (SQLException e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            Utils.handleResponse(res, exchange, 500);
+            int status = Deadline.failureStatus(exchange);
+            res.put("status", Deadline.statusText(status));
+            Utils.handleResponse(res, exchange, status);
         }
     }
 }
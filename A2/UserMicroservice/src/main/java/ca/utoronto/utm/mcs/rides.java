@@ -0,0 +1,53 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * POST /user/rides {"uid": 7, "delta": 1}: adds completed rides to a user, delta defaulting to 1.
+ * The rides are counted in memory and written by RideCounter's next flush, so the response does
+ * not wait for Postgres and GET /user/{uid} shows them a flush interval later.
+ */
+public class rides implements HttpHandler {
+
+    private final RideCounter counter;
+
+    public rides(RideCounter counter) {
+        this.counter = counter;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) {
+        try {
+            if (exchange.getRequestMethod().equals("POST")) {
+                handlePOST(exchange);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void handlePOST(HttpExchange exchange) throws JSONException, IOException {
+        JSONObject res = new JSONObject();
+        try {
+            JSONObject request = Utils.handleRequest(exchange.getRequestBody());
+            int uid = request.getInt("uid");
+            int delta = request.has("delta") ? request.getInt("delta") : 1;
+            if (delta <= 0) {
+                res.put("status", "BAD REQUEST");
+                Utils.handleResponse(res, exchange, 400);
+                return;
+            }
+            counter.increment(uid, delta);
+            res.put("status", "OK");
+            Utils.handleResponse(res, exchange, 200);
+        } catch (JSONException e) {
+            res.put("status", "BAD REQUEST");
+            Utils.handleResponse(res, exchange, 400);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package ca.utoronto.utm.mcs;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * JDBC driver for jdbc:stub: urls whose connections keep track of how they were used and talk
+ * to no database, so ConnectionPool and the handlers can be tested without Postgres. Every url
+ * gets its own list of connections, and its statements are answered by the url's Script.
+ */
+public class StubDriver implements Driver {
+   private static final StubDriver INSTANCE = new StubDriver();
+   private static final ConcurrentHashMap<String, List<StubConnection>> CONNECTIONS = new ConcurrentHashMap<>();
+   private static final ConcurrentHashMap<String, Script> SCRIPTS = new ConcurrentHashMap<>();
+
+   static {
+      try {
+         DriverManager.registerDriver(INSTANCE);
+      } catch (SQLException e) {
+         throw new ExceptionInInitializerError(e);
+      }
+   }
+
+   /**
+    * Answers the statements run on a url's connections.
+    */
+   public interface Script {
+      /**
+       * @param sql the statement
+       * @param parameters its parameters, from index 1; index 0 is unused
+       * @return the rows it returns, as column name to value; for an update, one per updated row
+       */
+      List<Map<String, Object>> run(String sql, List<Object> parameters) throws SQLException;
+   }
+
+   /**
+    * A connection the driver opened.
+    */
+   public static class StubConnection {
+      volatile boolean closed = false;
+      volatile boolean autoCommit = true;
+      volatile boolean valid = true;
+      volatile int rollbacks = 0;
+      // thrown by createStatement and prepareStatement when set
+      volatile SQLException failure;
+      final Connection connection;
+
+      StubConnection(String url) {
+         connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                 new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                       case "close":
+                          closed = true;
+                          return null;
+                       case "isClosed":
+                          return closed;
+                       case "isValid":
+                          return valid && !closed;
+                       case "getAutoCommit":
+                          return autoCommit;
+                       case "setAutoCommit":
+                          autoCommit = (Boolean) args[0];
+                          return null;
+                       case "rollback":
+                          rollbacks++;
+                          return null;
+                       case "createStatement":
+                       case "prepareStatement":
+                          if (failure != null) {
+                             throw failure;
+                          }
+                          Script script = SCRIPTS.get(url);
+                          if (script == null) {
+                             throw new SQLFeatureNotSupportedException("no script for " + url);
+                          }
+                          return statement(script, args == null ? null : (String) args[0]);
+                       case "hashCode":
+                          return System.identityHashCode(proxy);
+                       case "equals":
+                          return proxy == args[0];
+                       case "toString":
+                          return "stub connection";
+                       default:
+                          throw new SQLFeatureNotSupportedException(method.getName());
+                    }
+                 });
+      }
+   }
+
+   private static Statement statement(Script script, String prepared) {
+      List<Object> parameters = new ArrayList<>();
+      Class<?> type = prepared == null ? Statement.class : PreparedStatement.class;
+      return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{type},
+              (proxy, method, args) -> {
+                 String name = method.getName();
+                 if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                    int index = (Integer) args[0];
+                    while (parameters.size() <= index) {
+                       parameters.add(null);
+                    }
+                    parameters.set(index, args[1]);
+                    return null;
+                 }
+                 switch (name) {
+                    case "setQueryTimeout":
+                    case "close":
+                       return null;
+                    case "executeQuery":
+                       return resultSet(script.run(prepared == null ? (String) args[0] : prepared, parameters));
+                    case "executeUpdate":
+                       return script.run(prepared == null ? (String) args[0] : prepared, parameters).size();
+                    default:
+                       throw new SQLFeatureNotSupportedException(name);
+                 }
+              });
+   }
+
+   private static ResultSet resultSet(List<Map<String, Object>> rows) {
+      Iterator<Map<String, Object>> it = rows.iterator();
+      AtomicReference<Map<String, Object>> row = new AtomicReference<>();
+      return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+              (proxy, method, args) -> {
+                 String name = method.getName();
+                 switch (name) {
+                    case "next":
+                       row.set(it.hasNext() ? it.next() : null);
+                       return row.get() != null;
+                    case "close":
+                       return null;
+                    case "getInt":
+                       return ((Number) row.get().get((String) args[0])).intValue();
+                    case "getLong":
+                       return ((Number) row.get().get((String) args[0])).longValue();
+                    case "getString":
+                    case "getBigDecimal":
+                    case "getDate":
+                    case "getTimestamp":
+                       return row.get().get((String) args[0]);
+                    default:
+                       throw new SQLFeatureNotSupportedException(name);
+                 }
+              });
+   }
+
+   /**
+    * Sets how statements run on the url's connections are answered.
+    */
+   public static void script(String url, Script script) {
+      SCRIPTS.put(url, script);
+   }
+
+   /**
+    * @return a url of its own, so tests running at the same time do not see each other's connections
+    */
+   public static String url(String name) {
+      return "jdbc:stub:" + name;
+   }
+
+   /**
+    * @return every connection opened for the url, oldest first
+    */
+   public static List<StubConnection> connections(String url) {
+      return CONNECTIONS.computeIfAbsent(url, key -> new CopyOnWriteArrayList<>());
+   }
+
+   @Override
+   public Connection connect(String url, Properties info) {
+      if (!acceptsURL(url)) {
+         return null;
+      }
+      StubConnection stub = new StubConnection(url);
+      connections(url).add(stub);
+      return stub.connection;
+   }
+
+   @Override
+   public boolean acceptsURL(String url) {
+      return url.startsWith("jdbc:stub:");
+   }
+
+   @Override
+   public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+      return new DriverPropertyInfo[0];
+   }
+
+   @Override
+   public int getMajorVersion() {
+      return 1;
+   }
+
+   @Override
+   public int getMinorVersion() {
+      return 0;
+   }
+
+   @Override
+   public boolean jdbcCompliant() {
+      return false;
+   }
+
+   @Override
+   public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+      throw new SQLFeatureNotSupportedException();
+   }
+}
@@ -0,0 +1,519 @@
+package ca.utoronto.utm.mcs;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Tests of the service's classes on their own. Unlike AppTest these need no database or running
+services.
+*/
+public class UnitTest {
+
+   @Test
+   public void csvPlainFields() {
+      assertArrayEquals(new String[]{"Ann", "ann@mail.com", "pw"}, bulkRegister.parseCsv("Ann,ann@mail.com,pw"));
+      assertArrayEquals(new String[]{"Ann", "ann@mail.com", "pw"}, bulkRegister.parseCsv(" Ann , ann@mail.com ,pw "));
+   }
+
+   @Test
+   public void csvQuotedFields() {
+      assertArrayEquals(new String[]{"Smith, Ann", "ann@mail.com", "p,w"},
+              bulkRegister.parseCsv("\"Smith, Ann\",ann@mail.com,\"p,w\""));
+      assertArrayEquals(new String[]{"Ann \"A\" Smith", "ann@mail.com", "pw"},
+              bulkRegister.parseCsv("\"Ann \"\"A\"\" Smith\",ann@mail.com,pw"));
+   }
+
+   @Test
+   public void csvRejectsInvalidLines() {
+      assertNull(bulkRegister.parseCsv("Ann,ann@mail.com"));
+      assertNull(bulkRegister.parseCsv("Ann,ann@mail.com,pw,extra"));
+      assertNull(bulkRegister.parseCsv("\"Ann,ann@mail.com,pw"));
+      assertNull(bulkRegister.parseCsv("Ann,,pw"));
+      assertNull(bulkRegister.parseCsv("Ann,\"\",pw"));
+      assertNull(bulkRegister.parseCsv("Ann,ann@mail.com,p\0w"));
+   }
+
+   @Test
+   public void csvHeader() {
+      assertTrue(bulkRegister.isCsvHeader("name,email,password"));
+      assertTrue(bulkRegister.isCsvHeader(" Name,Email,Password"));
+      assertFalse(bulkRegister.isCsvHeader("Ann,ann@mail.com,pw"));
+      assertFalse(bulkRegister.isCsvHeader("namey,ann@mail.com,pw"));
+   }
+
+   @Test
+   public void jsonFields() {
+      assertArrayEquals(new String[]{"Ann", "ann@mail.com", "p\"w"},
+              bulkRegister.parseJson("{\"name\": \"Ann\", \"email\": \"ann@mail.com\", \"password\": \"p\\\"w\"}"));
+   }
+
+   @Test
+   public void jsonRejectsInvalidLines() {
+      assertNull(bulkRegister.parseJson("{\"name\": \"Ann\", \"email\": \"ann@mail.com\""));
+      assertNull(bulkRegister.parseJson("{\"name\": \"Ann\", \"email\": \"ann@mail.com\"}"));
+      assertNull(bulkRegister.parseJson("{\"name\": \"\", \"email\": \"ann@mail.com\", \"password\": \"pw\"}"));
+      assertNull(bulkRegister.parseJson("{\"name\": \"A\\u0000nn\", \"email\": \"ann@mail.com\", \"password\": \"pw\"}"));
+      assertNull(bulkRegister.parseJson("not json"));
+   }
+
+   private static ConnectionPool pool(String url, int max, long validateMs) throws ClassNotFoundException {
+      return new ConnectionPool(url, "user", "password", 1, 0, max, 1000, 300000, validateMs, 0);
+   }
+
+   @Test
+   public void poolTimesOutWhenEveryConnectionIsInUse() throws Exception {
+      String url = StubDriver.url("timeout");
+      ConnectionPool pool = pool(url, 1, 5000);
+      Connection held = pool.getConnection(TimeUnit.SECONDS.toNanos(1));
+      SQLException e = assertThrows(SQLException.class, () -> pool.getConnection(TimeUnit.MILLISECONDS.toNanos(50)));
+      assertEquals("08001", e.getSQLState());
+      assertEquals(1, pool.stats().getInt("pool.timeouts"));
+
+      held.close();
+      pool.getConnection(TimeUnit.SECONDS.toNanos(1)).close();
+      assertEquals(1, StubDriver.connections(url).size());
+   }
+
+   @Test
+   public void poolReusesReturnedConnections() throws Exception {
+      String url = StubDriver.url("reuse");
+      ConnectionPool pool = pool(url, 2, 5000);
+      Connection first = pool.getConnection(TimeUnit.SECONDS.toNanos(1));
+      first.setAutoCommit(false);
+      first.close();
+
+      List<StubDriver.StubConnection> opened = StubDriver.connections(url);
+      assertEquals(1, opened.size());
+      // an open transaction is rolled back before anyone else gets the connection
+      assertEquals(1, opened.get(0).rollbacks);
+      assertTrue(opened.get(0).autoCommit);
+      assertFalse(opened.get(0).closed);
+
+      // the returned proxy cannot be used any more
+      assertTrue(first.isClosed());
+      SQLException e = assertThrows(SQLException.class, first::getAutoCommit);
+      assertEquals("08003", e.getSQLState());
+
+      Connection second = pool.getConnection(TimeUnit.SECONDS.toNanos(1));
+      assertEquals(1, opened.size());
+      assertEquals(1, pool.stats().getInt("pool.inUse"));
+      second.close();
+      assertEquals(0, pool.stats().getInt("pool.inUse"));
+      assertEquals(2, pool.stats().getInt("pool.borrows"));
+   }
+
+   @Test
+   public void poolDiscardsBrokenConnections() throws Exception {
+      String url = StubDriver.url("broken");
+      ConnectionPool pool = pool(url, 2, 5000);
+      Connection connection = pool.getConnection(TimeUnit.SECONDS.toNanos(1));
+      StubDriver.StubConnection stub = StubDriver.connections(url).get(0);
+      stub.failure = new SQLException("connection reset", "08006");
+      SQLException e = assertThrows(SQLException.class, () -> connection.prepareStatement("SELECT 1"));
+      assertSame(stub.failure, e);
+      connection.close();
+      assertTrue(stub.closed);
+
+      pool.getConnection(TimeUnit.SECONDS.toNanos(1)).close();
+      assertEquals(2, StubDriver.connections(url).size());
+      assertEquals(1, pool.stats().getInt("pool.destroyed"));
+   }
+
+   @Test
+   public void poolChecksIdleConnectionsBeforeUse() throws Exception {
+      String url = StubDriver.url("validate");
+      ConnectionPool pool = pool(url, 2, 0);
+      pool.getConnection(TimeUnit.SECONDS.toNanos(1)).close();
+      StubDriver.StubConnection stub = StubDriver.connections(url).get(0);
+      stub.valid = false;
+
+      pool.getConnection(TimeUnit.SECONDS.toNanos(1)).close();
+      assertTrue(stub.closed);
+      assertEquals(2, StubDriver.connections(url).size());
+   }
+
+   private static final long WAIT = TimeUnit.SECONDS.toNanos(5);
+
+   private static ProfileCache.Profile profile(int status, String body) {
+      return new ProfileCache.Profile(status, body.getBytes(StandardCharsets.UTF_8));
+   }
+
+   private static void await(CountDownLatch latch) throws SQLException {
+      try {
+         latch.await();
+      } catch (InterruptedException e) {
+         throw new SQLException(e);
+      }
+   }
+
+   @Test
+   public void cacheServesProfilesUntilTheyExpire() throws Exception {
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 200);
+      AtomicInteger loads = new AtomicInteger();
+      ProfileCache.Loader loader = () -> profile(200, "load " + loads.incrementAndGet());
+
+      assertEquals("load 1", new String(cache.get(1, WAIT, loader).getBody(), StandardCharsets.UTF_8));
+      assertEquals("load 1", new String(cache.get(1, WAIT, loader).getBody(), StandardCharsets.UTF_8));
+      assertEquals(1, loads.get());
+      assertEquals(1, cache.stats().getInt("profileCache.hits"));
+
+      Thread.sleep(300);
+      assertNull(cache.getIfPresent(1));
+      assertEquals("load 2", new String(cache.get(1, WAIT, loader).getBody(), StandardCharsets.UTF_8));
+   }
+
+   @Test
+   public void cacheKeepsNotFound() throws Exception {
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      AtomicInteger loads = new AtomicInteger();
+      ProfileCache.Loader loader = () -> {
+         loads.incrementAndGet();
+         return profile(404, "{\"status\": \"NOT FOUND\"}");
+      };
+      assertEquals(404, cache.get(5, WAIT, loader).getStatus());
+      assertEquals(404, cache.get(5, WAIT, loader).getStatus());
+      assertEquals(1, loads.get());
+
+      // registering the uid invalidates it
+      cache.invalidate(5);
+      assertNull(cache.getIfPresent(5));
+   }
+
+   @Test
+   public void cacheDoesNotKeepFailedLoads() throws Exception {
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      assertThrows(SQLException.class, () -> cache.get(3, WAIT, () -> {
+         throw new SQLException("connection reset", "08006");
+      }));
+      assertEquals(200, cache.get(3, WAIT, () -> profile(200, "{}")).getStatus());
+   }
+
+   @Test
+   public void cacheRunsOneLoadForConcurrentMisses() throws Exception {
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      AtomicInteger loads = new AtomicInteger();
+      CountDownLatch release = new CountDownLatch(1);
+      ProfileCache.Loader loader = () -> {
+         loads.incrementAndGet();
+         await(release);
+         return profile(200, "shared");
+      };
+
+      int threads = 8;
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<ProfileCache.Profile>> results = new ArrayList<>();
+         for (int i = 0; i < threads; i++) {
+            results.add(pool.submit(() -> cache.get(9, WAIT, loader)));
+         }
+         long deadline = System.nanoTime() + WAIT;
+         while (cache.stats().getInt("profileCache.coalesced") < threads - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+         }
+         release.countDown();
+         ProfileCache.Profile first = results.get(0).get();
+         for (Future<ProfileCache.Profile> result : results) {
+            assertSame(first, result.get());
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+      assertEquals(1, loads.get());
+      assertEquals(threads - 1, cache.stats().getInt("profileCache.coalesced"));
+   }
+
+   @Test
+   public void cacheFollowerGivesUpAtItsTimeout() throws Exception {
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      CountDownLatch loading = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      Thread leader = new Thread(() -> {
+         try {
+            cache.get(4, WAIT, () -> {
+               loading.countDown();
+               await(release);
+               return profile(200, "{}");
+            });
+         } catch (SQLException e) {
+            // not expected, and asserted below through the cache
+         }
+      });
+      leader.start();
+      try {
+         loading.await();
+         assertThrows(SQLTimeoutException.class,
+                 () -> cache.get(4, TimeUnit.MILLISECONDS.toNanos(50), () -> profile(200, "follower")));
+      } finally {
+         release.countDown();
+         leader.join();
+      }
+      assertEquals(200, cache.getIfPresent(4).getStatus());
+   }
+
+   @Test
+   public void cacheDropsALoadThatRacedAnInvalidation() throws Exception {
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      ProfileCache.Profile stale = cache.get(2, WAIT, () -> {
+         // a PATCH commits and invalidates while the old row is being read
+         cache.invalidate(2);
+         return profile(200, "old");
+      });
+      assertEquals("old", new String(stale.getBody(), StandardCharsets.UTF_8));
+      assertNull(cache.getIfPresent(2));
+      assertEquals("new", new String(cache.get(2, WAIT, () -> profile(200, "new")).getBody(), StandardCharsets.UTF_8));
+   }
+
+   @Test
+   public void cacheEvictsLeastRecentlyUsed() throws Exception {
+      // one entry per segment, and uids 0 and 16 share one
+      ProfileCache cache = new ProfileCache(16, 1 << 20, 60000);
+      cache.get(0, WAIT, () -> profile(200, "0"));
+      cache.get(16, WAIT, () -> profile(200, "16"));
+      assertNull(cache.getIfPresent(0));
+      assertEquals(200, cache.getIfPresent(16).getStatus());
+      assertEquals(1, cache.stats().getInt("profileCache.evictions"));
+      assertEquals(1, cache.stats().getInt("profileCache.entries"));
+   }
+
+   private static Map<String, Object> coupon(int cid, String expiry) {
+      return Map.of("cid", cid, "name", "coupon " + cid, "description", "", "discount", new BigDecimal("0.10"),
+              "expiry", Date.valueOf(expiry));
+   }
+
+   /**
+    * Serves /user/coupons from a stub database whose catalog has coupon 1, valid, and coupon 2,
+    * expired.
+    */
+   private static HttpServer couponServer(String url, ProfileCache cache, StubDriver.Script redeem) throws Exception {
+      StubDriver.script(url, (sql, parameters) -> {
+         if (sql.startsWith("SELECT cid")) {
+            return List.of(coupon(1, "2100-01-01"), coupon(2, "2000-01-01"));
+         }
+         return redeem.run(sql, parameters);
+      });
+      ConnectionPool pool = pool(url, 4, 5000);
+      HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.createContext("/user/coupons", new coupons(pool, cache, new CouponCatalog(pool, 300000)))
+              .getFilters().add(Deadline.filter());
+      server.setExecutor(Executors.newFixedThreadPool(8));
+      server.start();
+      return server;
+   }
+
+   private static int redeem(HttpServer server, int uid, int cid) throws IOException {
+      URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/user/coupons/redeem");
+      HttpURLConnection client = (HttpURLConnection) url.openConnection();
+      client.setDoOutput(true);
+      client.setRequestMethod("POST");
+      try (OutputStream out = client.getOutputStream()) {
+         out.write(("{\"uid\": " + uid + ", \"cid\": " + cid + "}").getBytes(StandardCharsets.UTF_8));
+      }
+      int status = client.getResponseCode();
+      // read the whole response, so the handler is done by the time the server is stopped
+      try (InputStream in = status < 400 ? client.getInputStream() : client.getErrorStream()) {
+         in.readAllBytes();
+      }
+      return status;
+   }
+
+   @Test
+   public void couponRedemptionHandsOutEachCopyOnce() throws Exception {
+      String url = StubDriver.url("redeem");
+      // user 7 holds three copies of coupon 1; the UPDATE hands out one copy per row it returns
+      AtomicInteger copies = new AtomicInteger(3);
+      AtomicInteger updates = new AtomicInteger();
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      HttpServer server = couponServer(url, cache, (sql, parameters) -> {
+         updates.incrementAndGet();
+         if (!sql.startsWith("UPDATE user_coupons") || !parameters.subList(1, 3).equals(List.of(7, 1))) {
+            throw new SQLException("unexpected statement " + sql + " " + parameters);
+         }
+         int left = copies.getAndDecrement();
+         return left > 0 ? List.of(Map.of("id", (long) left)) : List.of();
+      });
+      try {
+         // unknown and expired coupons are turned away without touching the database
+         assertEquals(404, redeem(server, 7, 99));
+         assertEquals(400, redeem(server, 7, 2));
+         assertEquals(0, updates.get());
+
+         cache.get(7, WAIT, () -> profile(200, "{}"));
+         int requests = 8;
+         ExecutorService clients = Executors.newFixedThreadPool(requests);
+         List<Future<Integer>> statuses = new ArrayList<>();
+         try {
+            for (int i = 0; i < requests; i++) {
+               statuses.add(clients.submit(() -> redeem(server, 7, 1)));
+            }
+            int ok = 0;
+            int notFound = 0;
+            for (Future<Integer> status : statuses) {
+               int code = status.get();
+               ok += code == 200 ? 1 : 0;
+               notFound += code == 404 ? 1 : 0;
+            }
+            assertEquals(3, ok);
+            assertEquals(requests - 3, notFound);
+         } finally {
+            clients.shutdownNow();
+         }
+         assertEquals(requests, updates.get());
+         // the profile lists coupons, so a redemption invalidates it
+         assertNull(cache.getIfPresent(7));
+      } finally {
+         server.stop(0);
+      }
+   }
+
+   @Test
+   public void couponRedemptionFailureKeepsTheProfile() throws Exception {
+      String url = StubDriver.url("redeemFailure");
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      HttpServer server = couponServer(url, cache, (sql, parameters) -> {
+         throw new SQLException("canceling statement due to statement timeout", "57014");
+      });
+      try {
+         cache.get(7, WAIT, () -> profile(200, "{}"));
+         assertEquals(500, redeem(server, 7, 1));
+         assertEquals(200, cache.getIfPresent(7).getStatus());
+      } finally {
+         server.stop(0);
+      }
+   }
+
+   /**
+    * Adds each batch to an in-memory rides column, failing the batches it is told to.
+    */
+   private static class RidesTable implements RideCounter.Writer {
+      final ConcurrentHashMap<Integer, LongAdder> rides = new ConcurrentHashMap<>();
+      final AtomicInteger batches = new AtomicInteger();
+      volatile int failAt = -1;
+
+      @Override
+      public void write(List<Map.Entry<Integer, Long>> rows) throws SQLException {
+         if (batches.incrementAndGet() == failAt) {
+            throw new SQLException("connection reset", "08006");
+         }
+         for (Map.Entry<Integer, Long> row : rows) {
+            rides.computeIfAbsent(row.getKey(), key -> new LongAdder()).add(row.getValue());
+         }
+      }
+
+      long of(int uid) {
+         LongAdder total = rides.get(uid);
+         return total == null ? 0 : total.sum();
+      }
+   }
+
+   @Test
+   public void rideCounterKeepsEveryIncrementAcrossFlushes() throws Exception {
+      RidesTable table = new RidesTable();
+      // flushing every millisecond retires counters that went idle while increments still land on them
+      RideCounter counter = new RideCounter(table, new ProfileCache(100, 1 << 20, 60000), 1, 7);
+      int threads = 8;
+      int perThread = 20000;
+      int users = 512;
+      long[][] expected = new long[threads][users];
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<?>> futures = new ArrayList<>();
+         for (int t = 0; t < threads; t++) {
+            long[] mine = expected[t];
+            futures.add(pool.submit(() -> {
+               ThreadLocalRandom random = ThreadLocalRandom.current();
+               for (int i = 0; i < perThread; i++) {
+                  int uid = random.nextInt(users);
+                  counter.increment(uid, 1);
+                  mine[uid]++;
+                  if (i % 1000 == 0) {
+                     counter.flush();
+                  }
+               }
+               return null;
+            }));
+         }
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+      counter.close();
+
+      long total = 0;
+      for (int uid = 0; uid < users; uid++) {
+         long sum = 0;
+         for (long[] mine : expected) {
+            sum += mine[uid];
+         }
+         assertEquals(sum, table.of(uid), "rides of " + uid);
+         total += sum;
+      }
+      assertEquals(threads * perThread, total);
+      assertEquals(total, counter.stats().getLong("rides.increments"));
+   }
+
+   @Test
+   public void rideCounterRequeuesWhatAFailedFlushDidNotWrite() throws Exception {
+      RidesTable table = new RidesTable();
+      ProfileCache cache = new ProfileCache(100, 1 << 20, 60000);
+      // only manual flushes, two uids per batch
+      RideCounter counter = new RideCounter(table, cache, TimeUnit.HOURS.toMillis(1), 2);
+      for (int uid = 1; uid <= 5; uid++) {
+         counter.increment(uid, uid);
+         cache.get(uid, WAIT, () -> profile(200, "{}"));
+      }
+      table.failAt = 2;
+      assertThrows(SQLException.class, counter::flush);
+      // the first batch was written and its profiles dropped; the rest wait for the next flush
+      assertEquals(1, table.of(1));
+      assertEquals(2, table.of(2));
+      assertEquals(0, table.of(3));
+      assertNull(cache.getIfPresent(1));
+      assertEquals(200, cache.getIfPresent(3).getStatus());
+      assertEquals(1, counter.stats().getInt("rides.flushFailures"));
+
+      counter.increment(3, 10);
+      counter.flush();
+      assertEquals(1, table.of(1));
+      assertEquals(2, table.of(2));
+      assertEquals(13, table.of(3));
+      assertEquals(4, table.of(4));
+      assertEquals(5, table.of(5));
+      assertNull(cache.getIfPresent(3));
+      counter.close();
+   }
+}
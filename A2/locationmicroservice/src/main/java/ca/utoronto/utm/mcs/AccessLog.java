@@ -0,0 +1,281 @@
+package ca.utoronto.utm.mcs;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured access log that never blocks the request thread.
+ *
+ * Request threads put a record (method, path, status, latency, bytes) into a fixed size ring of
+ * preallocated slots, claiming a slot with one CAS. A background thread drains the ring and
+ * writes one JSON line per record. When the ring is full the record is dropped and counted
+ * rather than waiting. Successful requests can be sampled; 5xx responses are always logged.
+ *
+ * Settings come from environment variables:
+ *   ACCESS_LOG_FILE      file to append to, stdout if unset
+ *   ACCESS_LOG_SAMPLE    fraction of non-5xx requests to log, default 1
+ *   ACCESS_LOG_CAPACITY  ring size, rounded up to a power of two, default 8192
+ */
+public class AccessLog {
+   private final String service;
+   private final double sample;
+   private final Writer out;
+
+   private final int mask;
+   private final Record[] slots;
+   private final AtomicLongArray sequences;
+   private final AtomicLong tail = new AtomicLong();
+   private long head = 0;
+   private final LongAdder dropped = new LongAdder();
+   private final StringBuilder line = new StringBuilder(256);
+
+   /**
+    * @param service service name written with every record
+    * @param capacity ring size, rounded up to a power of two
+    * @param sample fraction of non-5xx requests to log
+    * @param out where records are written
+    */
+   public AccessLog(String service, int capacity, double sample, Writer out) {
+      int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+      this.service = service;
+      this.sample = sample;
+      this.out = out;
+      this.mask = size - 1;
+      this.slots = new Record[size];
+      this.sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+         slots[i] = new Record();
+         sequences.set(i, i);
+      }
+   }
+
+   /**
+    * Creates the log from the ACCESS_LOG_* environment variables and starts its writer.
+    * @param service service name written with every record
+    * @return the running log
+    */
+   public static AccessLog fromEnv(String service) throws IOException {
+      String file = System.getenv("ACCESS_LOG_FILE");
+      OutputStream stream = file == null || file.isEmpty() ? System.out : new FileOutputStream(file, true);
+      String sample = System.getenv("ACCESS_LOG_SAMPLE");
+      String capacity = System.getenv("ACCESS_LOG_CAPACITY");
+      AccessLog log = new AccessLog(service,
+              capacity == null ? 8192 : Integer.parseInt(capacity),
+              sample == null ? 1.0 : Double.parseDouble(sample),
+              new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16));
+      log.start();
+      return log;
+   }
+
+   /**
+    * Starts the background thread that writes records out.
+    */
+   public void start() {
+      Thread writer = new Thread(() -> {
+         while (true) {
+            try {
+               if (drain() == 0) {
+                  out.flush();
+                  LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+               }
+            } catch (IOException e) {
+               // nowhere left to report it; keep draining so the ring does not fill up
+               LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+         }
+      }, "access-log");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   /**
+    * Filter that logs every exchange of the contexts it is added to.
+    * @return the filter
+    */
+   public Filter filter() {
+      return new Filter() {
+         @Override
+         public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+            CountingOutputStream body = new CountingOutputStream(exchange.getResponseBody());
+            exchange.setStreams(in, body);
+            try {
+               chain.doFilter(exchange);
+            } finally {
+               log(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+                       exchange.getResponseCode(), System.nanoTime() - start, in.count, body.count);
+            }
+         }
+
+         @Override
+         public String description() {
+            return "access log";
+         }
+      };
+   }
+
+   /**
+    * Queues a record. Never blocks; the record is dropped if the ring is full or not sampled.
+    * @param method request method
+    * @param path request path
+    * @param status response status, -1 if none was sent
+    * @param latencyNanos time spent handling the request
+    * @param bytesIn request body bytes read
+    * @param bytesOut response body bytes written
+    */
+   public void log(String method, String path, int status, long latencyNanos, long bytesIn, long bytesOut) {
+      if (status < 500 && sample < 1.0 && ThreadLocalRandom.current().nextDouble() >= sample) {
+         return;
+      }
+      long pos = tail.get();
+      while (true) {
+         long diff = sequences.get((int) (pos & mask)) - pos;
+         if (diff == 0) {
+            if (tail.compareAndSet(pos, pos + 1)) {
+               break;
+            }
+            pos = tail.get();
+         } else if (diff < 0) {
+            dropped.increment();
+            return;
+         } else {
+            pos = tail.get();
+         }
+      }
+      int i = (int) (pos & mask);
+      Record record = slots[i];
+      record.time = System.currentTimeMillis();
+      record.method = method;
+      record.path = path;
+      record.status = status;
+      record.latencyNanos = latencyNanos;
+      record.bytesIn = bytesIn;
+      record.bytesOut = bytesOut;
+      // publishes the record to the writer
+      sequences.set(i, pos + 1);
+   }
+
+   /**
+    * Writes out every record queued so far. Only the writer thread may call this.
+    * @return number of records written
+    */
+   int drain() throws IOException {
+      int written = 0;
+      while (true) {
+         int i = (int) (head & mask);
+         if (sequences.get(i) != head + 1) {
+            return written;
+         }
+         format(slots[i]);
+         sequences.set(i, head + mask + 1);
+         head++;
+         out.append(line);
+         written++;
+      }
+   }
+
+   public long dropped() {
+      return dropped.sum();
+   }
+
+   private void format(Record record) {
+      line.setLength(0);
+      line.append("{\"time\":").append(record.time)
+              .append(",\"service\":\"").append(service)
+              .append("\",\"method\":\"").append(record.method)
+              .append("\",\"path\":\"");
+      escape(record.path);
+      line.append("\",\"status\":").append(record.status)
+              .append(",\"latencyUs\":").append(TimeUnit.NANOSECONDS.toMicros(record.latencyNanos))
+              .append(",\"bytesIn\":").append(record.bytesIn)
+              .append(",\"bytesOut\":").append(record.bytesOut)
+              .append("}\n");
+   }
+
+   private void escape(String value) {
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\') {
+            line.append('\\').append(c);
+         } else if (c < 0x20) {
+            line.append(String.format("\\u%04x", (int) c));
+         } else {
+            line.append(c);
+         }
+      }
+   }
+
+   private static class Record {
+      long time;
+      String method;
+      String path;
+      int status;
+      long latencyNanos;
+      long bytesIn;
+      long bytesOut;
+   }
+
+   private static class CountingInputStream extends FilterInputStream {
+      long count = 0;
+
+      CountingInputStream(InputStream in) {
+         super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            count++;
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         if (n > 0) {
+            count += n;
+         }
+         return n;
+      }
+   }
+
+   private static class CountingOutputStream extends FilterOutputStream {
+      long count = 0;
+
+      CountingOutputStream(OutputStream out) {
+         super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         out.write(b);
+         count++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         out.write(b, off, len);
+         count += len;
+      }
+   }
+}
@@ -1,23 +1,43 @@
 package ca.utoronto.utm.mcs;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
 
 public class App {
    static int PORT = 8000;
 
    public static void main(String[] args) throws IOException {
+      List<Filter> filters = List.of(AccessLog.fromEnv("locationmicroservice").filter(), Deadline.filter());
       HttpServer server = HttpServer.create(new InetSocketAddress("0.0.0.0", PORT), 0);
-      server.createContext("/location/user", new user());
-      server.createContext("/location/", new location());
-      server.createContext("/location/road", new road());
-      server.createContext("/location/hasRoute", new route());
-      server.createContext("/location/route", new route());
-      server.createContext("/location/nearbyDriver", new driver());
-      server.createContext("/location/navigation", new navigation());
-      server.createContext("/location/deletedb", new deleteDb());
+      // the Neo4j driver waits on futures rather than monitors, so virtual threads do not pin
+      ServerExecutor executor = ServerExecutor.fromEnv("locationmicroservice", "virtual");
+      server.setExecutor(executor);
+      server.createContext("/location/user", new user()).getFilters().addAll(filters);
+      server.createContext("/location/", new location()).getFilters().addAll(filters);
+      server.createContext("/location/road", new road()).getFilters().addAll(filters);
+      server.createContext("/location/hasRoute", new route()).getFilters().addAll(filters);
+      server.createContext("/location/route", new route()).getFilters().addAll(filters);
+      server.createContext("/location/nearbyDriver", new driver()).getFilters().addAll(filters);
+      server.createContext("/location/navigation", new navigation()).getFilters().addAll(filters);
+      server.createContext("/location/deletedb", new deleteDb()).getFilters().addAll(filters);
+      server.createContext("/metrics", exchange -> {
+         try {
+            byte[] response = executor.stats().toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+         } catch (JSONException e) {
+            exchange.sendResponseHeaders(500, -1);
+         }
+      });
       server.start();
       System.out.printf("Server started on port %d...\n", PORT);
    }
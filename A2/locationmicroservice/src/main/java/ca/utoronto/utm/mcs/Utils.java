@@ -4,12 +4,15 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.neo4j.driver.*;
 
+import com.sun.net.httpserver.HttpExchange;
+
 public class Utils {
    public static String uriDb = "bolt://neo4j:7687";
    public static Driver driver = GraphDatabase.driver(uriDb, AuthTokens.basic("neo4j", "123456"));
@@ -21,6 +24,20 @@ public class Utils {
       }
    }
 
+   /**
+    * Transaction settings for a query made on behalf of a request: times the query out when the
+    * request's deadline passes.
+    * @param exchange the request
+    * @return config for session.run
+    */
+   public static TransactionConfig transactionConfig(HttpExchange exchange) {
+      long ms = Deadline.timeoutMillis(exchange);
+      if (ms == 0) {
+         return TransactionConfig.empty();
+      }
+      return TransactionConfig.builder().withTimeout(Duration.ofMillis(ms)).build();
+   }
+
    public static void DeleteDB() {
       Session session = Utils.driver.session();
       session.writeTransaction(tx -> {
@@ -4,6 +4,7 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.neo4j.driver.Query;
 import org.neo4j.driver.Record;
 import org.neo4j.driver.Result;
 import org.neo4j.driver.Session;
@@ -49,7 +50,7 @@ public class driver implements HttpHandler {
                         "WHERE distance(p1, p2)/1000 <= " + radius + "\n" +
                         "RETURN DISTINCT driver";
         try (Session session = Utils.driver.session()) {
-            Result result = session.run(query, parameters("x", uid));
+            Result result = session.run(new Query(query, parameters("x", uid)), Utils.transactionConfig(exchange));
 
             JSONObject data = new JSONObject();
             if (result.hasNext()) {
@@ -76,8 +77,9 @@ public class driver implements HttpHandler {
                 handleResponse(res, exchange, 404);
             }
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            handleResponse(res, exchange, 500);
+            int status = Deadline.failureStatus(exchange);
+            res.put("status", Deadline.statusText(status));
+            handleResponse(res, exchange, status);
         }
     }
 
@@ -58,7 +58,7 @@ public class location implements HttpHandler {
          String getLocationQuery = "MATCH (n: user {uid :$x}) RETURN n.longitude,n.latitude,n.street_at";
 
          try (Session session = Utils.driver.session()) {
-            Result result = session.run(getLocationQuery, parameters("x", uid));
+            Result result = session.run(new Query(getLocationQuery, parameters("x", uid)), Utils.transactionConfig(r));
             if (result.hasNext()) {
 
                Record user = result.next();
@@ -89,9 +89,9 @@ public class location implements HttpHandler {
                os.close();
             }
          } catch (Exception e) {
-            statusCode = 500;
+            statusCode = Deadline.failureStatus(r);
             JSONObject data = new JSONObject();
-            data.put("status", "INTERNAL SERVER ERROR");
+            data.put("status", Deadline.statusText(statusCode));
             String response = data.toString();
             r.sendResponseHeaders(statusCode, response.length());
             OutputStream os = r.getResponseBody();
@@ -131,13 +131,13 @@ public class location implements HttpHandler {
       } else {
          try (Session session = Utils.driver.session()) {
             String get_user = "MATCH (n: user {uid :$x}) RETURN n";
-            Result result = session.run(get_user, parameters("x", uid));
+            Result result = session.run(new Query(get_user, parameters("x", uid)), Utils.transactionConfig(r));
             if (result.hasNext()) {
                // user found
-               Result update = session.run(
+               Result update = session.run(new Query(
                      "MATCH(n: user {uid: $t}) SET n.longitude = $x, n.latitude = $y, n.street_at = $z RETURN n",
                      parameters("t", uid, "x", req.getDouble("longitude"), "y", req.getDouble("latitude"), "z",
-                           req.getString("street")));
+                           req.getString("street"))), Utils.transactionConfig(r));
                if (update.hasNext()) {
                   // update successfully
                   statusCode = 200;
@@ -167,8 +167,8 @@ public class location implements HttpHandler {
                os.close();
             }
          } catch (Exception e) {
-            statusCode = 500;
-            res.put("status", "INTERNAL SERVER ERROR");
+            statusCode = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(statusCode));
             String response = res.toString();
             r.sendResponseHeaders(statusCode, response.length());
             OutputStream os = r.getResponseBody();
@@ -4,6 +4,7 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.neo4j.driver.Query;
 import org.neo4j.driver.Record;
 import org.neo4j.driver.Result;
 import org.neo4j.driver.Session;
@@ -56,7 +57,7 @@ public class navigation implements HttpHandler {
             String query = "CALL gds.graph.create('myGraph', 'road', 'ROUTE_TO', {\n" +
                     "relationshipProperties: 'travel_time' })";
 
-            Result result = session.run(query);
+            Result result = session.run(query, Utils.transactionConfig(exchange));
             if (result.hasNext()) {
                 while (result.hasNext()) {
                     result.next();
@@ -80,7 +81,8 @@ public class navigation implements HttpHandler {
 
             JSONObject data = new JSONObject();
             List<JSONObject> route = new ArrayList<>();
-            result = session.run(query, parameters("x", driverUid, "y", passengerUid));
+            result = session.run(new Query(query, parameters("x", driverUid, "y", passengerUid)),
+                    Utils.transactionConfig(exchange));
             if (result.hasNext()) {
                 Record r = result.next();
                 List<JSONObject> queryRoute = r.get("route").asList(JSONObject::new);
@@ -116,8 +118,9 @@ public class navigation implements HttpHandler {
             res.put("status", "BAD REQUEST");
             handleResponse(res, exchange, 400);
         } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
-            handleResponse(res, exchange, 500);
+            int status = Deadline.failureStatus(exchange);
+            res.put("status", Deadline.statusText(status));
+            handleResponse(res, exchange, status);
         }
     }
 
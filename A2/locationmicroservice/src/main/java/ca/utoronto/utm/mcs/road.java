@@ -32,11 +32,11 @@ public class road implements HttpHandler {
          Boolean traffic = req.getBoolean("hasTraffic");
          try (Session session = Utils.driver.session()) {
             String roadCheckQuery = "MATCH (n :road) where n.name=" + "'" + name + "' RETURN n";
-            Result roadCheckResult = session.run(roadCheckQuery);
+            Result roadCheckResult = session.run(roadCheckQuery, Utils.transactionConfig(r));
             if (roadCheckResult.hasNext()) {
                // Road found, update the info
                String update = "MATCH (n:road {name: '$x'}) SET n.is_traffic = $y RETURN n";
-               Result updateRes = session.run(update, parameters("x", name, "y", traffic));
+               Result updateRes = session.run(new Query(update, parameters("x", name, "y", traffic)), Utils.transactionConfig(r));
                if (updateRes.hasNext()) {
                   statusCode = 200;
                   res.put("status", "OK");
@@ -44,7 +44,7 @@ public class road implements HttpHandler {
             } else {
                // no user found, add the info as a new user
                String newRoadQuery = "CREATE (n: road {name:$x,is_traffic:$y}) RETURN n";
-               Result newRoadRes = session.run(newRoadQuery, parameters("x", name, "y", traffic));
+               Result newRoadRes = session.run(new Query(newRoadQuery, parameters("x", name, "y", traffic)), Utils.transactionConfig(r));
                if (newRoadRes.hasNext()) {
                   statusCode = 200;
                   res.put("status", "OK");
@@ -57,8 +57,8 @@ public class road implements HttpHandler {
             os.close();
          } catch (Exception e) {
             // error happened
-            res.put("status", "INTERNAL SERVER ERROR");
-            statusCode = 500;
+            statusCode = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(statusCode));
             String response = res.toString();
             r.sendResponseHeaders(statusCode, response.length());
             OutputStream os = r.getResponseBody();
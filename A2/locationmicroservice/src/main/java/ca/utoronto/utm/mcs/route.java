@@ -37,8 +37,8 @@ public class route implements HttpHandler {
             int time = req.getInt("time");
             String preparedStatement = "MATCH (r1:road {name: $x}), (r2:road {name: $y}) "
                   + "CREATE (r1) -[r:ROUTE_TO {travel_time: $z, is_traffic: $u}]->(r2) RETURN type(r)";
-            Result result = session.run(preparedStatement,
-                  parameters("x", road1, "y", road2, "u", isTraffic, "z", time));
+            Result result = session.run(new Query(preparedStatement,
+                  parameters("x", road1, "y", road2, "u", isTraffic, "z", time)), Utils.transactionConfig(r));
             if (result.hasNext()) {
                // relationship created
                statusCode = 200;
@@ -48,8 +48,8 @@ public class route implements HttpHandler {
                res.put("status", "INTERNAL SERVER ERROR");
             }
          } catch (Exception e) {
-            statusCode = 500;
-            res.put("status", "INTERNAL SERVER ERROR");
+            statusCode = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(statusCode));
          }
       } else {
          res.put("status", "BAD REQUEST");
@@ -72,12 +72,12 @@ public class route implements HttpHandler {
             String road2 = req.getString("roadName2");
             String preparedStatement = "MATCH (r1:road {name: $x})-[r:ROUTE_TO]->(r2:road {name: $y}) " + "DELETE r";
             // relationship deletion action
-            session.run(preparedStatement, parameters("x", road1, "y", road2));
+            session.run(new Query(preparedStatement, parameters("x", road1, "y", road2)), Utils.transactionConfig(r));
             statusCode = 200;
             res.put("status", "OK");
          } catch (Exception e) {
-            statusCode = 500;
-            res.put("status", "INTERNAL SERVER ERROR");
+            statusCode = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(statusCode));
          }
       } else {
          res.put("status", "BAD REQUEST");
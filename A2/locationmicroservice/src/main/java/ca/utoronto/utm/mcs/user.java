@@ -36,11 +36,11 @@ public class user implements HttpHandler {
          Boolean isDriver = req.getBoolean("is_driver");
          try (Session session = Utils.driver.session()) {
             String userCheck = "MATCH (n) where n.uid=" + "'" + uid + "' RETURN n";
-            Result userCheckResult = session.run(userCheck);
+            Result userCheckResult = session.run(userCheck, Utils.transactionConfig(r));
             if (userCheckResult.hasNext()) {
                // User found, uodate the info
                String update = "MATCH (n:user {uid: '$x'}) SET n.is_driver = $y RETURN n";
-               Result updateRes = session.run(update, parameters("x", uid, "y", isDriver));
+               Result updateRes = session.run(new Query(update, parameters("x", uid, "y", isDriver)), Utils.transactionConfig(r));
                if (updateRes.hasNext()) {
                   statusCode = 200;
                   res.put("status", "OK");
@@ -48,13 +48,12 @@ public class user implements HttpHandler {
             } else {
                // no user found, add the info as a new user
                String newUserQuery = "CREATE (n: user {uid:$x,is_driver:$y, longitude: 0, latitude: 0, street_at: ''}) RETURN n";
-               Result queryResult = session.run(newUserQuery, parameters("x", uid, "y", isDriver));
+               Result queryResult = session.run(new Query(newUserQuery, parameters("x", uid, "y", isDriver)), Utils.transactionConfig(r));
                if (queryResult.hasNext()) {
                   statusCode = 200;
                   res.put("status", "OK");
                }
             }
-            System.out.println("microservice returning: " + res);
             String response = res.toString();
             r.sendResponseHeaders(statusCode, response.length());
             OutputStream os = r.getResponseBody();
@@ -62,8 +61,8 @@ public class user implements HttpHandler {
             os.close();
          } catch (Exception e) {
             // error happened
-            res.put("status", "INTERNAL SERVER ERROR");
-            statusCode = 500;
+            statusCode = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(statusCode));
             String response = res.toString();
             r.sendResponseHeaders(statusCode, response.length());
             OutputStream os = r.getResponseBody();
@@ -91,9 +90,9 @@ public class user implements HttpHandler {
             String uid = req.getString("uid");
             // force delete
             String delUserQuery = "MATCH (n: user {uid:$x}) DETACH DELETE n";
-            session.run(delUserQuery, parameters("x", uid));
+            session.run(new Query(delUserQuery, parameters("x", uid)), Utils.transactionConfig(r));
             String sanityCheck = "MATCH (n:user {uid:$x}) RETURN n";
-            Result result = session.run(sanityCheck, parameters("x", uid));
+            Result result = session.run(new Query(sanityCheck, parameters("x", uid)), Utils.transactionConfig(r));
             if (!result.hasNext()) {
                // Successfully deleted
                res.put("status", "OK");
@@ -113,9 +112,9 @@ public class user implements HttpHandler {
                os.close();
             }
          } catch (Exception e) {
-            res.put("status", "INTERNAL SERVER ERROR");
+            statusCode = Deadline.failureStatus(r);
+            res.put("status", Deadline.statusText(statusCode));
             String response = res.toString();
-            statusCode = 500;
             r.sendResponseHeaders(statusCode, response.length());
             OutputStream os = r.getResponseBody();
             os.write(response.getBytes());